@@ -0,0 +1,75 @@
+package example05;
+
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.util.List;
+import javax.smartcardio.*;
+
+// Compare full card dump with one block per READ BINARY and with multi-block reads
+// on the simulated terminal. Optional argument is reader round-trip time in
+// microseconds (default 3000, typical for a USB contactless reader).
+class Benchmark {
+    public static void main(String[] args) {
+        long latency = 3000;
+        if (args.length > 0) {
+            latency = Long.parseLong(args[0]);
+        }
+        var keys = List.of("FF FF FF FF FF FF", "A0 A1 A2 A3 A4 A5", "B0 B1 B2 B3 B4 B5");
+
+        try {
+            System.out.printf("Reader latency: %d us%n", latency);
+            for (var geometry : CardGeometry.values()) {
+                System.out.printf("%s%n", geometry.getTitle());
+                run("single block reads", new MifareClassicCard(geometry, true), keys, false, latency);
+                run("multi-block reads", new MifareClassicCard(geometry, true), keys, true, latency);
+                run("multi-block reads, reader without support", new MifareClassicCard(geometry, false), keys, true, latency);
+            }
+        } catch (CardException e) {
+            System.out.println("CardException: " + e.toString());
+        }
+    }
+
+    private static void run(String title, MifareClassicCard model, List<String> keys, boolean multiBlockRead, long latency)
+        throws CardException
+    {
+        var terminal = new Simulator.Terminal("Simulated reader", model).setLatency(latency);
+        var card = terminal.connect("*");
+        var geometry = CardGeometry.fromATR(card.getATR().getBytes());
+        var dumper = new Dumper(card.getBasicChannel(), geometry, keys, multiBlockRead);
+
+        long startTime = System.nanoTime();
+        for (int sector=0; sector<geometry.getSectorsCount(); sector++) {
+            dumper.readSector(sector);
+        }
+        long elapsed = System.nanoTime() - startTime;
+        card.disconnect(false);
+
+        System.out.printf("  %-45s APDUs: %4d, reads: %4d, time: %6d ms%n",
+            title, dumper.getTransmitCount(), dumper.getReadCount(), elapsed / 1000000);
+    }
+}
@@ -0,0 +1,115 @@
+package example05;
+
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+// MIFARE Classic memory layout.
+//
+// Sectors 0..31 have 4 blocks, sectors 32..39 (4K only) have 16 blocks. The last block
+// of every sector is the sector trailer. Access bits in the trailer have 4 groups:
+// in 4-block sectors each group is one block, in 16-block sectors groups 0..2 cover
+// 5 blocks each and group 3 is the trailer.
+enum CardGeometry {
+    MINI("MIFARE Mini", 5),
+    CLASSIC_1K("MIFARE Classic 1K", 16),
+    CLASSIC_4K("MIFARE Classic 4K", 40);
+
+    public static final int BLOCK_SIZE = 16;
+
+    private final String title;
+    private final int sectorsCount;
+    private final int blocksCount;
+
+    CardGeometry(String title, int sectorsCount) {
+        this.title = title;
+        this.sectorsCount = sectorsCount;
+        this.blocksCount = firstBlock(sectorsCount);
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public int getSectorsCount() {
+        return sectorsCount;
+    }
+
+    public int getBlocksCount() {
+        return blocksCount;
+    }
+
+    public int getBlocksInSector(int sector) {
+        return sector < 32 ? 4 : 16;
+    }
+
+    public int getFirstBlock(int sector) {
+        return firstBlock(sector);
+    }
+
+    public int getTrailerBlock(int sector) {
+        return firstBlock(sector) + getBlocksInSector(sector) - 1;
+    }
+
+    public int getSector(int block) {
+        return block < 128 ? block / 4 : 32 + (block - 128) / 16;
+    }
+
+    // access bits group (0..3) of the block
+    public int getAccessGroup(int block) {
+        int sector = getSector(block);
+        int i = block - firstBlock(sector);
+        if (getBlocksInSector(sector) == 4) {
+            return i;
+        }
+        return i == 15 ? 3 : i / 5;
+    }
+
+    // Detect card type from PC/SC part 3 ATR of a storage card:
+    // 3B 8F 80 01 80 4F 0C A0 00 00 03 06 <standard> <card name, 2 bytes> 00 00 00 00 <TCK>
+    // returns null for unknown cards
+    public static CardGeometry fromATR(byte[] atr) {
+        if (atr.length != 20 || atr[4] != (byte)0x80 || atr[5] != 0x4F
+                || atr[7] != (byte)0xA0 || atr[8] != 0 || atr[9] != 0 || atr[10] != 0x03 || atr[11] != 0x06) {
+            return null;
+        }
+        int name = ((atr[13] & 0xFF) << 8) | (atr[14] & 0xFF);
+        switch (name) {
+        case 0x0001:
+            return CLASSIC_1K;
+        case 0x0002:
+            return CLASSIC_4K;
+        case 0x0026:
+            return MINI;
+        default:
+            return null;
+        }
+    }
+
+    private static int firstBlock(int sector) {
+        return sector <= 32 ? sector * 4 : 128 + (sector - 32) * 16;
+    }
+}
@@ -0,0 +1,79 @@
+package example05;
+
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+// Card memory dump: all blocks in one preallocated array, plus the key that was used
+// to read each block.
+class CardImage {
+    // key types as used in General Authenticate APDU
+    public static final byte KEY_A = 0x60;
+    public static final byte KEY_B = 0x61;
+
+    final CardGeometry geometry;
+    // block N occupies bytes N*16 .. N*16+15
+    final byte[] data;
+    // 0 if block wasn't read, KEY_A or KEY_B otherwise
+    final byte[] keyTypes;
+    // index of the key in keys list
+    final byte[] keyIndexes;
+
+    public CardImage(CardGeometry geometry) {
+        this.geometry = geometry;
+        data = new byte[geometry.getBlocksCount() * CardGeometry.BLOCK_SIZE];
+        keyTypes = new byte[geometry.getBlocksCount()];
+        keyIndexes = new byte[geometry.getBlocksCount()];
+    }
+
+    public boolean isRead(int block) {
+        return keyTypes[block] != 0;
+    }
+
+    // store block data from src starting at offset
+    public void setBlock(int block, byte[] src, int offset, int keyType, int keyIndex) {
+        System.arraycopy(src, offset, data, block * CardGeometry.BLOCK_SIZE, CardGeometry.BLOCK_SIZE);
+        keyTypes[block] = (byte)keyType;
+        keyIndexes[block] = (byte)keyIndex;
+    }
+
+    // byte of the block, used to access trailer fields
+    public byte get(int block, int offset) {
+        return data[block * CardGeometry.BLOCK_SIZE + offset];
+    }
+
+    public String hexifyBlock(int block) {
+        var sb = new StringBuilder(CardGeometry.BLOCK_SIZE * 3);
+        int from = block * CardGeometry.BLOCK_SIZE;
+        for (int i=0; i<CardGeometry.BLOCK_SIZE; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(String.format("%02X", data[from + i]));
+        }
+        return sb.toString();
+    }
+}
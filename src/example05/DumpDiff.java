@@ -0,0 +1,147 @@
+package example05;
+
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import javax.smartcardio.*;
+
+// Compare two dumps block by block:
+//   DumpDiff old.mfd new.mfd
+// or a dump and the card on the first terminal, read with the keys stored in the dump:
+//   DumpDiff old.mfd --card [--simulate]
+// Exit status is 0 if dumps are equal, 1 if they differ, 2 on error.
+class DumpDiff {
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: DumpDiff <dump> <dump>|--card [--simulate]");
+            System.exit(2);
+        }
+
+        try {
+            var a = DumpFile.open(Path.of(args[0]));
+            DumpFile b;
+            if (args[1].equals("--card")) {
+                boolean simulate = args.length > 2 && args[2].equals("--simulate");
+                b = readCard(a, simulate);
+            } else {
+                b = DumpFile.open(Path.of(args[1]));
+            }
+            int differences = diff(a, b);
+            System.exit(differences == 0 ? 0 : 1);
+        } catch (IOException e) {
+            System.out.printf("Cannot read dump: %s%n", e.getMessage());
+        } catch (DumpFile.FormatException e) {
+            System.out.printf("Incorrect dump: %s%n", e.getMessage());
+        } catch (Example.TerminalNotFoundException e) {
+            System.out.println("No connected terminals.");
+        } catch (CardException e) {
+            System.out.println("CardException: " + e.toString());
+        }
+        System.exit(2);
+    }
+
+    // print differing blocks, returns number of differences: blocks plus one for UID
+    public static int diff(DumpFile a, DumpFile b) {
+        if (a.geometry != b.geometry) {
+            System.out.printf("Card types differ: %s, %s%n", a.geometry.getTitle(), b.geometry.getTitle());
+            return 1;
+        }
+        // dumps of two different cards are never equal, even with the same data
+        int uidDifference = 0;
+        if (!Arrays.equals(a.uid, b.uid)) {
+            System.out.printf("UID differs: %s, %s%n", Example.hexify(a.uid), Example.hexify(b.uid));
+            uidDifference = 1;
+        }
+
+        int blocksCount = a.geometry.getBlocksCount();
+        int size = blocksCount * CardGeometry.BLOCK_SIZE;
+        var changed = new boolean[blocksCount];
+
+        // jump from one mismatch to the next one, equal ranges are compared in bulk
+        int offset = 0;
+        while (offset < size) {
+            int m = DumpFile.slice(a.payload, offset, size - offset).mismatch(DumpFile.slice(b.payload, offset, size - offset));
+            if (m < 0) {
+                break;
+            }
+            int block = (offset + m) / CardGeometry.BLOCK_SIZE;
+            changed[block] = true;
+            offset = (block + 1) * CardGeometry.BLOCK_SIZE;
+        }
+        // unread blocks are zero filled, so also compare read status
+        for (int i=0; i<blocksCount; i++) {
+            if (a.isRead(i) != b.isRead(i)) {
+                changed[i] = true;
+            }
+        }
+
+        int differences = 0;
+        for (int i=0; i<blocksCount; i++) {
+            if (!changed[i]) {
+                continue;
+            }
+            differences++;
+            var da = a.isRead(i) ? a.hexifyBlock(i) : "?? ?? ?? ?? ?? ?? ?? ?? ?? ?? ?? ?? ?? ?? ?? ??";
+            var db = b.isRead(i) ? b.hexifyBlock(i) : "?? ?? ?? ?? ?? ?? ?? ?? ?? ?? ?? ?? ?? ?? ?? ??";
+            System.out.printf("0x%02X  - %s%n      + %s%n", i, da, db);
+        }
+        System.out.printf("%d of %d blocks differ%n", differences, blocksCount);
+        return differences + uidDifference;
+    }
+
+    private static DumpFile readCard(DumpFile reference, boolean simulate)
+        throws Example.TerminalNotFoundException, CardException
+    {
+        TerminalFactory factory;
+        if (simulate) {
+            var model = new MifareClassicCard(reference.geometry, true);
+            factory = Simulator.newFactory(new Simulator.Terminal("Simulated reader", model));
+        } else {
+            factory = TerminalFactory.getDefault();
+        }
+        var terminals = factory.terminals().list();
+        if (terminals.size() == 0) {
+            throw new Example.TerminalNotFoundException();
+        }
+        var terminal = terminals.get(0);
+        terminal.waitForCardPresent(0);
+        var card = terminal.connect("*");
+
+        var dumper = new Dumper(card.getBasicChannel(), reference.geometry, reference.keys, true);
+        var uid = dumper.readUID();
+        for (int sector=0; sector<reference.geometry.getSectorsCount(); sector++) {
+            dumper.readSector(sector);
+        }
+        var atr = card.getATR().getBytes();
+        card.disconnect(false);
+
+        return DumpFile.fromImage(dumper.image, uid, atr, reference.keys);
+    }
+}
@@ -0,0 +1,217 @@
+package example05;
+
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// Binary MIFARE Classic dump, all numbers are big endian:
+//
+//   0   4   magic "MFDP"
+//   4   1   format version, 1
+//   5   1   card type: PC/SC card name (01 Classic 1K, 02 Classic 4K, 26 Mini)
+//   6   2   blocks count N
+//   8   4   payload offset, multiple of 16
+//   12  1   UID length, 0 if unknown
+//   13  10  UID
+//   23  1   ATR length
+//   24  33  ATR
+//   57  1   keys count K
+//   58  6*K keys
+//   ... 2*N per block: key type (0 - not read, 60 - Key A, 61 - Key B), key index
+//   payload: N blocks, 16 bytes each
+//
+// Payload is block-aligned and can be compared directly in memory-mapped files.
+class DumpFile {
+    public static class FormatException extends Exception {
+        public FormatException(String message) {
+            super(message);
+        }
+    }
+
+    private static final byte[] MAGIC = {'M', 'F', 'D', 'P'};
+    private static final int VERSION = 1;
+    private static final int KEYS_OFFSET = 58;
+
+    final CardGeometry geometry;
+    final byte[] uid;
+    final byte[] atr;
+    final List<String> keys;
+    // 2 bytes per block: key type, key index
+    final ByteBuffer blocksInfo;
+    // 16 bytes per block
+    final ByteBuffer payload;
+
+    private DumpFile(CardGeometry geometry, byte[] uid, byte[] atr, List<String> keys, ByteBuffer blocksInfo, ByteBuffer payload) {
+        this.geometry = geometry;
+        this.uid = uid;
+        this.atr = atr;
+        this.keys = keys;
+        this.blocksInfo = blocksInfo;
+        this.payload = payload;
+    }
+
+    // wrap card image, block data is shared with the image, key info is copied
+    public static DumpFile fromImage(CardImage image, byte[] uid, byte[] atr, List<String> keys) {
+        var info = ByteBuffer.allocate(image.keyTypes.length * 2);
+        for (int i=0; i<image.keyTypes.length; i++) {
+            info.put(image.keyTypes[i]);
+            info.put(image.keyIndexes[i]);
+        }
+        info.flip();
+        return new DumpFile(image.geometry, uid == null ? new byte[0] : uid, atr, keys, info, ByteBuffer.wrap(image.data));
+    }
+
+    // open dump file, payload is memory-mapped
+    public static DumpFile open(Path path) throws IOException, FormatException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < KEYS_OFFSET) {
+                throw new FormatException("File is too short");
+            }
+            for (int i=0; i<MAGIC.length; i++) {
+                if (buffer.get(i) != MAGIC[i]) {
+                    throw new FormatException("Not a MIFARE dump file");
+                }
+            }
+            if (buffer.get(4) != VERSION) {
+                throw new FormatException("Unsupported dump version " + buffer.get(4));
+            }
+            var geometry = geometryFromCode(buffer.get(5));
+            if (geometry == null) {
+                throw new FormatException(String.format("Unknown card type %02X", buffer.get(5)));
+            }
+            int blocksCount = buffer.getShort(6) & 0xFFFF;
+            int payloadOffset = buffer.getInt(8);
+            if (blocksCount != geometry.getBlocksCount()) {
+                throw new FormatException("Blocks count doesn't match card type");
+            }
+
+            var uid = new byte[Math.min(buffer.get(12) & 0xFF, 10)];
+            slice(buffer, 13, uid.length).get(uid);
+            var atr = new byte[Math.min(buffer.get(23) & 0xFF, 33)];
+            slice(buffer, 24, atr.length).get(atr);
+
+            int keysCount = buffer.get(57) & 0xFF;
+            int infoOffset = KEYS_OFFSET + keysCount * 6;
+            if (payloadOffset < infoOffset + blocksCount * 2 || payloadOffset + blocksCount * CardGeometry.BLOCK_SIZE > buffer.limit()) {
+                throw new FormatException("Corrupted dump header");
+            }
+            var keys = new ArrayList<String>(keysCount);
+            var key = new byte[6];
+            for (int i=0; i<keysCount; i++) {
+                slice(buffer, KEYS_OFFSET + i * 6, 6).get(key);
+                keys.add(Example.hexify(key));
+            }
+
+            var blocksInfo = slice(buffer, infoOffset, blocksCount * 2);
+            var payload = slice(buffer, payloadOffset, blocksCount * CardGeometry.BLOCK_SIZE);
+            return new DumpFile(geometry, uid, atr, keys, blocksInfo, payload);
+        }
+    }
+
+    public void write(Path path) throws IOException {
+        int blocksCount = geometry.getBlocksCount();
+        int infoOffset = KEYS_OFFSET + keys.size() * 6;
+        int payloadOffset = (infoOffset + blocksCount * 2 + 15) / 16 * 16;
+
+        var buffer = ByteBuffer.allocate(payloadOffset + blocksCount * CardGeometry.BLOCK_SIZE);
+        buffer.put(MAGIC);
+        buffer.put((byte)VERSION);
+        buffer.put(geometryCode(geometry));
+        buffer.putShort((short)blocksCount);
+        buffer.putInt(payloadOffset);
+        buffer.put((byte)Math.min(uid.length, 10));
+        buffer.put(uid, 0, Math.min(uid.length, 10));
+        buffer.position(23);
+        buffer.put((byte)Math.min(atr.length, 33));
+        buffer.put(atr, 0, Math.min(atr.length, 33));
+        buffer.position(57);
+        buffer.put((byte)keys.size());
+        for (var key : keys) {
+            buffer.put(Example.toByteArray(key));
+        }
+        buffer.put(blocksInfo.duplicate());
+        buffer.position(payloadOffset);
+        buffer.put(payload.duplicate());
+
+        Files.write(path, buffer.array());
+    }
+
+    public boolean isRead(int block) {
+        return blocksInfo.get(block * 2) != 0;
+    }
+
+    public int getKeyType(int block) {
+        return blocksInfo.get(block * 2) & 0xFF;
+    }
+
+    public int getKeyIndex(int block) {
+        return blocksInfo.get(block * 2 + 1) & 0xFF;
+    }
+
+    public String hexifyBlock(int block) {
+        var bytes = new byte[CardGeometry.BLOCK_SIZE];
+        slice(payload, block * CardGeometry.BLOCK_SIZE, CardGeometry.BLOCK_SIZE).get(bytes);
+        return Example.hexify(bytes);
+    }
+
+    // view of "length" bytes starting at "offset", doesn't change buffer position
+    static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        var b = buffer.duplicate();
+        b.position(offset);
+        b.limit(offset + length);
+        return b.slice();
+    }
+
+    private static byte geometryCode(CardGeometry geometry) {
+        switch (geometry) {
+        case MINI:
+            return 0x26;
+        case CLASSIC_4K:
+            return 0x02;
+        default:
+            return 0x01;
+        }
+    }
+
+    private static CardGeometry geometryFromCode(byte code) {
+        for (var geometry : CardGeometry.values()) {
+            if (geometryCode(geometry) == code) {
+                return geometry;
+            }
+        }
+        return null;
+    }
+}
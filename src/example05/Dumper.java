@@ -0,0 +1,222 @@
+package example05;
+
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.util.List;
+import javax.smartcardio.*;
+
+// Reads MIFARE Classic sectors trying the list of keys.
+//
+// Many readers accept READ BINARY with Le of several blocks (0x30, 0x40) and return
+// up to 4 blocks of the authenticated sector in one APDU. Dumper tries it on the first
+// authenticated sector and falls back to one block per APDU when the reader rejects it.
+// Blocks already read with one key are not read again, and keys are no longer tried
+// once the whole sector is read.
+class Dumper {
+    // blocks per multi-block READ BINARY, Le=0x40
+    private static final int MAX_READ_BLOCKS = 4;
+
+    private final CardChannel channel;
+    private final List<String> keys;
+
+    // null: multi-block read support is not known yet
+    private Boolean multiBlockRead;
+    private int transmitCount = 0;
+    private int readCount = 0;
+
+    // General Authenticate APDU template
+    private final byte[] authenticateCommand = Example.toByteArray("FF 86 00 00 05 01 00 00 00 00");
+    // Read Binary APDU template
+    private final byte[] readBinaryCommand = Example.toByteArray("FF B0 00 00 10");
+
+    // collected data
+    final CardImage image;
+
+    public Dumper(CardChannel channel, CardGeometry geometry, List<String> keys, boolean allowMultiBlockRead) {
+        this.channel = channel;
+        this.keys = keys;
+        this.multiBlockRead = allowMultiBlockRead ? null : Boolean.FALSE;
+        this.image = new CardImage(geometry);
+    }
+
+    // Read all sector blocks, returns found keys status: "++++", "AAAA", "BBBB" or "----".
+    // Keys are tried until every block of the sector is read, as Key A first: with
+    // common access conditions it reads the whole sector, Key B only reads what is left.
+    public String readSector(int sector) throws CardException {
+        boolean keyAFound = false;
+        boolean keyBFound = false;
+
+        var geometry = image.geometry;
+        int firstBlock = geometry.getFirstBlock(sector);
+        int blocksCount = geometry.getBlocksInSector(sector);
+
+        for (int k=0; k<keys.size() && !isRead(firstBlock, blocksCount); k++) {
+            var key = keys.get(k);
+            // construct Load Keys instruction APDU
+            var loadKeysCommand = Example.toByteArray("FF 82 00 00 06 " + key);
+            var answer = transmit(new CommandAPDU(loadKeysCommand));
+            if (answer.getSW() != 0x9000) {
+                System.out.println("Failed to load keys");
+                continue;
+            }
+
+            // try to auth using key as Key A, then as Key B for blocks still unread
+            if (authenticate(firstBlock, CardImage.KEY_A)) {
+                keyAFound = true;
+                readBlocks(firstBlock, blocksCount, CardImage.KEY_A, k);
+            }
+            if (!isRead(firstBlock, blocksCount) && authenticate(firstBlock, CardImage.KEY_B)) {
+                keyBFound = true;
+                readBlocks(firstBlock, blocksCount, CardImage.KEY_B, k);
+            }
+        }
+
+        if (keyAFound && keyBFound) {
+            return "++++";
+        } else if (keyAFound) {
+            return "AAAA";
+        } else if (keyBFound) {
+            return "BBBB";
+        } else {
+            return "----";
+        }
+    }
+
+    // Card UID using PC/SC GET DATA command, null if reader doesn't support it
+    public byte[] readUID() throws CardException {
+        var answer = transmit(new CommandAPDU(Example.toByteArray("FF CA 00 00 00")));
+        if (answer.getSW() != 0x9000) {
+            return null;
+        }
+        return answer.getData();
+    }
+
+    // number of APDUs sent to the card
+    public int getTransmitCount() {
+        return transmitCount;
+    }
+
+    // number of READ BINARY APDUs
+    public int getReadCount() {
+        return readCount;
+    }
+
+    // true/false if reader multi-block read support is known, null otherwise
+    public Boolean getMultiBlockRead() {
+        return multiBlockRead;
+    }
+
+    private boolean authenticate(int block, int keyType) throws CardException {
+        authenticateCommand[7] = (byte)block;
+        authenticateCommand[8] = (byte)keyType;
+        var answer = transmit(new CommandAPDU(authenticateCommand));
+        return answer.getSW() == 0x9000;
+    }
+
+    // read unread blocks among "count" blocks of the authenticated sector
+    private void readBlocks(int firstBlock, int count, int keyType, int keyIndex) throws CardException {
+        int end = firstBlock + count;
+
+        if (multiBlockRead != Boolean.FALSE) {
+            int block = nextUnread(firstBlock, end);
+            while (block < end) {
+                // run of unread blocks, one APDU reads up to MAX_READ_BLOCKS
+                int n = 1;
+                while (n < MAX_READ_BLOCKS && block + n < end && !image.isRead(block + n)) {
+                    n++;
+                }
+                if (!readBinary(block, n, keyType, keyIndex)) {
+                    break;
+                }
+                if (n > 1) {
+                    multiBlockRead = Boolean.TRUE;
+                }
+                block = nextUnread(block + n, end);
+            }
+            // the reader reads several blocks, so a failed read means access conditions
+            // deny it to this key; the rest is left to other keys
+            if (block == end || multiBlockRead == Boolean.TRUE) {
+                return;
+            }
+            // either the reader doesn't support long Le or access conditions deny
+            // reading of some block; in the latter case card drops authentication,
+            // so authenticate again and read the rest block by block
+            if (!authenticate(firstBlock, keyType)) {
+                return;
+            }
+        }
+
+        boolean allRead = true;
+        for (int block=nextUnread(firstBlock, end); block<end; block=nextUnread(block + 1, end)) {
+            // card drops authentication after a failed read
+            if (!allRead && !authenticate(firstBlock, keyType)) {
+                return;
+            }
+            if (!readBinary(block, 1, keyType, keyIndex)) {
+                allRead = false;
+            }
+        }
+        if (multiBlockRead == null && allRead) {
+            // every block is readable separately, so multi-block read was rejected by the reader
+            multiBlockRead = Boolean.FALSE;
+        }
+    }
+
+    // READ BINARY of n blocks into the image, false if the reader or card refused it
+    private boolean readBinary(int block, int n, int keyType, int keyIndex) throws CardException {
+        readBinaryCommand[3] = (byte)block;
+        readBinaryCommand[4] = (byte)(n * CardGeometry.BLOCK_SIZE);
+        var answer = transmit(new CommandAPDU(readBinaryCommand));
+        readCount++;
+        if (answer.getSW() != 0x9000 || answer.getNr() != n * CardGeometry.BLOCK_SIZE) {
+            return false;
+        }
+        var data = answer.getData();
+        for (int i=0; i<n; i++) {
+            image.setBlock(block + i, data, i * CardGeometry.BLOCK_SIZE, keyType, keyIndex);
+        }
+        return true;
+    }
+
+    private boolean isRead(int firstBlock, int count) {
+        return nextUnread(firstBlock, firstBlock + count) == firstBlock + count;
+    }
+
+    // first unread block from "block" on, "end" if there is none
+    private int nextUnread(int block, int end) {
+        while (block < end && image.isRead(block)) {
+            block++;
+        }
+        return block;
+    }
+
+    private ResponseAPDU transmit(CommandAPDU command) throws CardException {
+        transmitCount++;
+        return channel.transmit(command);
+    }
+}
@@ -27,6 +27,8 @@ package example05;
  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import javax.smartcardio.*;
 import static java.util.Arrays.copyOfRange;
@@ -36,44 +38,136 @@ class Example {
     // public static class InstructionFailedException extends Exception {}
 
     public static void main(String[] args) {
+        boolean simulate = false;
+        boolean multiBlockRead = true;
+        CardGeometry geometry = null;
+        String output = null;
+        String record = null;
+        String replay = null;
+        for (int i=0; i<args.length; i++) {
+            var arg = args[i];
+            switch (arg) {
+            case "-o":
+            case "--output":
+                // save binary dump to this file
+                if (i + 1 == args.length) {
+                    System.out.printf("Option %s requires file name%n", arg);
+                    return;
+                }
+                i++;
+                output = args[i];
+                break;
+            case "--record":
+            case "--replay":
+                // write APDU trace of the card, or use recorded trace instead of a card
+                if (i + 1 == args.length) {
+                    System.out.printf("Option %s requires file name%n", arg);
+                    return;
+                }
+                i++;
+                if (arg.equals("--record")) {
+                    record = args[i];
+                } else {
+                    replay = args[i];
+                }
+                break;
+            case "--simulate":
+                // use emulated card instead of real terminal
+                simulate = true;
+                break;
+            case "--single-block":
+                // never try to read several blocks in one APDU
+                multiBlockRead = false;
+                break;
+            case "--mini":
+                geometry = CardGeometry.MINI;
+                break;
+            case "--1k":
+                geometry = CardGeometry.CLASSIC_1K;
+                break;
+            case "--4k":
+                geometry = CardGeometry.CLASSIC_4K;
+                break;
+            default:
+                System.out.printf("Unknown option: %s%n", arg);
+                return;
+            }
+        }
+
+        Trace.Writer traceWriter = null;
         try {
-            var factory = TerminalFactory.getDefault();
-            var terminals = factory.terminals().list();
+            Card card;
+            if (replay != null) {
+                var connections = Trace.load(Path.of(replay)).getConnections();
+                if (connections.size() == 0) {
+                    System.out.println("Trace has no recorded cards.");
+                    return;
+                }
+                System.out.printf("Replaying %s%n", replay);
+                card = connections.get(0).newCard();
+            } else {
+                TerminalFactory factory;
+                if (simulate) {
+                    var model = new MifareClassicCard(geometry == null ? CardGeometry.CLASSIC_1K : geometry, true);
+                    factory = Simulator.newFactory(new Simulator.Terminal("Simulated reader", model));
+                } else {
+                    factory = TerminalFactory.getDefault();
+                }
+                var terminals = factory.terminals().list();
 
-            if (terminals.size() == 0) {
-                throw new TerminalNotFoundException();
-            }
+                if (terminals.size() == 0) {
+                    throw new TerminalNotFoundException();
+                }
 
-            // get first terminal
-            var terminal = terminals.get(0);
+                // get first terminal
+                var terminal = terminals.get(0);
 
-            System.out.printf("Using terminal %s%n", terminal.toString());
+                System.out.printf("Using terminal %s%n", terminal.toString());
 
-            // wait for card, indefinitely until card appears
-            terminal.waitForCardPresent(0);
+                // wait for card, indefinitely until card appears
+                terminal.waitForCardPresent(0);
 
-            // establish a connection to the card using autoselected protocol
-            var card = terminal.connect("*");
+                // establish a connection to the card using autoselected protocol
+                card = terminal.connect("*");
+                if (record != null) {
+                    traceWriter = new Trace.Writer(Path.of(record));
+                    card = traceWriter.record(card);
+                }
+            }
 
             // obtain logical channel
             var channel = card.getBasicChannel();
 
+            // card type from command line or from ATR
+            if (geometry == null) {
+                geometry = CardGeometry.fromATR(card.getATR().getBytes());
+            }
+            if (geometry == null) {
+                System.out.println("Unknown card type, assuming MIFARE Classic 1K.");
+                geometry = CardGeometry.CLASSIC_1K;
+            } else {
+                System.out.printf("Card type: %s%n", geometry.getTitle());
+            }
+
             // define list of keys to test
             var defaultKeys = new ArrayList<String>();
             defaultKeys.add("FF FF FF FF FF FF");  // default NXP key
             defaultKeys.add("A0 A1 A2 A3 A4 A5");  // default Infineon Key A
             defaultKeys.add("B0 B1 B2 B3 B4 B5");  // default Infineon Key B
-            var keysNumber = defaultKeys.size();
 
-            // store collected data in these variables
-            var blocksData = new ArrayList<byte[]>(64);
-            var blocksKeys = new ArrayList<String>(64);
-            var blocksAccessBits = new ArrayList<char[]>(64);
+            var dumper = new Dumper(channel, geometry, defaultKeys, multiBlockRead);
+            var image = dumper.image;
+            long startTime = System.nanoTime();
+
+            var uid = dumper.readUID();
+            if (uid != null) {
+                System.out.printf("UID: %s%n", hexify(uid));
+            }
 
             // print header for all sectors
             System.out.printf("Sectors: ");
-            for (int sector=0; sector<16; sector++) {
-                System.out.printf("0x%X  ", sector);
+            for (int sector=0; sector<geometry.getSectorsCount(); sector++) {
+                System.out.printf("0x%-3X", sector);
             }
 
             // print start portion string of block keys status, we will
@@ -81,160 +175,78 @@ class Example {
             System.out.printf("%nBlocks:  ");
 
             // walk through all sectors and read data
-            for (int sector=0; sector<16; sector++) {
-                // insert null object for all blocks in this sector, they
-                // will be updated later
-                for (int j=0; j<4; j++) {
-                    blocksData.add(null);
-                    blocksKeys.add(null);
-                    blocksAccessBits.add(null);
-                }
-                boolean keyAFound = false;
-                boolean keyBFound = false;
-
-                // calculate first sector block address
-                int firstBlock = sector * 4;
-
-                // General Authenticate APDU template
-                var authenticateCommand = toByteArray("FF 86 00 00 05 01 00 00 00 00");
-
-                // Read Binary APDU template
-                var readBinaryCommand = toByteArray("FF B0 00 00 10");
-
-                for (String key : defaultKeys) {
-                    // sonstruct Load Keys instruction APDU
-                    var loadKeysCommand = toByteArray("FF 82 00 00 06 " + key);
-                    var answer = channel.transmit(new CommandAPDU(loadKeysCommand));
-                    if (answer.getSW() != 0x9000) {
-                        System.out.println("Failed to load keys");
-                        continue;
-                    }
-
-                    // try to auth using key as Key B for the first block
-                    // prepare authenticateCommand
-                    authenticateCommand[7] = (byte)firstBlock;
-                    authenticateCommand[8] = 0x61;
-                    answer = channel.transmit(new CommandAPDU(authenticateCommand));
-                    if (answer.getSW() == 0x9000) {
-                        keyBFound = true;
-                        // success, try to read data from all blocks (for this sector only!):
-                        for (int i=0; i<4; i++) {
-                            int block = firstBlock + i;
-                            readBinaryCommand[3] = (byte)block;
-                            answer = channel.transmit(new CommandAPDU(readBinaryCommand));
-                            if (answer.getSW() == 0x9000) {
-                                blocksData.set(block, answer.getData());
-                                blocksKeys.set(block, "B: " + key);
-                            }
-                        }
-                    }
-
-                    // try to auth using key as Key A for the first block
-                    // prepare authenticateCommand
-                    authenticateCommand[7] = (byte)firstBlock;
-                    authenticateCommand[8] = 0x60;
-                    answer = channel.transmit(new CommandAPDU(authenticateCommand));
-                    if (answer.getSW() == 0x9000) {
-                        keyAFound = true;
-                        // success, try to read data from all blocks (for this sector only!):
-                        for (int i=0; i<4; i++) {
-                            int block = firstBlock + i;
-                            readBinaryCommand[3] = (byte)block;
-                            answer = channel.transmit(new CommandAPDU(readBinaryCommand));
-                            if (answer.getSW() == 0x9000) {
-                                blocksData.set(block, answer.getData());
-                                blocksKeys.set(block, "A: " + key);
-                            }
-                        }
-                    }
-                }
-                
+            for (int sector=0; sector<geometry.getSectorsCount(); sector++) {
                 // print found key status for this sector
-                if (keyAFound && keyBFound) {
-                    System.out.printf("++++ ");
-                } else if (keyAFound) {
-                    System.out.printf("AAAA ");
-                } else if (keyBFound) {
-                    System.out.printf("BBBB ");
-                } else {
-                    System.out.printf("---- ");
-                }
-
-                // calculate and store access bits for this sector blocks
-                var lastBlock = firstBlock + 3;
-                var trailerBytes = blocksData.get(lastBlock);
-                if (trailerBytes != null) {
-                    // get access control bytes
-                    var b7 = trailerBytes[7];
-                    var b8 = trailerBytes[8];
-                    char[] bits;
-
-                    bits = new char[3];
-                    bits[0] = checkAccessBit(b7, 4);
-                    bits[1] = checkAccessBit(b8, 0);
-                    bits[2] = checkAccessBit(b8, 4);
-                    blocksAccessBits.set(firstBlock, bits);
-
-                    bits = new char[3];
-                    bits[0] = checkAccessBit(b7, 5);
-                    bits[1] = checkAccessBit(b8, 1);
-                    bits[2] = checkAccessBit(b8, 5);
-                    blocksAccessBits.set(firstBlock+1, bits);
-
-                    bits = new char[3];
-                    bits[0] = checkAccessBit(b7, 6);
-                    bits[1] = checkAccessBit(b8, 2);
-                    bits[2] = checkAccessBit(b8, 6);
-                    blocksAccessBits.set(firstBlock+2, bits);
-
-                    bits = new char[3];
-                    bits[0] = checkAccessBit(b7, 7);
-                    bits[1] = checkAccessBit(b8, 3);
-                    bits[2] = checkAccessBit(b8, 7);
-                    blocksAccessBits.set(firstBlock+3, bits);
-                }
+                System.out.printf("%s ", dumper.readSector(sector));
             }
             System.out.printf("%n%n");
 
             // now print found data
             System.out.printf("BLOCK | DATA                                            | KEY                  | ACCESS BITS%n");
             System.out.printf("                                                                                 C1 C2 C3%n");
-            for (int i=0; i<64; i++) {
+            for (int i=0; i<geometry.getBlocksCount(); i++) {
                 // get stored block data
                 var d = "?? ?? ?? ?? ?? ?? ?? ?? ?? ?? ?? ?? ?? ?? ?? ??";
-                var bd = blocksData.get(i);
-                if (bd != null) {
-                    d = hexify(bd);
+                if (image.isRead(i)) {
+                    d = image.hexifyBlock(i);
                 }
 
                 // get stored block key
-                var key = blocksKeys.get(i);
-                if (key == null) {
-                    key = "   ?? ?? ?? ?? ?? ??";
+                var key = "   ?? ?? ?? ?? ?? ??";
+                if (image.isRead(i)) {
+                    key = (image.keyTypes[i] == CardImage.KEY_A ? "A: " : "B: ") + defaultKeys.get(image.keyIndexes[i]);
                 }
 
-                // get stored block access control bits
-                char c1 = '?';
-                char c2 = '?';
-                char c3 = '?';
-                var accessBits = blocksAccessBits.get(i);
-                if (accessBits != null) {
-                    c1 = accessBits[0];
-                    c2 = accessBits[1];
-                    c3 = accessBits[2];
+                // get block access control bits from the sector trailer,
+                // "!" means inconsistent access bits (sector is blocked)
+                var bits = "???";
+                var trailer = geometry.getTrailerBlock(geometry.getSector(i));
+                if (image.isRead(trailer)) {
+                    try {
+                        var ac = AccessConditions.decode(image.get(trailer, 6), image.get(trailer, 7), image.get(trailer, 8));
+                        bits = ac.getBits(geometry.getAccessGroup(i));
+                    } catch (AccessConditions.InvalidAccessBitsException e) {
+                        bits = "!!!";
+                    }
                 }
 
-                System.out.printf("0x%02X  | %s | %s | %c  %c  %c%n", i, d, key, c1, c2, c3);
+                System.out.printf("0x%02X  | %s | %s | %c  %c  %c%n", i, d, key, bits.charAt(0), bits.charAt(1), bits.charAt(2));
             }
 
+            var multiBlockStatus = dumper.getMultiBlockRead();
+            System.out.printf("%nAPDUs sent: %d, multi-block read: %s, time: %d ms%n",
+                dumper.getTransmitCount(),
+                multiBlockStatus == null ? "unknown" : (multiBlockStatus ? "supported" : "not supported"),
+                (System.nanoTime() - startTime) / 1000000);
+
+
+            if (output != null) {
+                try {
+                    DumpFile.fromImage(image, uid, card.getATR().getBytes(), defaultKeys).write(Path.of(output));
+                    System.out.printf("Dump saved to %s%n", output);
+                } catch (IOException e) {
+                    System.out.printf("Cannot save dump: %s%n", e.getMessage());
+                }
+            }
 
             // disconnect card
             card.disconnect(false);
-
         } catch (TerminalNotFoundException e) {
             System.out.println("No connected terminals.");
         } catch (CardException e) {
             System.out.println("CardException: " + e.toString());
+        } catch (IOException e) {
+            System.out.println("Trace error: " + e.getMessage());
+        } finally {
+            // keep trace of failed sessions too
+            if (traceWriter != null) {
+                try {
+                    traceWriter.close();
+                    System.out.printf("Trace saved to %s%n", record);
+                } catch (IOException e) {
+                    System.out.println("Trace error: " + e.getMessage());
+                }
+            }
         }
     }
 
@@ -268,8 +280,4 @@ class Example {
 
         return copyOfRange(buf, 0, bufLen);
     }
-
-    public static char checkAccessBit(byte ab, int b) {
-        return ((ab >> b) & 1)==1 ? '1' : '0';
-    }
 }
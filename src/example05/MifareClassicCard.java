@@ -0,0 +1,236 @@
+package example05;
+
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.util.Arrays;
+
+// Emulated MIFARE Classic (Mini, 1K or 4K) card behind a PC/SC contactless reader, answers
+// reader pseudo-APDUs:
+//   FF CA 00 00 00                              get UID
+//   FF 82 00 <slot> 06 <key>                   load key into reader slot
+//   FF 86 00 00 05 01 00 <block> <type> <slot>  authenticate sector with Key A (60) or Key B (61)
+//   FF B0 00 <block> <Le>                       read one block (Le=10) or several blocks
+//   FF D6 00 <block> 10 <data>                  update one block
+// All sectors start in transport configuration: keys FF FF FF FF FF FF and access bits FF 07 80.
+// Access conditions are enforced, a trailer with inconsistent access bits blocks the sector.
+class MifareClassicCard implements Simulator.CardModel {
+    private final CardGeometry geometry;
+    private final byte[] atr;
+    private final byte[] memory;
+    private final byte[][] keySlots = new byte[2][];
+    // reader accepts Le of several blocks in a single READ BINARY
+    private final boolean multiBlockRead;
+    private int authSector = -1;
+    private int authKeyType = 0;
+    private AccessConditions authConditions = null;
+
+    public MifareClassicCard() {
+        this(CardGeometry.CLASSIC_1K, true);
+    }
+
+    public MifareClassicCard(CardGeometry geometry, boolean multiBlockRead) {
+        this.geometry = geometry;
+        this.multiBlockRead = multiBlockRead;
+
+        // PC/SC part 3 storage card ATR, bytes 13 and 14 are card name
+        atr = Example.toByteArray("3B 8F 80 01 80 4F 0C A0 00 00 03 06 03 00 01 00 00 00 00 00");
+        if (geometry == CardGeometry.CLASSIC_4K) {
+            atr[14] = 0x02;
+        } else if (geometry == CardGeometry.MINI) {
+            atr[14] = 0x26;
+        }
+        // TCK: XOR of all bytes from T0
+        for (int i=1; i<atr.length-1; i++) {
+            atr[atr.length-1] ^= atr[i];
+        }
+
+        memory = new byte[geometry.getBlocksCount() * CardGeometry.BLOCK_SIZE];
+        // manufacturer block
+        System.arraycopy(Example.toByteArray("DE AD BE EF 22 08 04 00 62 63 64 65 66 67 68 69"), 0, memory, 0, 16);
+        var trailer = Example.toByteArray("FF FF FF FF FF FF FF 07 80 69 FF FF FF FF FF FF");
+        for (int sector=0; sector<geometry.getSectorsCount(); sector++) {
+            System.arraycopy(trailer, 0, memory, geometry.getTrailerBlock(sector) * 16, 16);
+        }
+    }
+
+    public byte[] getATR() {
+        return atr.clone();
+    }
+
+    public void reset() {
+        authSector = -1;
+    }
+
+    public byte[] process(byte[] command) {
+        if (command.length < 4 || command[0] != (byte)0xFF) {
+            return sw(0x6E00);
+        }
+        switch (command[1]) {
+        case (byte)0xCA:
+            // 4 bytes UID is stored in the beginning of manufacturer block
+            return new byte[] {memory[0], memory[1], memory[2], memory[3], (byte)0x90, 0x00};
+        case (byte)0x82:
+            return loadKey(command);
+        case (byte)0x86:
+            return authenticate(command);
+        case (byte)0xB0:
+            return readBinary(command);
+        case (byte)0xD6:
+            return updateBinary(command);
+        default:
+            return sw(0x6D00);
+        }
+    }
+
+    private byte[] loadKey(byte[] command) {
+        int slot = command[3];
+        if (command.length != 11 || slot < 0 || slot >= keySlots.length) {
+            return sw(0x6300);
+        }
+        keySlots[slot] = Arrays.copyOfRange(command, 5, 11);
+        return sw(0x9000);
+    }
+
+    private byte[] authenticate(byte[] command) {
+        authSector = -1;
+        if (command.length != 10) {
+            return sw(0x6300);
+        }
+        int block = command[7] & 0xFF;
+        int keyType = command[8] & 0xFF;
+        int slot = command[9];
+        if (block >= geometry.getBlocksCount() || slot < 0 || slot >= keySlots.length || keySlots[slot] == null) {
+            return sw(0x6300);
+        }
+        int sector = geometry.getSector(block);
+        int trailer = geometry.getTrailerBlock(sector) * 16;
+        int keyOffset;
+        if (keyType == 0x60) {
+            keyOffset = trailer;
+        } else if (keyType == 0x61) {
+            keyOffset = trailer + 10;
+        } else {
+            return sw(0x6300);
+        }
+        if (!Arrays.equals(memory, keyOffset, keyOffset + 6, keySlots[slot], 0, 6)) {
+            return sw(0x6300);
+        }
+        try {
+            authConditions = AccessConditions.decode(memory[trailer + 6], memory[trailer + 7], memory[trailer + 8]);
+        } catch (AccessConditions.InvalidAccessBitsException e) {
+            // sector is blocked
+            return sw(0x6300);
+        }
+        authSector = sector;
+        authKeyType = keyType;
+        return sw(0x9000);
+    }
+
+    private byte[] readBinary(byte[] command) {
+        if (command.length != 5) {
+            return sw(0x6700);
+        }
+        int block = command[3] & 0xFF;
+        int length = command[4] & 0xFF;
+        if (length == 0 || length % 16 != 0 || (length != 16 && !multiBlockRead)) {
+            return sw(0x6700);
+        }
+        int count = length / 16;
+        // every block must belong to authenticated sector, the card drops
+        // authentication after a failed read
+        if (authSector < 0 || block + count > geometry.getBlocksCount()
+                || geometry.getSector(block) != authSector || geometry.getSector(block + count - 1) != authSector) {
+            authSector = -1;
+            return sw(0x6300);
+        }
+        var res = new byte[length + 2];
+        System.arraycopy(memory, block * 16, res, 0, length);
+        for (int i=0; i<count; i++) {
+            if (block + i == geometry.getTrailerBlock(authSector)) {
+                var permissions = authConditions.getTrailerPermissions();
+                if (!keyUsable() || !permissions.accessBitsRead.allows(authKeyType)) {
+                    authSector = -1;
+                    return sw(0x6300);
+                }
+                // Key A is never readable
+                Arrays.fill(res, i * 16, i * 16 + 6, (byte)0);
+                if (!permissions.keyBRead.allows(authKeyType)) {
+                    Arrays.fill(res, i * 16 + 10, i * 16 + 16, (byte)0);
+                }
+            } else {
+                var permissions = authConditions.getDataPermissions(geometry.getAccessGroup(block + i));
+                if (!keyUsable() || !permissions.read.allows(authKeyType)) {
+                    authSector = -1;
+                    return sw(0x6300);
+                }
+            }
+        }
+        res[length] = (byte)0x90;
+        return res;
+    }
+
+    private byte[] updateBinary(byte[] command) {
+        int block = command[3] & 0xFF;
+        if (command.length != 21 || (command[4] & 0xFF) != 16) {
+            return sw(0x6700);
+        }
+        if (block == 0 || authSector < 0 || block >= geometry.getBlocksCount() || geometry.getSector(block) != authSector) {
+            authSector = -1;
+            return sw(0x6300);
+        }
+        boolean allowed;
+        if (block == geometry.getTrailerBlock(authSector)) {
+            // every part of the trailer that changes must be writable
+            var permissions = authConditions.getTrailerPermissions();
+            int offset = block * 16;
+            allowed = keyUsable()
+                && (permissions.keyAWrite.allows(authKeyType) || Arrays.equals(command, 5, 11, memory, offset, offset + 6))
+                && (permissions.accessBitsWrite.allows(authKeyType) || Arrays.equals(command, 11, 14, memory, offset + 6, offset + 9))
+                && (permissions.keyBWrite.allows(authKeyType) || Arrays.equals(command, 15, 21, memory, offset + 10, offset + 16));
+        } else {
+            var permissions = authConditions.getDataPermissions(geometry.getAccessGroup(block));
+            allowed = keyUsable() && permissions.write.allows(authKeyType);
+        }
+        if (!allowed) {
+            authSector = -1;
+            return sw(0x6300);
+        }
+        // the card doesn't check new access bits, inconsistent ones block the sector
+        System.arraycopy(command, 5, memory, block * 16, 16);
+        return sw(0x9000);
+    }
+
+    // Key B can't be used for memory access when it's readable
+    private boolean keyUsable() {
+        return authKeyType != 0x61 || authConditions.getTrailerPermissions().keyBRead == AccessConditions.Access.NEVER;
+    }
+
+    private static byte[] sw(int sw) {
+        return new byte[] {(byte)(sw >> 8), (byte)sw};
+    }
+}
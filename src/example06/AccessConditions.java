@@ -0,0 +1,242 @@
+package example06;
+
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+// MIFARE Classic access conditions, bytes 6..8 of a sector trailer.
+//
+// Every access group (see CardGeometry.getAccessGroup) has bits C1 C2 C3, here they are
+// kept as 3-bit int C1<<2 | C2<<1 | C3, e.g. 0b001 for the trailer in transport
+// configuration. Trailer stores every bit twice, once inverted (nibble bit N is group N):
+//
+//   byte 6:  ~C2 | ~C1
+//   byte 7:   C1 | ~C3
+//   byte 8:   C3 |  C2
+//
+// Card blocks the whole sector forever if these copies don't match, so decode() rejects
+// such bytes and trailer must pass check() before it's written to the card.
+class AccessConditions {
+    public enum Access {
+        NEVER,
+        KEY_A,
+        KEY_B,
+        KEY_A_OR_B;
+
+        // keyType is 0x60 (Key A) or 0x61 (Key B) as in General Authenticate APDU
+        public boolean allows(int keyType) {
+            switch (this) {
+            case KEY_A:
+                return keyType == 0x60;
+            case KEY_B:
+                return keyType == 0x61;
+            case KEY_A_OR_B:
+                return keyType == 0x60 || keyType == 0x61;
+            default:
+                return false;
+            }
+        }
+    }
+
+    public static class InvalidAccessBitsException extends Exception {
+        public InvalidAccessBitsException(String message) {
+            super(message);
+        }
+    }
+
+    // Permissions for a data block.
+    public static class DataPermissions {
+        public final Access read;
+        public final Access write;
+        public final Access increment;
+        // decrement, transfer and restore
+        public final Access decrement;
+
+        DataPermissions(Access read, Access write, Access increment, Access decrement) {
+            this.read = read;
+            this.write = write;
+            this.increment = increment;
+            this.decrement = decrement;
+        }
+    }
+
+    // Permissions for a sector trailer, Key A is never readable.
+    public static class TrailerPermissions {
+        public final Access keyAWrite;
+        public final Access accessBitsRead;
+        public final Access accessBitsWrite;
+        // when Key B is readable it cannot be used for authentication
+        public final Access keyBRead;
+        public final Access keyBWrite;
+
+        TrailerPermissions(Access keyAWrite, Access accessBitsRead, Access accessBitsWrite, Access keyBRead, Access keyBWrite) {
+            this.keyAWrite = keyAWrite;
+            this.accessBitsRead = accessBitsRead;
+            this.accessBitsWrite = accessBitsWrite;
+            this.keyBRead = keyBRead;
+            this.keyBWrite = keyBWrite;
+        }
+    }
+
+    private static final Access NEVER = Access.NEVER;
+    private static final Access A = Access.KEY_A;
+    private static final Access B = Access.KEY_B;
+    private static final Access AB = Access.KEY_A_OR_B;
+
+    // indexed by C1C2C3, see MIFARE Classic datasheet, "Access conditions for data blocks"
+    private static final DataPermissions[] DATA_PERMISSIONS = {
+        new DataPermissions(AB, AB, AB, AB),                // 000, transport configuration
+        new DataPermissions(AB, NEVER, NEVER, AB),          // 001, value block
+        new DataPermissions(AB, NEVER, NEVER, NEVER),       // 010, read only
+        new DataPermissions(B, B, NEVER, NEVER),            // 011
+        new DataPermissions(AB, B, NEVER, NEVER),           // 100
+        new DataPermissions(B, NEVER, NEVER, NEVER),        // 101
+        new DataPermissions(AB, B, B, AB),                  // 110, value block
+        new DataPermissions(NEVER, NEVER, NEVER, NEVER),    // 111
+    };
+
+    // indexed by C1C2C3, see MIFARE Classic datasheet, "Access conditions for the sector trailer"
+    private static final TrailerPermissions[] TRAILER_PERMISSIONS = {
+        new TrailerPermissions(A, A, NEVER, A, A),          // 000
+        new TrailerPermissions(A, A, A, A, A),              // 001, transport configuration
+        new TrailerPermissions(NEVER, A, NEVER, A, NEVER),  // 010
+        new TrailerPermissions(B, AB, B, NEVER, B),         // 011
+        new TrailerPermissions(B, AB, NEVER, NEVER, B),     // 100
+        new TrailerPermissions(NEVER, AB, B, NEVER, NEVER), // 101
+        new TrailerPermissions(NEVER, AB, NEVER, NEVER, NEVER), // 110
+        new TrailerPermissions(NEVER, AB, NEVER, NEVER, NEVER), // 111
+    };
+
+    // SPREAD[nibble]: bit N of nibble moved to bit 3*N, i.e. lowest bit of group N
+    private static final int[] SPREAD = new int[16];
+    // ENCODE[packed]: byte6 << 16 | byte7 << 8 | byte8
+    private static final int[] ENCODE = new int[1 << 12];
+
+    static {
+        for (int nibble=0; nibble<16; nibble++) {
+            for (int group=0; group<4; group++) {
+                SPREAD[nibble] |= ((nibble >> group) & 1) << (3 * group);
+            }
+        }
+        for (int packed=0; packed<ENCODE.length; packed++) {
+            int c1 = 0;
+            int c2 = 0;
+            int c3 = 0;
+            for (int group=0; group<4; group++) {
+                int c = (packed >> (3 * group)) & 7;
+                c1 |= ((c >> 2) & 1) << group;
+                c2 |= ((c >> 1) & 1) << group;
+                c3 |= (c & 1) << group;
+            }
+            int b6 = ((~c2 & 0xF) << 4) | (~c1 & 0xF);
+            int b7 = (c1 << 4) | (~c3 & 0xF);
+            int b8 = (c3 << 4) | c2;
+            ENCODE[packed] = (b6 << 16) | (b7 << 8) | b8;
+        }
+    }
+
+    // group N occupies bits 3*N .. 3*N+2
+    private final int packed;
+
+    private AccessConditions(int packed) {
+        this.packed = packed;
+    }
+
+    // Access conditions from C1C2C3 of groups 0..3, e.g. of(0b000, 0b000, 0b000, 0b001)
+    public static AccessConditions of(int group0, int group1, int group2, int group3) {
+        if (((group0 | group1 | group2 | group3) & ~7) != 0) {
+            throw new IllegalArgumentException("Access condition must be in range 0..7.");
+        }
+        return new AccessConditions(group0 | (group1 << 3) | (group2 << 6) | (group3 << 9));
+    }
+
+    public static AccessConditions decode(byte b6, byte b7, byte b8)
+        throws InvalidAccessBitsException
+    {
+        int c1 = (b7 >> 4) & 0xF;
+        int c2 = b8 & 0xF;
+        int c3 = (b8 >> 4) & 0xF;
+        if ((b6 & 0xF) != (~c1 & 0xF) || ((b6 >> 4) & 0xF) != (~c2 & 0xF) || (b7 & 0xF) != (~c3 & 0xF)) {
+            throw new InvalidAccessBitsException(String.format("Inconsistent access bits: %02X %02X %02X", b6, b7, b8));
+        }
+        return new AccessConditions((SPREAD[c1] << 2) | (SPREAD[c2] << 1) | SPREAD[c3]);
+    }
+
+    // Check access bits of 16 bytes trailer block data
+    public static void check(byte[] trailer)
+        throws InvalidAccessBitsException
+    {
+        decode(trailer[6], trailer[7], trailer[8]);
+    }
+
+    // C1C2C3 of the group
+    public int get(int group) {
+        return (packed >> (3 * group)) & 7;
+    }
+
+    public DataPermissions getDataPermissions(int group) {
+        return DATA_PERMISSIONS[get(group)];
+    }
+
+    public TrailerPermissions getTrailerPermissions() {
+        return TRAILER_PERMISSIONS[get(3)];
+    }
+
+    public byte[] encode() {
+        int v = ENCODE[packed];
+        return new byte[] {(byte)(v >> 16), (byte)(v >> 8), (byte)v};
+    }
+
+    // write access bytes into trailer block data (bytes 6, 7 and 8)
+    public void writeTo(byte[] trailer) {
+        int v = ENCODE[packed];
+        trailer[6] = (byte)(v >> 16);
+        trailer[7] = (byte)(v >> 8);
+        trailer[8] = (byte)v;
+    }
+
+    // C1C2C3 of the group as string, e.g. "001"
+    public String getBits(int group) {
+        int c = get(group);
+        return new String(new char[] {
+            (c & 4) == 0 ? '0' : '1',
+            (c & 2) == 0 ? '0' : '1',
+            (c & 1) == 0 ? '0' : '1'
+        });
+    }
+
+    public boolean equals(Object o) {
+        return o instanceof AccessConditions && ((AccessConditions)o).packed == packed;
+    }
+
+    public int hashCode() {
+        return packed;
+    }
+
+    public String toString() {
+        return String.format("%s %s %s %s", getBits(0), getBits(1), getBits(2), getBits(3));
+    }
+}
@@ -0,0 +1,117 @@
+package example06;
+
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+class AccessConditionsTest {
+    public static void main(String[] args) {
+        // testing method
+
+        System.out.println("--------------------");
+        System.out.println("Test 1: transport configuration");
+        try {
+            var ac = AccessConditions.decode((byte)0xFF, (byte)0x07, (byte)0x80);
+            check(ac.toString().equals("000 000 000 001"), ac.toString());
+            check(Util.hexify(ac.encode()).equals("FF 07 80"), Util.hexify(ac.encode()));
+        } catch (AccessConditions.InvalidAccessBitsException e) {
+            System.out.printf("FAILED: %s%n", e.getMessage());
+        }
+
+        System.out.println("--------------------");
+        System.out.println("Test 2: encode matches bit by bit reference for all conditions");
+        int failures = 0;
+        for (int packed=0; packed<4096; packed++) {
+            int[] c = {packed & 7, (packed >> 3) & 7, (packed >> 6) & 7, (packed >> 9) & 7};
+            var ac = AccessConditions.of(c[0], c[1], c[2], c[3]);
+            var bytes = ac.encode();
+            if (!java.util.Arrays.equals(bytes, referenceEncode(c))) {
+                failures++;
+                continue;
+            }
+            try {
+                if (!AccessConditions.decode(bytes[0], bytes[1], bytes[2]).equals(ac)) {
+                    failures++;
+                }
+            } catch (AccessConditions.InvalidAccessBitsException e) {
+                failures++;
+            }
+        }
+        check(failures == 0, String.format("%d mismatches", failures));
+
+        System.out.println("--------------------");
+        System.out.println("Test 3: every single flipped bit is rejected");
+        failures = 0;
+        var valid = AccessConditions.of(0b000, 0b111, 0b111, 0b001).encode();
+        for (int i=0; i<24; i++) {
+            var bytes = valid.clone();
+            bytes[i / 8] ^= 1 << (i % 8);
+            try {
+                AccessConditions.decode(bytes[0], bytes[1], bytes[2]);
+                failures++;
+            } catch (AccessConditions.InvalidAccessBitsException e) {
+                // expected
+            }
+        }
+        check(failures == 0, String.format("%d corrupted values accepted", failures));
+
+        System.out.println("--------------------");
+        System.out.println("Test 4: permissions");
+        var ac = AccessConditions.of(0b000, 0b110, 0b111, 0b011);
+        var p0 = ac.getDataPermissions(0);
+        var p1 = ac.getDataPermissions(1);
+        var p2 = ac.getDataPermissions(2);
+        var pt = ac.getTrailerPermissions();
+        check(p0.write.allows(0x60) && p0.write.allows(0x61), "group 0 must be writable with both keys");
+        check(p1.increment == AccessConditions.Access.KEY_B && p1.decrement == AccessConditions.Access.KEY_A_OR_B, "group 1 must be value block");
+        check(!p2.read.allows(0x60) && !p2.read.allows(0x61), "group 2 must not be readable");
+        check(pt.accessBitsWrite == AccessConditions.Access.KEY_B && pt.keyBRead == AccessConditions.Access.NEVER, "trailer must be managed with Key B");
+    }
+
+    private static void check(boolean passed, String message) {
+        if (passed) {
+            System.out.println("PASSED");
+        } else {
+            System.out.printf("FAILED: %s%n", message);
+        }
+    }
+
+    // straightforward encoding from MIFARE Classic datasheet, bit by bit
+    private static byte[] referenceEncode(int[] c) {
+        int b6 = 0;
+        int b7 = 0;
+        int b8 = 0;
+        for (int g=0; g<4; g++) {
+            int c1 = (c[g] >> 2) & 1;
+            int c2 = (c[g] >> 1) & 1;
+            int c3 = c[g] & 1;
+            b6 |= ((c1 ^ 1) << g) | ((c2 ^ 1) << (g + 4));
+            b7 |= ((c3 ^ 1) << g) | (c1 << (g + 4));
+            b8 |= (c2 << g) | (c3 << (g + 4));
+        }
+        return new byte[] {(byte)b6, (byte)b7, (byte)b8};
+    }
+}
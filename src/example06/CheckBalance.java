@@ -27,6 +27,7 @@ package example06;
  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 
+
 import java.util.List;
 import javax.smartcardio.*;
 import static java.util.Arrays.copyOfRange;
@@ -54,47 +55,13 @@ class CheckBalance {
             }
             terminal.waitForCardPresent(0);
 
-            // establish a connection to the card using autoselected protocol
-            Card card = terminal.connect("*");
-            CardChannel channel = card.getBasicChannel();
-
-            byte[] authenticateCommand = Util.toByteArray("FF 86 00 00 05 01 00 00 00 00");
-            byte[] readBinaryCommand = Util.toByteArray("FF B0 00 00 10");
-            byte firstBlock = (byte)(config.sector * 4);
-            ResponseAPDU answer;
-            byte[] data;
-
-            // load production Key B to cell 00
-            byte[] loadKeysCommand = Util.toByteArray("FF 82 00 00 06 " + config.prod_key_b);
-            answer = channel.transmit(new CommandAPDU(loadKeysCommand));
-            if (answer.getSW() != 0x9000) {
-                card.disconnect(false);
-                throw new Util.CardCheckFailedException("Failed to load Key B into terminal.");
-            }
-
-            // authenticate using Key B
-            authenticateCommand[7] = firstBlock;
-            authenticateCommand[8] = 0x61; 
-            answer = channel.transmit(new CommandAPDU(authenticateCommand));
-            if (answer.getSW() != 0x9000) {
-                card.disconnect(false);
-                throw new Util.CardCheckFailedException("Key B doesn't match.");
-            }
-
-            // read balance block data
-            readBinaryCommand[3] = firstBlock;
-            answer = channel.transmit(new CommandAPDU(readBinaryCommand));
-            if (answer.getSW() != 0x9000) {
-                card.disconnect(false);
-                throw new Util.CardCheckFailedException("Failed to read block with Key A.");
+            Session session = new Session(terminal, ProtocolCache.load());
+            try {
+                long balance = checkBalance(session.getTransport(), session.getGeometry(config), config);
+                System.out.printf("Card balance is: %d%n", balance);
+            } finally {
+                session.close();
             }
-            // take first 8 bytes
-            data = answer.getData();
-            data = copyOfRange(data, 0, 8);
-            long balance = Util.bytesToLong(data);
-            System.out.printf("Card balance is: %d%n", balance);
-
-            card.disconnect(false);
         } catch (Util.TerminalNotFoundException e) {
             System.out.println("No connected terminals.");
             System.exit(2);
@@ -106,4 +73,42 @@ class CheckBalance {
             System.exit(2);
         }
     }
+
+    // Read balance of the card.
+    public static long checkBalance(Transport transport, CardGeometry geometry, Util.Config config)
+        throws Util.CardCheckFailedException, CardException
+    {
+        byte[] authenticateCommand = Util.toByteArray("FF 86 00 00 05 01 00 00 00 00");
+        byte[] readBinaryCommand = Util.toByteArray("FF B0 00 00 10");
+        byte firstBlock = (byte)geometry.getFirstBlock(config.sector);
+
+        // load production Key B to cell 00
+        byte[] loadKeysCommand = Util.toByteArray("FF 82 00 00 06 " + config.prod_key_b);
+
+        // authenticate using Key B
+        authenticateCommand[7] = firstBlock;
+        authenticateCommand[8] = 0x61; 
+
+        // read balance block data
+        readBinaryCommand[3] = firstBlock;
+
+        Transport.Result result = transport.execute(new Transport.Sequence()
+            .add(new CommandAPDU(loadKeysCommand), 0x9000)
+            .add(new CommandAPDU(authenticateCommand), 0x9000)
+            .add(new CommandAPDU(readBinaryCommand), 0x9000));
+
+        switch (result.getFailedStep()) {
+        case 0:
+            throw new Util.CardCheckFailedException("Failed to load Key B into terminal.");
+        case 1:
+            throw new Util.CardCheckFailedException("Key B doesn't match.");
+        case 2:
+            throw new Util.CardCheckFailedException("Failed to read block with Key A.");
+        }
+
+        // take first 8 bytes
+        byte[] data = result.get(2).getData();
+        data = copyOfRange(data, 0, 8);
+        return Util.bytesToLong(data);
+    }
 }
@@ -27,16 +27,38 @@ package example06;
  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 
+import java.io.IOException;
+import java.nio.file.Path;
 import javax.smartcardio.*;
 import static java.util.Arrays.copyOfRange;
 
 
 // Checkout: withdraw a fixed sum each time card touches the terminal.
+//
+// Options:
+//   --record <file>  write APDU trace of all taps
+//   --replay <file>  run checkout on cards recorded in the trace, without a reader
 class Checkout {
     public static void main(String[] args) {
         // load project configuration data
         var config = Util.loadConfig();
 
+        String record = null;
+        String replay = null;
+        if (args.length == 2 && args[0].equals("--record")) {
+            record = args[1];
+        } else if (args.length == 2 && args[0].equals("--replay")) {
+            replay = args[1];
+        } else if (args.length != 0) {
+            System.out.println("Usage: Checkout [--record <file> | --replay <file>]");
+            System.exit(1);
+        }
+
+        if (replay != null) {
+            replay(config, replay);
+            return;
+        }
+
         try {
             var factory = TerminalFactory.getDefault();
             var terminals = factory.terminals().list();
@@ -49,78 +71,30 @@ class Checkout {
 
             System.out.printf("Checkout terminal%n=================%n");
 
-            var authenticateCommand = Util.toByteArray("FF 86 00 00 05 01 00 00 00 00");
-            var readBinaryCommand = Util.toByteArray("FF B0 00 00 10");
-            var updateBinaryCommand = Util.toByteArray("FF D6 00 00 10 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00");
-            var firstBlock = (byte)(config.sector * 4);
+            var session = new Session(terminal, ProtocolCache.load());
+            Trace.Writer traceWriter = null;
+            if (record != null) {
+                try {
+                    traceWriter = new Trace.Writer(Path.of(record));
+                } catch (IOException e) {
+                    System.out.printf("Cannot write trace: %s%n", e.getMessage());
+                    System.exit(1);
+                }
+                session.setTraceWriter(traceWriter);
+            }
 
             while (true) {
-                ResponseAPDU answer;
-                byte[] data;
-                byte[] command;
-
                 System.out.printf("Waiting for card... ");
                 terminal.waitForCardPresent(0);
 
                 try {
-                    // establish a connection to the card using autoselected protocol
-                    var card = terminal.connect("*");
-                    var channel = card.getBasicChannel();
-
-                    // load production Key B to cell 00
-                    var loadKeysCommand = Util.toByteArray("FF 82 00 00 06 " + config.prod_key_b);
-                    answer = channel.transmit(new CommandAPDU(loadKeysCommand));
-                    if (answer.getSW() != 0x9000) {
-                        card.disconnect(false);
-                        throw new Util.CardCheckFailedException("Failed to load Key B into terminal.");
-                    }
-
-                    // authenticate using Key B
-                    authenticateCommand[7] = firstBlock;
-                    authenticateCommand[8] = 0x61; 
-                    answer = channel.transmit(new CommandAPDU(authenticateCommand));
-                    if (answer.getSW() != 0x9000) {
-                        card.disconnect(false);
-                        throw new Util.CardCheckFailedException("Key B doesn't match.");
-                    }
-
-                    // read balance block data
-                    readBinaryCommand[3] = firstBlock;
-                    answer = channel.transmit(new CommandAPDU(readBinaryCommand));
-                    if (answer.getSW() != 0x9000) {
-                        card.disconnect(false);
-                        throw new Util.CardCheckFailedException("Failed to read block with Key A.");
-                    }
-                    // take first 8 bytes
-                    data = answer.getData();
-                    data = copyOfRange(data, 0, 8);
-                    long balance = Util.bytesToLong(data);
-
+                    long balance = checkout(session.getTransport(), session.getGeometry(config), config);
                     if (balance < config.ticket_price) {
                         System.out.printf("not enough funds: %d%n", balance);
                     } else {
                         long newBalance = balance - config.ticket_price;
-
-                        // create APDU by cloning updateBinaryCommand template, specify target
-                        // block address and copy data block
-                        byte[] newBalanceBytes = Util.longToBytes(newBalance);
-                        data = new byte[16];
-                        for (int i=0; i<8; i++) {
-                            data[i] = newBalanceBytes[i];
-                        }
-                        command = updateBinaryCommand.clone();
-                        command[3] = firstBlock;
-                        for (int i=0; i<16; i++) {
-                            command[5+i] = data[i];
-                        }
-                        answer = channel.transmit(new CommandAPDU(command));
-                        if (answer.getSW() != 0x9000) {
-                            card.disconnect(false);
-                            throw new Util.CardUpdateFailedException("Failed to update data block.");
-                        }
                         System.out.printf("success, new balance: %d, please remove card%n", newBalance);
                     }
-                    card.disconnect(false);
                 } catch (Util.CardCheckFailedException e) {
                     System.out.printf("failed, please remove card%n");
                     System.out.printf("Error: %s%n", e.getMessage());
@@ -132,6 +106,15 @@ class Checkout {
                     System.exit(2);
                 }
                 terminal.waitForCardAbsent(0);
+                // next card gets a new connection
+                session.close();
+                if (traceWriter != null) {
+                    try {
+                        traceWriter.flush();
+                    } catch (IOException e) {
+                        System.out.printf("Cannot write trace: %s%n", e.getMessage());
+                    }
+                }
             }
         } catch (Util.TerminalNotFoundException e) {
             System.out.println("No connected terminals.");
@@ -141,4 +124,99 @@ class Checkout {
             System.exit(2);
         }
     }
+
+    // Run checkout on every card of the trace as fast as possible.
+    private static void replay(Util.Config config, String fileName) {
+        try {
+            var connections = Trace.load(Path.of(fileName)).getConnections();
+            long startTime = System.nanoTime();
+            for (var connection: connections) {
+                var card = connection.newCard();
+                try {
+                    var geometry = Util.getGeometry(config, card);
+                    long balance = checkout(Transport.of(card.getBasicChannel()), geometry, config);
+                    if (balance < config.ticket_price) {
+                        System.out.printf("not enough funds: %d%n", balance);
+                    } else {
+                        System.out.printf("success, new balance: %d%n", balance - config.ticket_price);
+                    }
+                } catch (Util.CardCheckFailedException | Util.CardUpdateFailedException e) {
+                    System.out.printf("failed%n");
+                    System.out.printf("Error: %s%n", e.getMessage());
+                }
+                if (!card.isComplete()) {
+                    System.out.println("Replay: not all recorded commands were sent");
+                }
+            }
+            long elapsed = System.nanoTime() - startTime;
+            System.out.printf("Replayed %d taps in %.3f ms%n", connections.size(), elapsed / 1e6);
+        } catch (IOException e) {
+            System.out.printf("Cannot read trace: %s%n", e.getMessage());
+            System.exit(1);
+        } catch (CardException e) {
+            System.out.println("CardException: " + e.toString());
+            System.exit(2);
+        }
+    }
+
+    // Withdraw ticket price from card, returns balance before withdrawal. Balance is not
+    // changed if it is less than ticket price.
+    public static long checkout(Transport transport, CardGeometry geometry, Util.Config config)
+        throws Util.CardCheckFailedException, Util.CardUpdateFailedException, CardException
+    {
+        var authenticateCommand = Util.toByteArray("FF 86 00 00 05 01 00 00 00 00");
+        var readBinaryCommand = Util.toByteArray("FF B0 00 00 10");
+        var updateBinaryCommand = Util.toByteArray("FF D6 00 00 10 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00");
+        var firstBlock = (byte)geometry.getFirstBlock(config.sector);
+
+        // load production Key B to cell 00
+        var loadKeysCommand = Util.toByteArray("FF 82 00 00 06 " + config.prod_key_b);
+
+        // authenticate using Key B
+        authenticateCommand[7] = firstBlock;
+        authenticateCommand[8] = 0x61; 
+
+        // read balance block data
+        readBinaryCommand[3] = firstBlock;
+
+        // send all commands as one unit, update command is built from the read balance
+        var sequence = new Transport.Sequence()
+            .add(new CommandAPDU(loadKeysCommand), 0x9000)
+            .add(new CommandAPDU(authenticateCommand), 0x9000)
+            .add(new CommandAPDU(readBinaryCommand), 0x9000)
+            .add(responses -> {
+                long balance = readBalance(responses.get(2));
+                if (balance < config.ticket_price) {
+                    return null;
+                }
+                // create APDU by cloning updateBinaryCommand template, specify target
+                // block address and copy data block
+                var newBalanceBytes = Util.longToBytes(balance - config.ticket_price);
+                var command = updateBinaryCommand.clone();
+                command[3] = firstBlock;
+                for (int i=0; i<8; i++) {
+                    command[5+i] = newBalanceBytes[i];
+                }
+                return new CommandAPDU(command);
+            }, 0x9000);
+
+        var result = transport.execute(sequence);
+
+        switch (result.getFailedStep()) {
+        case 0:
+            throw new Util.CardCheckFailedException("Failed to load Key B into terminal.");
+        case 1:
+            throw new Util.CardCheckFailedException("Key B doesn't match.");
+        case 2:
+            throw new Util.CardCheckFailedException("Failed to read block with Key A.");
+        case 3:
+            throw new Util.CardUpdateFailedException("Failed to update data block.");
+        }
+        return readBalance(result.get(2));
+    }
+
+    // take first 8 bytes of balance block
+    private static long readBalance(ResponseAPDU answer) {
+        return Util.bytesToLong(copyOfRange(answer.getData(), 0, 8));
+    }
 }
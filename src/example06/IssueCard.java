@@ -58,14 +58,16 @@ class IssueCard {
             terminal.waitForCardPresent(0);
 
             System.out.printf("Checking card sector %d... ", config.sector);
-            // establish a connection to the card using autoselected protocol
-            var card = terminal.connect("*");
+            // establish a connection to the card, with protocol remembered for its ATR
+            var card = ProtocolCache.load().connect(terminal);
             CardChannel channel = card.getBasicChannel();
 
             var authenticateCommand = Util.toByteArray("FF 86 00 00 05 01 00 00 00 00");
             var readBinaryCommand = Util.toByteArray("FF B0 00 00 10");
             var updateBinaryCommand = Util.toByteArray("FF D6 00 00 10 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00");
-            var firstBlock = (byte)(config.sector * 4);
+            var geometry = Util.getGeometry(config, card);
+            var firstBlock = (byte)geometry.getFirstBlock(config.sector);
+            var trailerBlock = (byte)geometry.getTrailerBlock(config.sector);
             byte[] data;
             byte[] command;
 
@@ -80,7 +82,7 @@ class IssueCard {
             }
 
             // check Key A only: authenticate for the trailer block
-            authenticateCommand[7] = (byte)(firstBlock+3);
+            authenticateCommand[7] = trailerBlock;
             authenticateCommand[8] = 0x60;
             answer = channel.transmit(new CommandAPDU(authenticateCommand));
             if (answer.getSW() != 0x9000) {
@@ -89,22 +91,31 @@ class IssueCard {
             }
 
             // read trailer block data
-            readBinaryCommand[3] = (byte)(firstBlock+3);
+            readBinaryCommand[3] = trailerBlock;
             answer = channel.transmit(new CommandAPDU(readBinaryCommand));
             if (answer.getSW() != 0x9000) {
                 card.disconnect(false);
                 throw new Util.CardCheckFailedException("Failed to read block with Key A.");
             }
             // read trailer and check that we should be able to set both keys and change access 
-            readBinaryCommand[3] = (byte)(firstBlock+3);
+            readBinaryCommand[3] = trailerBlock;
             answer = channel.transmit(new CommandAPDU(readBinaryCommand));
             if (answer.getSW() != 0x9000) {
                 card.disconnect(false);
                 throw new Util.CardCheckFailedException("Failed to read trailer with Key A.");
             }
             var trailerData = answer.getData();
-            var accessBits = Util.decodeAccessBits(trailerData[6], trailerData[7], trailerData[8]);
-            if (!accessBits[3].equals("001")) {
+            AccessConditions accessConditions;
+            try {
+                accessConditions = AccessConditions.decode(trailerData[6], trailerData[7], trailerData[8]);
+            } catch (AccessConditions.InvalidAccessBitsException e) {
+                card.disconnect(false);
+                throw new Util.CardCheckFailedException(e.getMessage());
+            }
+            var trailerPermissions = accessConditions.getTrailerPermissions();
+            if (!trailerPermissions.keyAWrite.allows(0x60)
+                    || !trailerPermissions.keyBWrite.allows(0x60)
+                    || !trailerPermissions.accessBitsWrite.allows(0x60)) {
                 card.disconnect(false);
                 throw new Util.CardCheckFailedException("Access condition bits don't match.");
             }
@@ -141,16 +152,19 @@ class IssueCard {
             data[9] = (byte)0xFF;
 
             // calculate access conditions bytes
-            String[] accessConditionBits = {"000", "111", "111", "001"};
-            var ac = Util.encodeAccessBits(accessConditionBits);
-            data[6] = ac[0];
-            data[7] = ac[1];
-            data[8] = ac[2];
+            AccessConditions.of(0b000, 0b111, 0b111, 0b001).writeTo(data);
+            try {
+                AccessConditions.check(data);
+            } catch (AccessConditions.InvalidAccessBitsException e) {
+                // never write such trailer, it would block the sector forever
+                card.disconnect(false);
+                throw new Util.CardUpdateFailedException(e.getMessage());
+            }
 
             // create APDU by cloning updateBinaryCommand template, specify target
             // block address (trailer) and copy data block
             command = updateBinaryCommand.clone();
-            command[3] = (byte)(firstBlock+3);
+            command[3] = trailerBlock;
             for (int i=0; i<16; i++) {
                 command[5+i] = data[i];
             }
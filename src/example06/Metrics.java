@@ -0,0 +1,396 @@
+package example06;
+
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Transport metrics: latency of every APDU sent to a card.
+//
+// Latency histograms are kept per INS byte and per reader, status words are counted.
+// Recording only updates preallocated atomic counters, histograms are created when
+// the first command with such INS (or the first command in the reader) is sent.
+//
+// Metrics are published over JMX as example06:type=TransportMetrics. Set system
+// property transport.metrics.dump to a number of seconds to print them periodically:
+//
+//   java -Dtransport.metrics.dump=10 example06.Checkout
+public class Metrics {
+    // JMX view of metrics, latencies in microseconds
+    public interface MetricsMXBean {
+        String getReport();
+        long getTransmitsCount();
+        Map<String, Long> getCountsByIns();
+        Map<String, Double> getMedianMicrosByIns();
+        Map<String, Double> get99thPercentileMicrosByIns();
+        Map<String, Long> getCountsByReader();
+        Map<String, Double> getThroughputByReader();
+        Map<String, Long> getStatusWordCounts();
+        void reset();
+    }
+
+    // Log-linear histogram of nanosecond values, like HdrHistogram: every power of two
+    // is split into 16 buckets, so a value is known within 1/16 (6%).
+    public static class Histogram {
+        private static final int SUB_BUCKETS = 16;
+        // values up to 2^40 ns (18 minutes)
+        private static final long MAX_VALUE = (1L << 40) - 1;
+        private static final int SIZE = index(MAX_VALUE) + 1;
+
+        private final AtomicLongArray counts = new AtomicLongArray(SIZE);
+        private final AtomicLong totalCount = new AtomicLong();
+        private final AtomicLong totalValue = new AtomicLong();
+        private final AtomicLong maxValue = new AtomicLong();
+
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            } else if (value > MAX_VALUE) {
+                value = MAX_VALUE;
+            }
+            counts.incrementAndGet(index(value));
+            totalCount.incrementAndGet();
+            totalValue.addAndGet(value);
+            long max = maxValue.get();
+            while (value > max && !maxValue.compareAndSet(max, value)) {
+                max = maxValue.get();
+            }
+        }
+
+        public long getCount() {
+            return totalCount.get();
+        }
+
+        public long getMax() {
+            return maxValue.get();
+        }
+
+        public double getMean() {
+            long count = totalCount.get();
+            return count == 0 ? 0.0 : (double)totalValue.get() / count;
+        }
+
+        // highest value of the bucket where percentile falls
+        public long getPercentile(double percentile) {
+            long count = totalCount.get();
+            if (count == 0) {
+                return 0;
+            }
+            long target = Math.max(1, (long)Math.ceil(percentile / 100.0 * count));
+            long seen = 0;
+            for (int i=0; i<SIZE; i++) {
+                seen += counts.get(i);
+                if (seen >= target) {
+                    return Math.min(highestValue(i), getMax());
+                }
+            }
+            return getMax();
+        }
+
+        public void reset() {
+            for (int i=0; i<SIZE; i++) {
+                counts.set(i, 0);
+            }
+            totalCount.set(0);
+            totalValue.set(0);
+            maxValue.set(0);
+        }
+
+        // values below 2*SUB_BUCKETS have own bucket, above that the top 5 bits select it
+        private static int index(long value) {
+            if (value < 2 * SUB_BUCKETS) {
+                return (int)value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - 4;
+            return shift * SUB_BUCKETS + (int)(value >>> shift);
+        }
+
+        private static long highestValue(int index) {
+            if (index < 2 * SUB_BUCKETS) {
+                return index;
+            }
+            int shift = index / SUB_BUCKETS - 1;
+            long sub = SUB_BUCKETS + index % SUB_BUCKETS;
+            return ((sub + 1) << shift) - 1;
+        }
+    }
+
+    // Metrics of one reader.
+    public static class Reader {
+        private final String name;
+        private final Histogram latency = new Histogram();
+        private final AtomicLong bytesSent = new AtomicLong();
+        private final AtomicLong bytesReceived = new AtomicLong();
+        private final Metrics metrics;
+
+        Reader(String name, Metrics metrics) {
+            this.name = name;
+            this.metrics = metrics;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Histogram getLatency() {
+            return latency;
+        }
+
+        // Record one APDU exchange: INS of the command, data bytes both ways, status word
+        // and time spent in transmit.
+        public void record(int ins, int commandData, int responseData, int sw, long nanos) {
+            latency.record(nanos);
+            bytesSent.addAndGet(commandData);
+            bytesReceived.addAndGet(responseData);
+            metrics.record(ins, sw, nanos);
+        }
+
+        void reset() {
+            latency.reset();
+            bytesSent.set(0);
+            bytesReceived.set(0);
+        }
+    }
+
+    private static final Metrics instance = new Metrics();
+
+    private final AtomicReferenceArray<Histogram> byIns = new AtomicReferenceArray<Histogram>(256);
+    private final AtomicLongArray swCounts = new AtomicLongArray(0x10000);
+    private final ConcurrentHashMap<String, Reader> readers = new ConcurrentHashMap<String, Reader>();
+    private volatile long startTime = System.nanoTime();
+    private ScheduledExecutorService dumper = null;
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(instance.new View(),
+                new ObjectName(Metrics.class.getPackageName() + ":type=TransportMetrics"));
+        } catch (JMException e) {
+            System.err.printf("Transport metrics are not published over JMX: %s%n", e.getMessage());
+        }
+        var dumpPeriod = Integer.getInteger("transport.metrics.dump", 0);
+        if (dumpPeriod > 0) {
+            instance.startDump(dumpPeriod, System.out);
+        }
+    }
+
+    private Metrics() {
+    }
+
+    public static Metrics get() {
+        return instance;
+    }
+
+    // Metrics of the reader, the same object for the same name.
+    public Reader forReader(String name) {
+        return readers.computeIfAbsent(name, n -> new Reader(n, this));
+    }
+
+    // Latency of commands with this INS, null if there were none.
+    public Histogram getInsLatency(int ins) {
+        return byIns.get(ins & 0xFF);
+    }
+
+    public long getStatusWordCount(int sw) {
+        return swCounts.get(sw & 0xFFFF);
+    }
+
+    // Print report every period seconds on a daemon thread.
+    public synchronized void startDump(long periodSeconds, PrintStream out) {
+        if (dumper != null) {
+            return;
+        }
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            var t = new Thread(r, "metrics-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        dumper.scheduleAtFixedRate(() -> out.print(getReport()), periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stopDump() {
+        if (dumper != null) {
+            dumper.shutdown();
+            dumper = null;
+        }
+    }
+
+    public String getReport() {
+        var sb = new StringBuilder();
+        double uptime = (System.nanoTime() - startTime) / 1e9;
+        sb.append(String.format("Transport metrics for %.1f s, latency in us%n", uptime));
+        sb.append(String.format("INS      count      p50      p90      p99      max     mean%n"));
+        for (int ins=0; ins<256; ins++) {
+            var h = byIns.get(ins);
+            if (h != null && h.getCount() > 0) {
+                sb.append(String.format("%02X  %9d %s%n", ins, h.getCount(), formatLatency(h)));
+            }
+        }
+        sb.append(String.format("Reader                         count   APDU/s      p50      p90      p99      max     mean   sent received%n"));
+        for (var reader: sortedReaders()) {
+            var h = reader.latency;
+            sb.append(String.format("%-28s %7d %8.1f %s %6d %8d%n", reader.name, h.getCount(), h.getCount() / uptime,
+                formatLatency(h), reader.bytesSent.get(), reader.bytesReceived.get()));
+        }
+        sb.append(String.format("SW       count%n"));
+        for (int sw=0; sw<0x10000; sw++) {
+            long count = swCounts.get(sw);
+            if (count != 0) {
+                sb.append(String.format("%04X %9d%n", sw, count));
+            }
+        }
+        return sb.toString();
+    }
+
+    public void reset() {
+        for (int ins=0; ins<256; ins++) {
+            var h = byIns.get(ins);
+            if (h != null) {
+                h.reset();
+            }
+        }
+        for (int sw=0; sw<0x10000; sw++) {
+            swCounts.set(sw, 0);
+        }
+        for (var reader: readers.values()) {
+            reader.reset();
+        }
+        startTime = System.nanoTime();
+    }
+
+    private void record(int ins, int sw, long nanos) {
+        var h = byIns.get(ins & 0xFF);
+        if (h == null) {
+            // first command with this INS
+            byIns.compareAndSet(ins & 0xFF, null, new Histogram());
+            h = byIns.get(ins & 0xFF);
+        }
+        h.record(nanos);
+        swCounts.incrementAndGet(sw & 0xFFFF);
+    }
+
+    private List<Reader> sortedReaders() {
+        var list = new ArrayList<Reader>(readers.values());
+        list.sort((a, b) -> a.name.compareTo(b.name));
+        return list;
+    }
+
+    private static String formatLatency(Histogram h) {
+        return String.format("%8.1f %8.1f %8.1f %8.1f %8.1f",
+            h.getPercentile(50) / 1e3, h.getPercentile(90) / 1e3, h.getPercentile(99) / 1e3,
+            h.getMax() / 1e3, h.getMean() / 1e3);
+    }
+
+    private class View implements MetricsMXBean {
+        public String getReport() {
+            return Metrics.this.getReport();
+        }
+
+        public long getTransmitsCount() {
+            long count = 0;
+            for (var reader: readers.values()) {
+                count += reader.latency.getCount();
+            }
+            return count;
+        }
+
+        public Map<String, Long> getCountsByIns() {
+            var map = new LinkedHashMap<String, Long>();
+            for (int ins=0; ins<256; ins++) {
+                var h = byIns.get(ins);
+                if (h != null) {
+                    map.put(String.format("%02X", ins), h.getCount());
+                }
+            }
+            return map;
+        }
+
+        public Map<String, Double> getMedianMicrosByIns() {
+            return percentileByIns(50);
+        }
+
+        public Map<String, Double> get99thPercentileMicrosByIns() {
+            return percentileByIns(99);
+        }
+
+        public Map<String, Long> getCountsByReader() {
+            var map = new LinkedHashMap<String, Long>();
+            for (var reader: sortedReaders()) {
+                map.put(reader.name, reader.latency.getCount());
+            }
+            return map;
+        }
+
+        public Map<String, Double> getThroughputByReader() {
+            double uptime = (System.nanoTime() - startTime) / 1e9;
+            var map = new LinkedHashMap<String, Double>();
+            for (var reader: sortedReaders()) {
+                map.put(reader.name, reader.latency.getCount() / uptime);
+            }
+            return map;
+        }
+
+        public Map<String, Long> getStatusWordCounts() {
+            var map = new LinkedHashMap<String, Long>();
+            for (int sw=0; sw<0x10000; sw++) {
+                long count = swCounts.get(sw);
+                if (count != 0) {
+                    map.put(String.format("%04X", sw), count);
+                }
+            }
+            return map;
+        }
+
+        public void reset() {
+            Metrics.this.reset();
+        }
+
+        private Map<String, Double> percentileByIns(double percentile) {
+            var map = new LinkedHashMap<String, Double>();
+            for (int ins=0; ins<256; ins++) {
+                var h = byIns.get(ins);
+                if (h != null) {
+                    map.put(String.format("%02X", ins), h.getPercentile(percentile) / 1e3);
+                }
+            }
+            return map;
+        }
+    }
+}
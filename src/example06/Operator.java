@@ -0,0 +1,169 @@
+package example06;
+
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import javax.smartcardio.*;
+
+// Operator desk: run balance operations one after another on the card in the
+// terminal. Card stays connected between operations while it is in the reader.
+//
+// Commands:
+//   balance        show card balance
+//   topup <amount> add funds
+//   checkout       withdraw ticket price
+//   stats          connection statistics
+//   quit
+class Operator {
+    public static void main(String[] args) {
+        // load project configuration data
+        var config = Util.loadConfig();
+
+        try {
+            var factory = TerminalFactory.getDefault();
+            var terminals = factory.terminals().list();
+
+            if (terminals.size() == 0) {
+                throw new Util.TerminalNotFoundException();
+            }
+
+            var terminal = terminals.get(0);
+
+            System.out.printf("Operator desk%n=============%n");
+            System.out.println("Commands: balance, topup <amount>, checkout, stats, quit");
+
+            var protocolCache = ProtocolCache.load();
+            var session = new Session(terminal, protocolCache);
+            var in = new BufferedReader(new InputStreamReader(System.in));
+            while (true) {
+                System.out.printf("> ");
+                var line = in.readLine();
+                if (line == null) {
+                    break;
+                }
+                var words = line.trim().split("\\s+");
+                if (words[0].isEmpty()) {
+                    continue;
+                }
+                if (words[0].equals("quit")) {
+                    break;
+                }
+                if (words[0].equals("stats")) {
+                    System.out.println(session.getStatistics());
+                    System.out.println(protocolCache.getStatistics());
+                    if (session.isConnected()) {
+                        System.out.println(Transport.of(session.getCard().getBasicChannel()).getStatistics());
+                    }
+                    System.out.print(Metrics.get().getReport());
+                    continue;
+                }
+                runCommand(session, config, words);
+            }
+            session.close();
+        } catch (Util.TerminalNotFoundException e) {
+            System.out.println("No connected terminals.");
+            System.exit(2);
+        } catch (CardException e) {
+            System.out.println("CardException: " + e.toString());
+            System.exit(2);
+        } catch (IOException e) {
+            System.out.println("IOException: " + e.toString());
+            System.exit(2);
+        }
+    }
+
+    private static void runCommand(Session session, Util.Config config, String[] words) {
+        int funds = 0;
+        switch (words[0]) {
+        case "balance":
+        case "checkout":
+            break;
+        case "topup":
+            try {
+                funds = words.length == 2 ? Integer.decode(words[1]) : 0;
+            } catch (NumberFormatException e) {
+                // checked below
+            }
+            if (funds <= 0) {
+                System.out.println("Amount of funds must be a positive integer value.");
+                return;
+            }
+            break;
+        default:
+            System.out.printf("Unknown command: %s%n", words[0]);
+            return;
+        }
+
+        try {
+            var terminal = session.getTerminal();
+            if (!terminal.isCardPresent()) {
+                System.out.println("Please place a card on the terminal.");
+                terminal.waitForCardPresent(0);
+            }
+
+            long connects = session.getConnectsCount();
+            long startTime = System.nanoTime();
+            var transport = session.getTransport();
+            var geometry = session.getGeometry(config);
+
+            switch (words[0]) {
+            case "balance":
+                System.out.printf("Card balance is: %d%n", CheckBalance.checkBalance(transport, geometry, config));
+                break;
+            case "topup":
+                System.out.printf("New balance is: %d%n", TopUpBalance.topUp(transport, geometry, config, funds));
+                break;
+            case "checkout":
+                long balance = Checkout.checkout(transport, geometry, config);
+                if (balance < config.ticket_price) {
+                    System.out.printf("Not enough funds: %d%n", balance);
+                } else {
+                    System.out.printf("New balance is: %d%n", balance - config.ticket_price);
+                }
+                break;
+            }
+
+            long elapsed = System.nanoTime() - startTime;
+            if (session.getConnectsCount() != connects) {
+                System.out.printf("(%.1f ms, connect %.1f ms)%n", elapsed / 1e6, session.getLastConnectNanos() / 1e6);
+            } else {
+                System.out.printf("(%.1f ms, connection reused)%n", elapsed / 1e6);
+            }
+        } catch (Util.CardCheckFailedException e) {
+            System.out.printf("Error: %s%n", e.getMessage());
+        } catch (Util.CardUpdateFailedException e) {
+            System.out.printf("Error: %s%n", e.getMessage());
+        } catch (CardException e) {
+            // card removed during operation or communication failed, connect again next time
+            session.invalidate();
+            System.out.println("CardException: " + e.toString());
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package example06;
+
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Properties;
+import javax.smartcardio.*;
+
+// Protocol negotiation cache.
+//
+// connect("*") lets PC/SC pick the protocol on every tap. The cache remembers which
+// protocol each card type (ATR) ended up with and the ATR of the last card in each
+// reader. Next connect in that reader asks for the remembered protocol explicitly;
+// if it fails, e.g. another card type was placed, connect falls back to "*".
+//
+// Cache is stored in a properties file:
+//   atr.<ATR hex>=T=1
+//   reader.<terminal name>=<ATR hex>
+class ProtocolCache {
+    public static final String DEFAULT_FILE = "protocols.properties";
+
+    private final String fileName;
+    // ATR -> protocol
+    private final HashMap<String, String> protocols = new HashMap<String, String>();
+    // terminal name -> ATR of the last card
+    private final HashMap<String, String> readers = new HashMap<String, String>();
+
+    // statistics
+    private long wildcardCount = 0;
+    private long wildcardNanos = 0;
+    private long pinnedCount = 0;
+    private long pinnedNanos = 0;
+    private long fallbackCount = 0;
+
+    private ProtocolCache(String fileName) {
+        this.fileName = fileName;
+    }
+
+    // Load cache from file, missing or unreadable file gives empty cache.
+    public static ProtocolCache load(String fileName) {
+        var cache = new ProtocolCache(fileName);
+        var props = new Properties();
+        try (var in = new FileInputStream(fileName)) {
+            props.load(in);
+        } catch (IOException e) {
+            return cache;
+        }
+        for (var key: props.stringPropertyNames()) {
+            var value = props.getProperty(key);
+            if (key.startsWith("atr.")) {
+                cache.protocols.put(key.substring(4), value);
+            } else if (key.startsWith("reader.")) {
+                cache.readers.put(key.substring(7), value);
+            }
+        }
+        return cache;
+    }
+
+    public static ProtocolCache load() {
+        return load(DEFAULT_FILE);
+    }
+
+    // Connect card in the terminal, with remembered protocol if the reader has a hint.
+    public synchronized Card connect(CardTerminal terminal) throws CardException {
+        var hint = readers.get(terminal.getName());
+        var protocol = hint == null ? null : protocols.get(hint);
+
+        Card card = null;
+        boolean pinned = false;
+        if (protocol != null) {
+            long startTime = System.nanoTime();
+            try {
+                card = terminal.connect(protocol);
+                pinnedNanos += System.nanoTime() - startTime;
+                pinnedCount++;
+                pinned = true;
+            } catch (CardNotPresentException e) {
+                throw e;
+            } catch (CardException e) {
+                // card of other type doesn't support the protocol
+                fallbackCount++;
+            } catch (IllegalArgumentException e) {
+                // unknown protocol name, the cache file is corrupted: drop the entry,
+                // it is saved with the protocol negotiated below
+                protocols.remove(hint);
+                fallbackCount++;
+            }
+        }
+        if (card == null) {
+            long startTime = System.nanoTime();
+            card = terminal.connect("*");
+            wildcardNanos += System.nanoTime() - startTime;
+            wildcardCount++;
+        }
+
+        // card of another type may accept the pinned protocol too, then it isn't known
+        // to be the protocol PC/SC would pick for that type: remember only the reader hint
+        var atr = atrKey(card.getATR());
+        boolean negotiated = !pinned || atr.equals(hint);
+        remember(terminal.getName(), atr, negotiated ? card.getProtocol() : null);
+        return card;
+    }
+
+    // Protocol used by cards with this ATR, null if unknown.
+    public synchronized String getProtocol(ATR atr) {
+        return protocols.get(atrKey(atr));
+    }
+
+    public synchronized String getStatistics() {
+        return String.format("wildcard connects: %d (%.1f ms average), pinned connects: %d (%.1f ms average), fallbacks: %d",
+            wildcardCount, wildcardCount == 0 ? 0.0 : wildcardNanos / 1e6 / wildcardCount,
+            pinnedCount, pinnedCount == 0 ? 0.0 : pinnedNanos / 1e6 / pinnedCount,
+            fallbackCount);
+    }
+
+    private static String atrKey(ATR atr) {
+        return Util.hexify(atr.getBytes()).replace(" ", "");
+    }
+
+    // Remember ATR of the last card in the reader and its protocol, unless it is null.
+    private void remember(String terminalName, String atr, String protocol) {
+        boolean changed = false;
+        if (protocol != null && !protocol.equals(protocols.get(atr))) {
+            protocols.put(atr, protocol);
+            changed = true;
+        }
+        if (!atr.equals(readers.get(terminalName))) {
+            readers.put(terminalName, atr);
+            changed = true;
+        }
+        if (changed) {
+            save();
+        }
+    }
+
+    // Write cache file, failure only costs negotiation on the next run.
+    private void save() {
+        var props = new Properties();
+        for (var entry: protocols.entrySet()) {
+            props.setProperty("atr." + entry.getKey(), entry.getValue());
+        }
+        for (var entry: readers.entrySet()) {
+            props.setProperty("reader." + entry.getKey(), entry.getValue());
+        }
+        try (var out = new FileOutputStream(fileName)) {
+            props.store(out, "Card protocols by ATR, written by example06 tools");
+        } catch (IOException e) {
+            System.out.printf("Cannot write protocol cache `%s`: %s%n", fileName, e.getMessage());
+        }
+    }
+}
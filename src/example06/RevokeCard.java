@@ -50,13 +50,15 @@ class RevokeCard {
             }
             terminal.waitForCardPresent(0);
 
-            // establish a connection to the card using autoselected protocol
-            var card = terminal.connect("*");
+            // establish a connection to the card, with protocol remembered for its ATR
+            var card = ProtocolCache.load().connect(terminal);
             var channel = card.getBasicChannel();
 
             var authenticateCommand = Util.toByteArray("FF 86 00 00 05 01 00 00 00 00");
             var updateBinaryCommand = Util.toByteArray("FF D6 00 00 10 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00");
-            var firstBlock = (byte)(config.sector * 4);
+            var geometry = Util.getGeometry(config, card);
+            var firstBlock = (byte)geometry.getFirstBlock(config.sector);
+            var trailerBlock = (byte)geometry.getTrailerBlock(config.sector);
             byte[] data;
             byte[] command;
 
@@ -71,7 +73,7 @@ class RevokeCard {
             }
 
             // check Key A only: authenticate for the trailer block
-            authenticateCommand[7] = (byte)(firstBlock+3);
+            authenticateCommand[7] = trailerBlock;
             authenticateCommand[8] = 0x60;
             answer = channel.transmit(new CommandAPDU(authenticateCommand));
             if (answer.getSW() != 0x9000) {
@@ -110,16 +112,19 @@ class RevokeCard {
             data[9] = (byte)0xFF;
 
             // calculate access conditions bytes
-            String[] accessConditionBits = {"000", "000", "000", "001"};
-            var ac = Util.encodeAccessBits(accessConditionBits);
-            data[6] = ac[0];
-            data[7] = ac[1];
-            data[8] = ac[2];
+            AccessConditions.of(0b000, 0b000, 0b000, 0b001).writeTo(data);
+            try {
+                AccessConditions.check(data);
+            } catch (AccessConditions.InvalidAccessBitsException e) {
+                // never write such trailer, it would block the sector forever
+                card.disconnect(false);
+                throw new Util.CardUpdateFailedException(e.getMessage());
+            }
 
             // create APDU by cloning updateBinaryCommand template, specify target
             // block address (trailer) and copy data block
             command = updateBinaryCommand.clone();
-            command[3] = (byte)(firstBlock+3);
+            command[3] = trailerBlock;
             for (int i=0; i<16; i++) {
                 command[5+i] = data[i];
             }
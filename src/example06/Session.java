@@ -0,0 +1,192 @@
+package example06;
+
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import javax.smartcardio.*;
+
+// Card session on one terminal.
+//
+// Keeps the card connected while it stays in the reader, so successive operations
+// reuse the connection instead of paying connect and protocol negotiation each time:
+//
+//   var session = new Session(terminal);
+//   CheckBalance.checkBalance(session.getTransport(), session.getGeometry(config), config);
+//   TopUpBalance.topUp(session.getTransport(), session.getGeometry(config), config, 100);
+//   session.close();
+//
+// Connection is dropped when the card is removed or an operation fails with
+// CardException, the next call connects again.
+class Session {
+    private final CardTerminal terminal;
+    // protocol negotiation cache, null to connect with "*"
+    private final ProtocolCache protocolCache;
+    // APDU trace of connected cards, null if not recorded
+    private Trace.Writer traceWriter = null;
+    private Card card = null;
+    private Transport transport = null;
+    private CardGeometry geometry = null;
+
+    // statistics
+    private long connectsCount = 0;
+    private long reconnectsCount = 0;
+    private long reusesCount = 0;
+    private long connectNanos = 0;
+    private long lastConnectNanos = 0;
+
+    public Session(CardTerminal terminal) {
+        this(terminal, null);
+    }
+
+    public Session(CardTerminal terminal, ProtocolCache protocolCache) {
+        this.terminal = terminal;
+        this.protocolCache = protocolCache;
+    }
+
+    public CardTerminal getTerminal() {
+        return terminal;
+    }
+
+    // Record APDUs of cards connected from now on.
+    public synchronized void setTraceWriter(Trace.Writer traceWriter) {
+        this.traceWriter = traceWriter;
+    }
+
+    // Transport of the connected card, connects if there is no live connection.
+    // Throws CardNotPresentException if there is no card in the terminal.
+    public synchronized Transport getTransport() throws CardException {
+        long connects = connectsCount;
+        connect();
+        if (connectsCount == connects) {
+            reusesCount++;
+        }
+        return transport;
+    }
+
+    public synchronized Card getCard() throws CardException {
+        connect();
+        return card;
+    }
+
+    // Card memory layout, detected once per connection.
+    public synchronized CardGeometry getGeometry(Util.Config config)
+        throws Util.CardCheckFailedException, CardException
+    {
+        var card = getCard();
+        if (geometry == null) {
+            try {
+                geometry = Util.getGeometry(config, card);
+            } catch (Util.CardCheckFailedException e) {
+                // card is disconnected on failed check
+                drop();
+                throw e;
+            }
+        }
+        return geometry;
+    }
+
+    public synchronized boolean isConnected() {
+        return card != null;
+    }
+
+    // Forget the connection after transmit error, next operation connects again.
+    public synchronized void invalidate() {
+        drop();
+    }
+
+    // Disconnect card.
+    public synchronized void close() {
+        drop();
+    }
+
+    public synchronized long getConnectsCount() {
+        return connectsCount;
+    }
+
+    public synchronized long getReconnectsCount() {
+        return reconnectsCount;
+    }
+
+    // getTransport() calls served by the already connected card
+    public synchronized long getReusesCount() {
+        return reusesCount;
+    }
+
+    public synchronized long getLastConnectNanos() {
+        return lastConnectNanos;
+    }
+
+    public synchronized String getStatistics() {
+        return String.format("connects: %d, reconnects: %d, reused: %d, last connect: %.1f ms, average connect: %.1f ms",
+            connectsCount, reconnectsCount, reusesCount, lastConnectNanos / 1e6,
+            connectsCount == 0 ? 0.0 : connectNanos / 1e6 / connectsCount);
+    }
+
+    private void connect() throws CardException {
+        if (card != null) {
+            if (terminal.isCardPresent()) {
+                return;
+            }
+            // card was removed since the last operation
+            drop();
+        }
+
+        long startTime = System.nanoTime();
+        if (protocolCache != null) {
+            card = protocolCache.connect(terminal);
+        } else {
+            // establish a connection to the card using autoselected protocol
+            card = terminal.connect("*");
+        }
+        lastConnectNanos = System.nanoTime() - startTime;
+        if (traceWriter != null) {
+            card = traceWriter.record(card);
+        }
+        connectNanos += lastConnectNanos;
+        if (connectsCount > 0) {
+            reconnectsCount++;
+        }
+        connectsCount++;
+        transport = Transport.of(card.getBasicChannel());
+        transport.setReaderName(terminal.getName());
+    }
+
+    private void drop() {
+        if (card == null) {
+            return;
+        }
+        transport.close();
+        try {
+            card.disconnect(false);
+        } catch (CardException e) {
+            // card is gone already
+        }
+        card = null;
+        transport = null;
+        geometry = null;
+    }
+}
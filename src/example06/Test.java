@@ -37,5 +37,6 @@ class Test {
         System.out.printf("Initial Key B: %s%n", config.initial_key_b);
         System.out.printf("Prod Key A: %s%n", config.prod_key_a);
         System.out.printf("Prod Key B: %s%n", config.prod_key_b);
+        System.out.printf("Card type: %s%n", config.card_type == null ? "detect from ATR" : config.card_type);
     }
 }
@@ -72,70 +72,13 @@ class TopUpBalance {
             }
             terminal.waitForCardPresent(0);
 
-            // establish a connection to the card using autoselected protocol
-            var card = terminal.connect("*");
-            var channel = card.getBasicChannel();
-
-            var authenticateCommand = Util.toByteArray("FF 86 00 00 05 01 00 00 00 00");
-            var readBinaryCommand = Util.toByteArray("FF B0 00 00 10");
-            var updateBinaryCommand = Util.toByteArray("FF D6 00 00 10 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00");
-            var firstBlock = (byte)(config.sector * 4);
-            ResponseAPDU answer;
-            byte[] data;
-            byte[] command;
-
-            // load production Key B to cell 00
-            var loadKeysCommand = Util.toByteArray("FF 82 00 00 06 " + config.prod_key_b);
-            answer = channel.transmit(new CommandAPDU(loadKeysCommand));
-            if (answer.getSW() != 0x9000) {
-                card.disconnect(false);
-                throw new Util.CardCheckFailedException("Failed to load Key B into terminal.");
+            var session = new Session(terminal, ProtocolCache.load());
+            try {
+                long newBalance = topUp(session.getTransport(), session.getGeometry(config), config, funds);
+                System.out.printf("New balance is: %d%n", newBalance);
+            } finally {
+                session.close();
             }
-
-            // authenticate using Key B
-            authenticateCommand[7] = firstBlock;
-            authenticateCommand[8] = 0x61; 
-            answer = channel.transmit(new CommandAPDU(authenticateCommand));
-            if (answer.getSW() != 0x9000) {
-                card.disconnect(false);
-                throw new Util.CardCheckFailedException("Key B doesn't match.");
-            }
-
-            // read balance block data
-            readBinaryCommand[3] = firstBlock;
-            answer = channel.transmit(new CommandAPDU(readBinaryCommand));
-            if (answer.getSW() != 0x9000) {
-                card.disconnect(false);
-                throw new Util.CardCheckFailedException("Failed to read block with Key A.");
-            }
-            // take first 8 bytes
-            data = answer.getData();
-            data = copyOfRange(data, 0, 8);
-            long balance = Util.bytesToLong(data);
-
-            long newBalance = balance + funds;
-
-            // create APDU by cloning updateBinaryCommand template, specify target
-            // block address and copy data block
-            var newBalanceBytes = Util.longToBytes(newBalance);
-            data = new byte[16];
-            for (int i=0; i<8; i++) {
-                data[i] = newBalanceBytes[i];
-            }
-            command = updateBinaryCommand.clone();
-            command[3] = firstBlock;
-            for (int i=0; i<16; i++) {
-                command[5+i] = data[i];
-            }
-            answer = channel.transmit(new CommandAPDU(command));
-            if (answer.getSW() != 0x9000) {
-                card.disconnect(false);
-                throw new Util.CardUpdateFailedException("Failed to update data block.");
-            }
-
-            System.out.printf("New balance is: %d%n", newBalance);
-
-            card.disconnect(false);
         } catch (Util.TerminalNotFoundException e) {
             System.out.println("No connected terminals.");
             System.exit(2);
@@ -150,4 +93,59 @@ class TopUpBalance {
             System.exit(2);
         }
     }
+
+    // Add funds to card balance, returns new balance.
+    public static long topUp(Transport transport, CardGeometry geometry, Util.Config config, int funds)
+        throws Util.CardCheckFailedException, Util.CardUpdateFailedException, CardException
+    {
+        var authenticateCommand = Util.toByteArray("FF 86 00 00 05 01 00 00 00 00");
+        var readBinaryCommand = Util.toByteArray("FF B0 00 00 10");
+        var updateBinaryCommand = Util.toByteArray("FF D6 00 00 10 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00");
+        var firstBlock = (byte)geometry.getFirstBlock(config.sector);
+
+        // load production Key B to cell 00
+        var loadKeysCommand = Util.toByteArray("FF 82 00 00 06 " + config.prod_key_b);
+
+        // authenticate using Key B
+        authenticateCommand[7] = firstBlock;
+        authenticateCommand[8] = 0x61; 
+
+        // read balance block data
+        readBinaryCommand[3] = firstBlock;
+
+        // update command is built from the read balance
+        var result = transport.execute(new Transport.Sequence()
+            .add(new CommandAPDU(loadKeysCommand), 0x9000)
+            .add(new CommandAPDU(authenticateCommand), 0x9000)
+            .add(new CommandAPDU(readBinaryCommand), 0x9000)
+            .add(responses -> {
+                long balance = readBalance(responses.get(2));
+                // create APDU by cloning updateBinaryCommand template, specify target
+                // block address and copy data block
+                var newBalanceBytes = Util.longToBytes(balance + funds);
+                var command = updateBinaryCommand.clone();
+                command[3] = firstBlock;
+                for (int i=0; i<8; i++) {
+                    command[5+i] = newBalanceBytes[i];
+                }
+                return new CommandAPDU(command);
+            }, 0x9000));
+
+        switch (result.getFailedStep()) {
+        case 0:
+            throw new Util.CardCheckFailedException("Failed to load Key B into terminal.");
+        case 1:
+            throw new Util.CardCheckFailedException("Key B doesn't match.");
+        case 2:
+            throw new Util.CardCheckFailedException("Failed to read block with Key A.");
+        case 3:
+            throw new Util.CardUpdateFailedException("Failed to update data block.");
+        }
+        return readBalance(result.get(2)) + funds;
+    }
+
+    // take first 8 bytes of balance block
+    private static long readBalance(ResponseAPDU answer) {
+        return Util.bytesToLong(copyOfRange(answer.getData(), 0, 8));
+    }
 }
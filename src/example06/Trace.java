@@ -0,0 +1,474 @@
+package example06;
+
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.smartcardio.*;
+
+// APDU trace: record command/response pairs of real cards and replay them.
+//
+// Recording wraps a card or a channel, all APDUs go to the real card and are
+// written to the trace file:
+//
+//   var writer = new Trace.Writer(Path.of("card.trace"));
+//   card = writer.record(terminal.connect("*"));
+//   ... use card.getBasicChannel() as usual ...
+//   writer.close();
+//
+// Replay serves the recorded responses in the same order, without a reader and at
+// full speed; a command that differs from the recorded one fails with CardException:
+//
+//   var card = Trace.load(Path.of("card.trace")).getConnections().get(0).newCard();
+//
+// File format, all numbers are unsigned LEB128 varints unless noted:
+//   magic "APDT", version (byte)
+//   connection: 'C', ATR length, ATR, protocol length, protocol (UTF-8)
+//   exchange:   'X', nanos since connection start, duration nanos,
+//               command length, command, response length, response
+// Exchanges belong to the last connection before them.
+class Trace {
+    private static final byte[] MAGIC = {'A', 'P', 'D', 'T'};
+    private static final int VERSION = 1;
+    private static final int CONNECTION = 'C';
+    private static final int EXCHANGE = 'X';
+
+    public static class Exchange {
+        public final long timeNanos;
+        public final long durationNanos;
+        public final byte[] command;
+        public final byte[] response;
+
+        Exchange(long timeNanos, long durationNanos, byte[] command, byte[] response) {
+            this.timeNanos = timeNanos;
+            this.durationNanos = durationNanos;
+            this.command = command;
+            this.response = response;
+        }
+    }
+
+    // Recorded card connection.
+    public static class Connection {
+        private final byte[] atr;
+        private final String protocol;
+        private final ArrayList<Exchange> exchanges = new ArrayList<Exchange>();
+
+        Connection(byte[] atr, String protocol) {
+            this.atr = atr;
+            this.protocol = protocol;
+        }
+
+        public ATR getATR() {
+            return new ATR(atr);
+        }
+
+        public String getProtocol() {
+            return protocol;
+        }
+
+        public List<Exchange> getExchanges() {
+            return Collections.unmodifiableList(exchanges);
+        }
+
+        // Card answering with recorded responses, every call gives a fresh card.
+        public ReplayCard newCard() {
+            return new ReplayCard(this, false);
+        }
+
+        // Same, but every response takes the recorded time.
+        public ReplayCard newRealtimeCard() {
+            return new ReplayCard(this, true);
+        }
+    }
+
+    private final ArrayList<Connection> connections;
+
+    private Trace(ArrayList<Connection> connections) {
+        this.connections = connections;
+    }
+
+    public List<Connection> getConnections() {
+        return Collections.unmodifiableList(connections);
+    }
+
+    public static Trace load(Path path) throws IOException {
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            var magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not an APDU trace file");
+            }
+            int version = in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException(String.format("Unsupported trace version: %d", version));
+            }
+
+            var connections = new ArrayList<Connection>();
+            Connection connection = null;
+            while (true) {
+                int type = in.read();
+                if (type == -1) {
+                    break;
+                }
+                if (type == CONNECTION) {
+                    var atr = readBytes(in);
+                    var protocol = new String(readBytes(in), StandardCharsets.UTF_8);
+                    connection = new Connection(atr, protocol);
+                    connections.add(connection);
+                } else if (type == EXCHANGE && connection != null) {
+                    long time = readVarint(in);
+                    long duration = readVarint(in);
+                    var command = readBytes(in);
+                    var response = readBytes(in);
+                    connection.exchanges.add(new Exchange(time, duration, command, response));
+                } else {
+                    throw new IOException(String.format("Broken trace file, record type %02X", type));
+                }
+            }
+            return new Trace(connections);
+        } catch (EOFException e) {
+            throw new IOException("Trace file is truncated");
+        }
+    }
+
+    // Writes trace of recorded cards and channels, thread safe.
+    public static class Writer implements AutoCloseable {
+        private final DataOutputStream out;
+
+        public Writer(Path path) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+        }
+
+        // Card with all channels recorded.
+        public Card record(Card card) throws CardException {
+            return new RecordingCard(card, this);
+        }
+
+        // Channel recorded, it still belongs to the original card.
+        public CardChannel record(CardChannel channel) throws CardException {
+            var card = channel.getCard();
+            return new Recorder(channel, card, this, startConnection(card));
+        }
+
+        // Write buffered records to the file, e.g. between card taps.
+        public synchronized void flush() throws IOException {
+            out.flush();
+        }
+
+        public synchronized void close() throws IOException {
+            out.close();
+        }
+
+        private synchronized long startConnection(Card card) throws CardException {
+            try {
+                out.writeByte(CONNECTION);
+                writeBytes(card.getATR().getBytes());
+                writeBytes(card.getProtocol().getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                throw new CardException("Cannot write trace", e);
+            }
+            return System.nanoTime();
+        }
+
+        private synchronized void writeExchange(long timeNanos, long durationNanos, byte[] command, byte[] response)
+            throws CardException
+        {
+            try {
+                out.writeByte(EXCHANGE);
+                writeVarint(timeNanos);
+                writeVarint(durationNanos);
+                writeBytes(command);
+                writeBytes(response);
+            } catch (IOException e) {
+                throw new CardException("Cannot write trace", e);
+            }
+        }
+
+        private void writeBytes(byte[] bytes) throws IOException {
+            writeVarint(bytes.length);
+            out.write(bytes);
+        }
+
+        private void writeVarint(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                out.writeByte((int)(value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte((int)value);
+        }
+    }
+
+    // Channel that writes every command/response pair to the trace.
+    public static class Recorder extends CardChannel {
+        private final CardChannel channel;
+        private final Card card;
+        private final Writer writer;
+        private final long startTime;
+
+        Recorder(CardChannel channel, Card card, Writer writer, long startTime) {
+            this.channel = channel;
+            this.card = card;
+            this.writer = writer;
+            this.startTime = startTime;
+        }
+
+        public Card getCard() {
+            return card;
+        }
+
+        public int getChannelNumber() {
+            return channel.getChannelNumber();
+        }
+
+        public ResponseAPDU transmit(CommandAPDU command) throws CardException {
+            long time = System.nanoTime();
+            var answer = channel.transmit(command);
+            long duration = System.nanoTime() - time;
+            writer.writeExchange(time - startTime, duration, command.getBytes(), answer.getBytes());
+            return answer;
+        }
+
+        public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+            var commandBytes = new byte[command.remaining()];
+            command.duplicate().get(commandBytes);
+            int position = response.position();
+            long time = System.nanoTime();
+            int n = channel.transmit(command, response);
+            long duration = System.nanoTime() - time;
+            var responseBytes = new byte[n];
+            var view = response.duplicate();
+            view.position(position);
+            view.get(responseBytes);
+            writer.writeExchange(time - startTime, duration, commandBytes, responseBytes);
+            return n;
+        }
+
+        public void close() throws CardException {
+            channel.close();
+        }
+    }
+
+    // Card whose channels are recorded.
+    private static class RecordingCard extends Card {
+        private final Card card;
+        private final Writer writer;
+        private final long startTime;
+        private final Recorder basicChannel;
+
+        RecordingCard(Card card, Writer writer) throws CardException {
+            this.card = card;
+            this.writer = writer;
+            this.startTime = writer.startConnection(card);
+            this.basicChannel = new Recorder(card.getBasicChannel(), this, writer, startTime);
+        }
+
+        public ATR getATR() {
+            return card.getATR();
+        }
+
+        public String getProtocol() {
+            return card.getProtocol();
+        }
+
+        public CardChannel getBasicChannel() {
+            return basicChannel;
+        }
+
+        public CardChannel openLogicalChannel() throws CardException {
+            return new Recorder(card.openLogicalChannel(), this, writer, startTime);
+        }
+
+        public void beginExclusive() throws CardException {
+            card.beginExclusive();
+        }
+
+        public void endExclusive() throws CardException {
+            card.endExclusive();
+        }
+
+        public byte[] transmitControlCommand(int controlCode, byte[] command) throws CardException {
+            return card.transmitControlCommand(controlCode, command);
+        }
+
+        public void disconnect(boolean reset) throws CardException {
+            card.disconnect(reset);
+        }
+    }
+
+    // Card answering commands from a recorded connection.
+    public static class ReplayCard extends Card {
+        private final Connection connection;
+        private final boolean realtime;
+        private final ReplayChannel channel = new ReplayChannel();
+        // next exchange to replay
+        private int position = 0;
+        private boolean connected = true;
+
+        ReplayCard(Connection connection, boolean realtime) {
+            this.connection = connection;
+            this.realtime = realtime;
+        }
+
+        // all recorded commands were replayed
+        public synchronized boolean isComplete() {
+            return position == connection.exchanges.size();
+        }
+
+        public ATR getATR() {
+            return connection.getATR();
+        }
+
+        public String getProtocol() {
+            return connection.getProtocol();
+        }
+
+        public CardChannel getBasicChannel() {
+            checkConnected();
+            return channel;
+        }
+
+        public CardChannel openLogicalChannel() throws CardException {
+            throw new CardException("Logical channels are not supported in replay");
+        }
+
+        public void beginExclusive() throws CardException {
+            checkConnected();
+        }
+
+        public void endExclusive() throws CardException {
+            checkConnected();
+        }
+
+        public byte[] transmitControlCommand(int controlCode, byte[] command) throws CardException {
+            throw new CardException("Control commands are not supported in replay");
+        }
+
+        public void disconnect(boolean reset) throws CardException {
+            connected = false;
+        }
+
+        private void checkConnected() {
+            if (!connected) {
+                throw new IllegalStateException("Card has been disconnected");
+            }
+        }
+
+        private synchronized byte[] replay(byte[] command) throws CardException {
+            checkConnected();
+            if (position == connection.exchanges.size()) {
+                throw new CardException(String.format("Replay: unexpected command after the end of trace: %s",
+                    hexify(command)));
+            }
+            var exchange = connection.exchanges.get(position);
+            if (!Arrays.equals(exchange.command, command)) {
+                throw new CardException(String.format("Replay: command %d differs, recorded %s, sent %s",
+                    position, hexify(exchange.command), hexify(command)));
+            }
+            position++;
+            if (realtime) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(exchange.durationNanos);
+                } catch (InterruptedException e) {
+                    throw new CardException("Interrupted while replaying");
+                }
+            }
+            return exchange.response;
+        }
+
+        private class ReplayChannel extends CardChannel {
+            public Card getCard() {
+                return ReplayCard.this;
+            }
+
+            public int getChannelNumber() {
+                return 0;
+            }
+
+            public ResponseAPDU transmit(CommandAPDU command) throws CardException {
+                return new ResponseAPDU(replay(command.getBytes()));
+            }
+
+            public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+                var commandBytes = new byte[command.remaining()];
+                command.get(commandBytes);
+                var responseBytes = replay(commandBytes);
+                response.put(responseBytes);
+                return responseBytes.length;
+            }
+
+            public void close() throws CardException {
+                throw new IllegalStateException("Basic channel cannot be closed");
+            }
+        }
+    }
+
+    private static String hexify(byte[] bytes) {
+        var sb = new StringBuilder();
+        for (var b: bytes) {
+            sb.append(String.format("%02X", b));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        long length = readVarint(in);
+        if (length > 0x10000 + 2) {
+            throw new IOException(String.format("Broken trace file, record length %d", length));
+        }
+        var bytes = new byte[(int)length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift=0; shift<64; shift+=7) {
+            int b = in.readUnsignedByte();
+            value |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Broken trace file, varint too long");
+    }
+}
@@ -33,6 +33,7 @@ import java.io.FileNotFoundException;
 import java.util.Properties;
 import static java.util.Arrays.copyOfRange;
 import java.util.ArrayList;
+import javax.smartcardio.*;
 
 // local utility class
 class Util {
@@ -56,6 +57,8 @@ class Util {
         public String initial_key_b;
         public String prod_key_a;
         public String prod_key_b;
+        // "mini", "1k", "4k" or null to detect from ATR
+        public String card_type;
     }
     public static Config loadConfig() 
     {
@@ -81,9 +84,44 @@ class Util {
         config.initial_key_b = props.getProperty("initial_key_b");
         config.prod_key_a = props.getProperty("prod_key_a");
         config.prod_key_b = props.getProperty("prod_key_b");
+        config.card_type = props.getProperty("card_type");
         return config;
     }
 
+    // Card memory layout from configuration or from card ATR, MIFARE Classic 1K if unknown.
+    // Checks that configured sector exists on the card.
+    public static CardGeometry getGeometry(Config config, Card card)
+        throws CardCheckFailedException, CardException
+    {
+        CardGeometry geometry = null;
+        if (config.card_type != null) {
+            switch (config.card_type.toLowerCase()) {
+            case "mini":
+                geometry = CardGeometry.MINI;
+                break;
+            case "1k":
+                geometry = CardGeometry.CLASSIC_1K;
+                break;
+            case "4k":
+                geometry = CardGeometry.CLASSIC_4K;
+                break;
+            default:
+                card.disconnect(false);
+                throw new CardCheckFailedException("Unknown card_type in configuration: " + config.card_type);
+            }
+        } else {
+            geometry = CardGeometry.fromATR(card.getATR().getBytes());
+            if (geometry == null) {
+                geometry = CardGeometry.CLASSIC_1K;
+            }
+        }
+        if (config.sector < 0 || config.sector >= geometry.getSectorsCount()) {
+            card.disconnect(false);
+            throw new CardCheckFailedException(String.format("%s has no sector %d.", geometry.getTitle(), config.sector));
+        }
+        return geometry;
+    }
+
     public static String hexify(byte[] bytes) {
         var bytesStrings = new ArrayList<String>(bytes.length);
         for (var b : bytes) {
@@ -115,107 +153,6 @@ class Util {
         return copyOfRange(buf, 0, bufLen);
     }
 
-    public static String[] decodeAccessBits(byte b6, byte b7, byte b8) {
-        String[] bits = {
-            decodeAccessBits(b6, b7, b8, 0),
-            decodeAccessBits(b6, b7, b8, 1),
-            decodeAccessBits(b6, b7, b8, 2),
-            decodeAccessBits(b6, b7, b8, 3)
-        };
-        return bits;
-    }
-
-    public static byte[] encodeAccessBits(String[] bits) {
-        // [
-        //   [C10, C20, C30],
-        //   [C11, C21, C31],
-        //   [C12, C22, C32],
-        //   [C13, C23, C33],
-        // ]
-        if (bits.length != 4) {
-            throw new AssertionError("Bits specs array length must be 4.");
-        }
-        byte b6 = 0;
-        byte b7 = 0;
-        byte b8 = 0;
-
-        b6 |= (bits[3].charAt(1)=='0'?1:0);
-        b6 <<= 1;
-        b6 |= (bits[2].charAt(1)=='0'?1:0);
-        b6 <<= 1;
-        b6 |= (bits[1].charAt(1)=='0'?1:0);
-        b6 <<= 1;
-        b6 |= (bits[0].charAt(1)=='0'?1:0);
-        b6 <<= 1;
-        b6 |= (bits[3].charAt(0)=='0'?1:0);
-        b6 <<= 1;
-        b6 |= (bits[2].charAt(0)=='0'?1:0);
-        b6 <<= 1;
-        b6 |= (bits[1].charAt(0)=='0'?1:0);
-        b6 <<= 1;
-        b6 |= (bits[0].charAt(0)=='0'?1:0);
-
-        b7 |= (bits[3].charAt(0)=='0'?0:1);
-        b7 <<= 1;
-        b7 |= (bits[2].charAt(0)=='0'?0:1);
-        b7 <<= 1;
-        b7 |= (bits[1].charAt(0)=='0'?0:1);
-        b7 <<= 1;
-        b7 |= (bits[0].charAt(0)=='0'?0:1);
-        b7 <<= 1;
-        b7 |= (bits[3].charAt(2)=='0'?1:0);
-        b7 <<= 1;
-        b7 |= (bits[2].charAt(2)=='0'?1:0);
-        b7 <<= 1;
-        b7 |= (bits[1].charAt(2)=='0'?1:0);
-        b7 <<= 1;
-        b7 |= (bits[0].charAt(2)=='0'?1:0);
-
-        b8 |= (bits[3].charAt(2)=='0'?0:1);
-        b8 <<= 1;
-        b8 |= (bits[2].charAt(2)=='0'?0:1);
-        b8 <<= 1;
-        b8 |= (bits[1].charAt(2)=='0'?0:1);
-        b8 <<= 1;
-        b8 |= (bits[0].charAt(2)=='0'?0:1);
-        b8 <<= 1;
-        b8 |= (bits[3].charAt(1)=='0'?0:1);
-        b8 <<= 1;
-        b8 |= (bits[2].charAt(1)=='0'?0:1);
-        b8 <<= 1;
-        b8 |= (bits[1].charAt(1)=='0'?0:1);
-        b8 <<= 1;
-        b8 |= (bits[0].charAt(1)=='0'?0:1);
-
-        byte[] bytes = {b6, b7, b8};
-        return bytes;
-    }
-
-    public static String decodeAccessBits(byte b6, byte b7, byte b8, int block) {
-        String bits = "";
-
-        switch (block) {
-        case 0:
-            bits += checkAccessBit(b7, 4) + checkAccessBit(b8, 0) + checkAccessBit(b8, 4);
-            break;
-        case 1:
-            bits += checkAccessBit(b7, 5) + checkAccessBit(b8, 1) + checkAccessBit(b8, 5);
-            break;
-        case 2:
-            bits += checkAccessBit(b7, 6) + checkAccessBit(b8, 2) + checkAccessBit(b8, 6);
-            break;
-        case 3:
-            bits += checkAccessBit(b7, 7) + checkAccessBit(b8, 3) + checkAccessBit(b8, 7);
-            break;
-        }
-
-        return bits;
-    }
-
-    public static String checkAccessBit(byte ab, int b) {
-        return ((ab >> b) & 1)==1 ? "1" : "0";
-    }
-
     public static byte[] longToBytes(long value) {
         var buf = new byte[8];
         for (int i = 7; i >= 0; i--) {
@@ -0,0 +1,315 @@
+package example07;
+
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.smartcardio.*;
+
+// SLE 4442 / SLE 5542 memory card through ACR38 pseudo-APDUs.
+//
+// read() takes the whole card into an Image: 256 bytes of main memory and the
+// protection bits of the first 32 bytes. write() brings the card to a desired image
+// with the fewest WRITE_MEMORY_CARD commands: one per run of adjacent changed bytes.
+// Unchanged bytes are never rewritten, every written byte costs an EEPROM cycle, and
+// write-protected bytes are skipped.
+//
+// PSC is presented only through writeWithPSC(): the error counter is read once per
+// connection, and PSC is not sent when fewer attempts are left than the guard allows,
+// so a wrong PSC in a bulk run can't lock the card. Reading the counter, presenting
+// PSC and writing go to the card as one transport sequence.
+class MemoryCard {
+    public static final int SIZE = 256;
+    // protection memory covers addresses 0x00-0x1F
+    public static final int PROTECTED_AREA = 32;
+    // READ/WRITE_MEMORY_CARD transfer at most 0xFF bytes
+    public static final int MAX_TRANSFER = 0xFF;
+
+    // Card memory contents.
+    public static class Image {
+        final byte[] data;
+        // bit N set: byte N can't be changed anymore (its protection bit was written to 0)
+        final int protectedMask;
+
+        Image(byte[] data, int protectedMask) {
+            this.data = data;
+            this.protectedMask = protectedMask;
+        }
+
+        public byte get(int address) {
+            return data[address];
+        }
+
+        // copy of main memory
+        public byte[] getData() {
+            return data.clone();
+        }
+
+        public boolean isProtected(int address) {
+            return address < PROTECTED_AREA && (protectedMask & (1 << address)) != 0;
+        }
+    }
+
+    // Bytes written by one WRITE_MEMORY_CARD command.
+    public static class Run {
+        public final int address;
+        public final byte[] data;
+
+        Run(int address, byte[] data) {
+            this.address = address;
+            this.data = data;
+        }
+
+        public CommandAPDU toCommand() {
+            // Instruction "9.3.6.5. WRITE_MEMORY_CARD"
+            // write data starting with address in "P2" field, field "P1" is ignored
+            return new CommandAPDU(0xFF, 0xD0, 0x00, address, data);
+        }
+    }
+
+    // Commands bringing card to the desired image.
+    public static class Plan {
+        public final List<Run> runs;
+        // addresses that differ but are write-protected
+        public final List<Integer> skipped;
+
+        Plan(List<Run> runs, List<Integer> skipped) {
+            this.runs = runs;
+            this.skipped = skipped;
+        }
+
+        public int getBytesCount() {
+            int count = 0;
+            for (var run: runs) {
+                count += run.data.length;
+            }
+            return count;
+        }
+    }
+
+    // error counter value with all 3 PSC attempts left
+    public static final int EC_FULL = 0x07;
+
+    private final Transport transport;
+    // error counter read from this connection, -1 if not read yet
+    private int errorCounter = -1;
+
+    public MemoryCard(Transport transport) {
+        this.transport = transport;
+        // reader limits for memory card commands, the card has no ATR capabilities
+        transport.setCapabilities(new Transport.Capabilities(false, false, MAX_TRANSFER, MAX_TRANSFER));
+    }
+
+    // Switch reader to SLE 4432/4442/5532/5542 mode.
+    public void selectCardType() throws Util.CardCheckFailedException, CardException {
+        // Instruction "9.3.6.1. SELECT_CARD_TYPE"
+        // write 1 (in "Lc" field) byte, 06 (in DATA block) indicates card type
+        // fields "P1" and "P2" are ignored
+        //                                          INS P1  P2  Lc  DATA
+        var selectCommand = Util.toByteArray("FF A4  00  00  01  06");
+        var answer = transport.transmit(new CommandAPDU(selectCommand));
+        if (answer.getSW() != 0x9000) {
+            throw new Util.CardCheckFailedException("Select failed");
+        }
+    }
+
+    // Read main memory and protection bits.
+    public Image read() throws Util.CardCheckFailedException, CardException {
+        // Instruction "9.3.6.2. READ_MEMORY_CARD"
+        // up to 0xFF (in "Le" field) bytes starting with address in "P2" field
+        // field "P1" is ignored
+        var answer = transport.read((offset, length) -> new CommandAPDU(0xFF, 0xB0, 0x00, offset, length), SIZE);
+        if (answer.getSW() != 0x9000 || answer.getNr() != SIZE) {
+            throw new Util.CardCheckFailedException("Cannot read card data");
+        }
+        var data = answer.getData();
+
+        // Instruction "9.3.6.4. READ_PROTECTION_BITS"
+        // read 0x04 (in "Le" field) bytes of Protection memory
+        // fields "P1" and "P2" are ignored
+        //                                            INS P1  P2  Le
+        var readPROMCommand = Util.toByteArray("FF B2  00  00  04");
+        answer = transport.transmit(new CommandAPDU(readPROMCommand));
+        if (answer.getSW() != 0x9000 || answer.getNr() != 4) {
+            throw new Util.CardCheckFailedException("Cannot read protection memory data");
+        }
+        // bit 0 of the first byte is address 0, bit value 0 means protected
+        var prb = answer.getData();
+        int bits = (prb[0] & 0xFF) | (prb[1] & 0xFF) << 8 | (prb[2] & 0xFF) << 16 | (prb[3] & 0xFF) << 24;
+        return new Image(data, ~bits);
+    }
+
+    // PSC attempts left for error counter value: one bit per attempt.
+    public static int getAttempts(int errorCounter) {
+        return Integer.bitCount(errorCounter & EC_FULL);
+    }
+
+    // Error counter, read from the card once per connection.
+    public int getErrorCounter() throws Util.CardCheckFailedException, CardException {
+        if (errorCounter == -1) {
+            var answer = transport.transmit(readErrorCounterCommand());
+            if (answer.getSW() != 0x9000 || answer.getNr() < 1) {
+                throw new Util.CardCheckFailedException("Cannot read security memory data");
+            }
+            errorCounter = answer.getData()[0] & 0xFF;
+        }
+        return errorCounter;
+    }
+
+    // Present PSC if at least minAttempts are left and write planned runs, all as one
+    // sequence. Error counter is read in the same sequence unless known already.
+    public void writeWithPSC(Image current, Plan plan, byte[] psc, int minAttempts)
+        throws Util.CardCheckFailedException, Util.CardUpdateFailedException, CardException
+    {
+        if (plan.runs.isEmpty()) {
+            return;
+        }
+        if (errorCounter != -1 && getAttempts(errorCounter) < minAttempts) {
+            throw new Util.CardCheckFailedException(String.format(
+                "PSC not presented: %d attempts left", getAttempts(errorCounter)));
+        }
+
+        var sequence = new Transport.Sequence();
+        boolean readCounter = errorCounter == -1;
+        if (readCounter) {
+            sequence.add(readErrorCounterCommand(), 0x9000);
+        }
+        int pscStep = sequence.size();
+        sequence.add(responses -> {
+            if (readCounter) {
+                var data = responses.get(0).getData();
+                if (data.length < 1 || getAttempts(data[0]) < minAttempts) {
+                    // stop before PSC
+                    return null;
+                }
+            }
+            // Instruction "9.3.6.7. PRESENT_CODE_MEMORY_CARD (SLE 4442 and SLE 5542)"
+            // field "P1" is ignored, SW2 is the new error counter
+            return new CommandAPDU(0xFF, 0x20, 0x00, 0x00, psc);
+        }, 0x9000 | EC_FULL);
+        for (var run: plan.runs) {
+            sequence.add(run.toCommand(), 0x9000);
+        }
+
+        var result = transport.execute(sequence);
+        var responses = result.getResponses();
+        if (readCounter) {
+            if (responses.get(0).getSW() != 0x9000 || responses.get(0).getNr() < 1) {
+                throw new Util.CardCheckFailedException("Cannot read security memory data");
+            }
+            errorCounter = responses.get(0).getData()[0] & 0xFF;
+        }
+        if (responses.size() == pscStep) {
+            throw new Util.CardCheckFailedException(String.format(
+                "PSC not presented: %d attempts left", getAttempts(errorCounter)));
+        }
+        var pscAnswer = responses.get(pscStep);
+        if (pscAnswer.getSW1() == 0x90) {
+            errorCounter = pscAnswer.getSW2();
+        }
+        if (pscAnswer.getSW() != (0x9000 | EC_FULL)) {
+            throw new Util.CardCheckFailedException(String.format(
+                "PSC auth failed: %04X, %d attempts left", pscAnswer.getSW(), getAttempts(errorCounter)));
+        }
+
+        // keep image in sync with what was actually written
+        int firstRun = pscStep + 1;
+        int written = result.isSuccess() ? plan.runs.size() : result.getFailedStep() - firstRun;
+        updateImage(current, plan, written);
+        if (!result.isSuccess()) {
+            var run = plan.runs.get(written);
+            throw new Util.CardUpdateFailedException(String.format("Write of %d bytes at 0x%02X failed: %04X",
+                run.data.length, run.address, result.get(result.getFailedStep()).getSW()));
+        }
+    }
+
+    // Runs of adjacent bytes that differ from the card, protected bytes split runs.
+    public static Plan plan(Image current, byte[] desired) {
+        if (desired.length != SIZE) {
+            throw new IllegalArgumentException("Image must be 256 bytes long");
+        }
+        var runs = new ArrayList<Run>();
+        var skipped = new ArrayList<Integer>();
+        int start = -1;
+        for (int address=0; address<=SIZE; address++) {
+            boolean write = false;
+            if (address < SIZE && current.data[address] != desired[address]) {
+                if (current.isProtected(address)) {
+                    skipped.add(address);
+                } else {
+                    write = true;
+                }
+            }
+            if (write && start == -1) {
+                start = address;
+            }
+            // close run at unchanged or protected byte, and at transfer limit
+            if (start != -1 && (!write || address - start == MAX_TRANSFER)) {
+                runs.add(new Run(start, Arrays.copyOfRange(desired, start, address)));
+                start = write ? address : -1;
+            }
+        }
+        return new Plan(runs, skipped);
+    }
+
+    // Write planned runs as one sequence, card image is updated with written bytes.
+    // PSC must be presented before.
+    public void write(Image current, Plan plan) throws Util.CardUpdateFailedException, CardException {
+        if (plan.runs.isEmpty()) {
+            return;
+        }
+        var sequence = new Transport.Sequence();
+        for (var run: plan.runs) {
+            sequence.add(run.toCommand(), 0x9000);
+        }
+        var result = transport.execute(sequence);
+        // keep image in sync with what was actually written
+        int written = result.isSuccess() ? plan.runs.size() : result.getFailedStep();
+        updateImage(current, plan, written);
+        if (!result.isSuccess()) {
+            var run = plan.runs.get(result.getFailedStep());
+            throw new Util.CardUpdateFailedException(String.format("Write of %d bytes at 0x%02X failed: %04X",
+                run.data.length, run.address, result.get(result.getFailedStep()).getSW()));
+        }
+    }
+
+    private static void updateImage(Image image, Plan plan, int runsCount) {
+        for (int i=0; i<runsCount; i++) {
+            var run = plan.runs.get(i);
+            System.arraycopy(run.data, 0, image.data, run.address, run.data.length);
+        }
+    }
+
+    private static CommandAPDU readErrorCounterCommand() {
+        // Instruction "9.3.6.3. READ_PRESENTATION_ERROR_COUNTER_MEMORY_CARD (SLE 4442 and SLE 5542)"
+        // read 0x04 (in "Le" field) bytes of Security memory (only EC value is returned)
+        // fields "P1" and "P2" are ignored
+        return new CommandAPDU(0xFF, 0xB1, 0x00, 0x00, 4);
+    }
+}
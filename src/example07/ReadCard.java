@@ -30,10 +30,22 @@ package example07;
 
 import javax.smartcardio.*;
 
+// Read card: dump main memory, protection bits and error counter.
+//
+// Usage: ReadCard [--simulate [latency in microseconds]]
+// With --simulate an emulated SLE4442 card is used instead of a real reader.
 class ReadCard {
     public static void main(String[] args) {
+        Simulator.Terminal simulated = null;
         try {
-            var factory = TerminalFactory.getDefault();
+            simulated = WriteCard.parseSimulate(args, 0);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Usage: ReadCard [--simulate [latency in microseconds]]");
+            System.exit(1);
+        }
+
+        try {
+            var factory = simulated == null ? TerminalFactory.getDefault() : Simulator.newFactory(simulated);
             var terminals = factory.terminals().list();
 
             if (terminals.size() == 0) {
@@ -54,102 +66,43 @@ class ReadCard {
             // obtain logical channel
             var channel = card.getBasicChannel();
 
-            ResponseAPDU answer;
-
-            // Instruction "9.3.6.1. SELECT_CARD_TYPE"
-            // write 1 (in "Lc" field) byte, 06 (in DATA block) indicates card type
-            // fields "P1" and "P2" are ignored
-            //                                          INS P1  P2  Lc  DATA
-            var selectCommand = Util.toByteArray("FF A4  00  00  01  06");
-            answer = channel.transmit(new CommandAPDU(selectCommand));
-            if (answer.getSW() != 0x9000) {
-                card.disconnect(false);
-                throw new Util.CardCheckFailedException("Select failed");
-            }
-
-            // Instruction "9.3.6.2. READ_MEMORY_CARD"
-            // Read all 256 bytes in two passes.
-            // First read 32=0x20 (in "Le" field) bytes starting with address 0x00 (in "P2" field)
-            // field "P1" is ignored
-            //                                            INS P1  P2  Le
-            var readCardCommand = Util.toByteArray("FF B0  00  00  20");
-            answer = channel.transmit(new CommandAPDU(readCardCommand));
-            if (answer.getSW() != 0x9000) {
+            var transport = Transport.of(channel);
+            transport.setReaderName(terminal.getName());
+            var memoryCard = new MemoryCard(transport);
+
+            // read all 256 bytes, protection bits and error counter
+            MemoryCard.Image image;
+            int errorCounter;
+            try {
+                memoryCard.selectCardType();
+                image = memoryCard.read();
+                errorCounter = memoryCard.getErrorCounter();
+            } catch (Util.CardCheckFailedException e) {
                 card.disconnect(false);
-                throw new Util.CardCheckFailedException("Cannot read card data");
-            }
-            var EEPROMData1 = answer.getData();
-
-            // Then read remaining 224=0xE0 (in "Le" field) bytes starting with address 0x20 (in "P2" field)
-            // field "P1" is ignored
-            //                                     INS P1  P2  Le
-            readCardCommand = Util.toByteArray("FF B0  00  20  E0");
-            answer = channel.transmit(new CommandAPDU(readCardCommand));
-            if (answer.getSW() != 0x9000) {
-                card.disconnect(false);
-                throw new Util.CardCheckFailedException("Cannot read card data");
-            }
-            var EEPROMData2 = answer.getData();
-
-            var EEPROMData = new byte[256];
-            for (int i=0; i<32; i++) {
-                EEPROMData[i] = EEPROMData1[i];
-            }
-            for (int i=0; i<224; i++) {
-                EEPROMData[32+i] = EEPROMData2[i];
+                throw e;
             }
 
             System.out.printf("EEPROM memory:%n");
             for (int i=0; i<8; i++) {
                 for (int j=0; j<32; j++) {
                     int addr = (i*32) + j;
-                    System.out.printf("%02X ", EEPROMData[addr]);
+                    System.out.printf("%02X ", image.get(addr));
                 }
                 System.out.printf("%n");
             }
 
-            // Instruction "9.3.6.4. READ_PROTECTION_BITS"
-            // read 0x04 (in "Le" field) bytes of Protection memory
-            // fields "P1" and "P2" are ignored
-            //                                            INS P1  P2  Le
-            var readPROMCommand = Util.toByteArray("FF B2  00  00  04");
-            answer = channel.transmit(new CommandAPDU(readPROMCommand));
-            if (answer.getSW() != 0x9000) {
-                card.disconnect(false);
-                throw new Util.CardCheckFailedException("Cannot read protection memory data");
-            }
-            var PRBData = answer.getData();
             System.out.printf("Protection memory bits:%n");
             for (int i=0; i<32; i++) {
                 System.out.printf("%02d ", i);
             }
             System.out.printf("%n");
-            var protectionBits = new int[32];
-            for (int k=0; k<4; k++) {
-                var b = PRBData[k];
-                for (int i=0; i<8; i++) {
-                    var addr = k*8 + i;
-                    protectionBits[addr] = (b & 1);
-                    b >>= 1;
-                }
-            }
             for (int i=0; i<32; i++) {
-                System.out.printf(" %d ", protectionBits[i]);
+                // 0 means protected
+                System.out.printf(" %d ", image.isProtected(i) ? 0 : 1);
             }
             System.out.printf("%n");
 
-            // Instruction "9.3.6.3. READ_PRESENTATION_ERROR_COUNTER_MEMORY_CARD (SLE 4442 and SLE 5542)"
-            // read 0x04 (in "Le" field) bytes of Security memory (only EC value is returned)
-            // fields "P1" and "P2" are ignored
-            //                                          INS P1  P2  Le
-            var readECCommand = Util.toByteArray("FF B1  00  00  04");
-            answer = channel.transmit(new CommandAPDU(readECCommand));
-            if (answer.getSW() != 0x9000) {
-                card.disconnect(false);
-                throw new Util.CardCheckFailedException("Cannot read security memory data");
-            }
-            var ECData = answer.getData();
-            System.out.printf("EC: %02X%n", ECData[0]);
+            System.out.printf("EC: %02X (%d PSC attempts left)%n", errorCounter, MemoryCard.getAttempts(errorCounter));
 
             // disconnect card
             card.disconnect(false);
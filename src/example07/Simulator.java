@@ -0,0 +1,361 @@
+package example07;
+
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.smartcardio.*;
+
+// In-process PC/SC provider: simulated terminals holding emulated cards. Used to
+// run examples and measure them without a physical reader.
+//
+//   var terminal = new Simulator.Terminal("Simulated reader", new Sle4442Card());
+//   var factory = Simulator.newFactory(terminal);
+public class Simulator extends Provider {
+    // Emulated card: answers command APDUs with response APDU bytes (data + SW).
+    public interface CardModel {
+        byte[] getATR();
+        byte[] process(byte[] command);
+        // called on every connect, card state that doesn't survive power loss must be cleared here
+        void reset();
+    }
+
+    public Simulator() {
+        super("Simulator", "1.0", "In-process simulated PC/SC terminals");
+        put("TerminalFactory.Simulator", Factory.class.getName());
+    }
+
+    public static TerminalFactory newFactory(Terminal... terminals) {
+        try {
+            return TerminalFactory.getInstance("Simulator", List.of(terminals), new Simulator());
+        } catch (NoSuchAlgorithmException e) {
+            // provider registers this type itself
+            throw new AssertionError(e);
+        }
+    }
+
+    public static class Factory extends TerminalFactorySpi {
+        private final Terminals terminals;
+
+        @SuppressWarnings("unchecked")
+        public Factory(Object params) {
+            terminals = new Terminals((List<Terminal>)params);
+        }
+
+        protected CardTerminals engineTerminals() {
+            return terminals;
+        }
+    }
+
+    // all terminals of one factory share this object as a monitor, so waitForChange()
+    // is notified on any card insertion or removal
+    private static class Terminals extends CardTerminals {
+        private final List<Terminal> terminals;
+        private final Object monitor = new Object();
+        private long changes = 0;
+        private long seenChanges = 0;
+
+        Terminals(List<Terminal> terminals) {
+            this.terminals = terminals;
+            for (var t : terminals) {
+                t.attach(this);
+            }
+        }
+
+        public List<CardTerminal> list(State state) {
+            var res = new ArrayList<CardTerminal>(terminals.size());
+            for (var t : terminals) {
+                switch (state) {
+                case ALL:
+                    res.add(t);
+                    break;
+                case CARD_PRESENT:
+                case CARD_INSERTION:
+                    if (t.isCardPresent()) {
+                        res.add(t);
+                    }
+                    break;
+                case CARD_ABSENT:
+                case CARD_REMOVAL:
+                    if (!t.isCardPresent()) {
+                        res.add(t);
+                    }
+                    break;
+                }
+            }
+            return res;
+        }
+
+        public boolean waitForChange(long timeout) throws CardException {
+            synchronized (monitor) {
+                try {
+                    long deadline = System.currentTimeMillis() + timeout;
+                    while (changes == seenChanges) {
+                        long left = deadline - System.currentTimeMillis();
+                        if (timeout != 0 && left <= 0) {
+                            return false;
+                        }
+                        monitor.wait(timeout == 0 ? 0 : left);
+                    }
+                } catch (InterruptedException e) {
+                    throw new CardException("Interrupted while waiting for card");
+                }
+                seenChanges = changes;
+                return true;
+            }
+        }
+
+        void changed() {
+            synchronized (monitor) {
+                changes++;
+                monitor.notifyAll();
+            }
+        }
+    }
+
+    public static class Terminal extends CardTerminal {
+        private final String name;
+        private final Object monitor = new Object();
+        private Terminals terminals = null;
+        private CardModel model;
+        private SimulatedCard card = null;
+        // reader + RF round-trip time added to every transmit
+        private long latencyMicros = 0;
+
+        public Terminal(String name, CardModel model) {
+            this.name = name;
+            this.model = model;
+        }
+
+        public Terminal setLatency(long micros) {
+            latencyMicros = micros;
+            return this;
+        }
+
+        // put card on the terminal
+        public void insert(CardModel model) {
+            synchronized (monitor) {
+                this.model = model;
+                monitor.notifyAll();
+            }
+            if (terminals != null) {
+                terminals.changed();
+            }
+        }
+
+        // take card away, existing connection becomes unusable
+        public void remove() {
+            synchronized (monitor) {
+                model = null;
+                card = null;
+                monitor.notifyAll();
+            }
+            if (terminals != null) {
+                terminals.changed();
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Card connect(String protocol) throws CardException {
+            synchronized (monitor) {
+                if (model == null) {
+                    throw new CardNotPresentException("No card present");
+                }
+                String actual;
+                switch (protocol) {
+                case "*":
+                case "T=1":
+                    actual = "T=1";
+                    break;
+                case "T=0":
+                case "DIRECT":
+                    actual = protocol;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported protocol " + protocol);
+                }
+                if (card == null || !card.connected) {
+                    model.reset();
+                    card = new SimulatedCard(this, model, actual);
+                }
+                return card;
+            }
+        }
+
+        public boolean isCardPresent() {
+            synchronized (monitor) {
+                return model != null;
+            }
+        }
+
+        public boolean waitForCardPresent(long timeout) throws CardException {
+            return waitForCard(true, timeout);
+        }
+
+        public boolean waitForCardAbsent(long timeout) throws CardException {
+            return waitForCard(false, timeout);
+        }
+
+        public String toString() {
+            return "Simulated terminal: " + name;
+        }
+
+        private boolean waitForCard(boolean present, long timeout) throws CardException {
+            synchronized (monitor) {
+                try {
+                    long deadline = System.currentTimeMillis() + timeout;
+                    while ((model != null) != present) {
+                        long left = deadline - System.currentTimeMillis();
+                        if (timeout != 0 && left <= 0) {
+                            return false;
+                        }
+                        monitor.wait(timeout == 0 ? 0 : left);
+                    }
+                } catch (InterruptedException e) {
+                    throw new CardException("Interrupted while waiting for card");
+                }
+                return true;
+            }
+        }
+
+        private void attach(Terminals terminals) {
+            this.terminals = terminals;
+        }
+
+        private byte[] transmit(SimulatedCard card, byte[] command) throws CardException {
+            if (latencyMicros > 0) {
+                try {
+                    TimeUnit.MICROSECONDS.sleep(latencyMicros);
+                } catch (InterruptedException e) {
+                    throw new CardException("Interrupted while transmitting");
+                }
+            }
+            synchronized (monitor) {
+                if (this.card != card) {
+                    throw new CardNotPresentException("Card has been removed");
+                }
+                return model.process(command);
+            }
+        }
+    }
+
+    private static class SimulatedCard extends Card {
+        private final Terminal terminal;
+        private final CardModel model;
+        private final String protocol;
+        private final Channel channel;
+        private boolean connected = true;
+
+        SimulatedCard(Terminal terminal, CardModel model, String protocol) {
+            this.terminal = terminal;
+            this.model = model;
+            this.protocol = protocol;
+            this.channel = new Channel(this);
+        }
+
+        public ATR getATR() {
+            return new ATR(model.getATR());
+        }
+
+        public String getProtocol() {
+            return protocol;
+        }
+
+        public CardChannel getBasicChannel() {
+            checkConnected();
+            return channel;
+        }
+
+        public CardChannel openLogicalChannel() throws CardException {
+            throw new CardException("Logical channels are not supported");
+        }
+
+        public void beginExclusive() throws CardException {
+            checkConnected();
+        }
+
+        public void endExclusive() throws CardException {
+            checkConnected();
+        }
+
+        public byte[] transmitControlCommand(int controlCode, byte[] command) throws CardException {
+            throw new CardException("Control commands are not supported");
+        }
+
+        public void disconnect(boolean reset) throws CardException {
+            connected = false;
+        }
+
+        private void checkConnected() {
+            if (!connected) {
+                throw new IllegalStateException("Card has been disconnected");
+            }
+        }
+    }
+
+    private static class Channel extends CardChannel {
+        private final SimulatedCard card;
+
+        Channel(SimulatedCard card) {
+            this.card = card;
+        }
+
+        public Card getCard() {
+            return card;
+        }
+
+        public int getChannelNumber() {
+            return 0;
+        }
+
+        public ResponseAPDU transmit(CommandAPDU command) throws CardException {
+            card.checkConnected();
+            return new ResponseAPDU(card.terminal.transmit(card, command.getBytes()));
+        }
+
+        public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+            card.checkConnected();
+            var bytes = new byte[command.remaining()];
+            command.get(bytes);
+            var answer = card.terminal.transmit(card, bytes);
+            response.put(answer);
+            return answer.length;
+        }
+
+        public void close() throws CardException {
+            throw new IllegalStateException("Cannot close basic logical channel");
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package example07;
+
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.util.Arrays;
+
+// Emulated SLE4442 memory card behind an ACR38 reader, answers reader pseudo-APDUs:
+//   FF A4 00 00 01 06              select card type
+//   FF B0 00 <address> <Le>        read main memory, Le=00 reads up to 256 bytes
+//   FF B1 00 00 04                 read error counter
+//   FF B2 00 00 04                 read protection bits of bytes 0x00-0x1F
+//   FF 20 00 00 03 <PSC>           present PSC, SW2 is the new error counter
+//   FF D0 00 <address> <Lc> <data> write main memory
+// As the chip itself, the card silently ignores writes before a correct PSC and writes
+// to protected bytes, both are reported with 9000. Every PSC presentation costs an
+// attempt until it succeeds; with no attempts left PSC is never compared again.
+class Sle4442Card implements Simulator.CardModel {
+    private static final int SIZE = 256;
+
+    private final byte[] atr = Util.toByteArray("3B 04 A2 13 10 91");
+    private final byte[] memory = new byte[SIZE];
+    // bit N set means byte N is protected
+    private int protectedMask;
+    private final byte[] psc;
+    private int errorCounter = 0x07;
+    private boolean typeSelected = false;
+    private boolean pscVerified = false;
+
+    // Card with default PSC FF FF FF.
+    public Sle4442Card() {
+        this(Util.toByteArray("FF FF FF"));
+    }
+
+    public Sle4442Card(byte[] psc) {
+        this.psc = psc.clone();
+        Arrays.fill(memory, (byte)0xFF);
+        // ATR header and issuer data, protected by issuer
+        System.arraycopy(atr, 2, memory, 0, 4);
+        protectedMask = 0x0F | 0x0F00;
+    }
+
+    public byte[] getATR() {
+        return atr.clone();
+    }
+
+    // Error counter as the card holds it, for checks.
+    public synchronized int getErrorCounter() {
+        return errorCounter;
+    }
+
+    public synchronized byte[] getMemory() {
+        return memory.clone();
+    }
+
+    public synchronized void reset() {
+        // verified PSC doesn't survive power loss, reader forgets card type
+        typeSelected = false;
+        pscVerified = false;
+    }
+
+    public synchronized byte[] process(byte[] command) {
+        if (command.length < 5 || command[0] != (byte)0xFF) {
+            return sw(0x6E00);
+        }
+        if (command[1] == (byte)0xA4) {
+            return selectCardType(command);
+        }
+        if (!typeSelected) {
+            // reader doesn't know how to talk to synchronous card
+            return sw(0x6A81);
+        }
+        switch (command[1]) {
+        case (byte)0xB0:
+            return readMemory(command);
+        case (byte)0xB1:
+            return respond(new byte[] {(byte)errorCounter}, 0x9000);
+        case (byte)0xB2:
+            return respond(new byte[] {
+                (byte)~protectedMask, (byte)(~protectedMask >>> 8),
+                (byte)(~protectedMask >>> 16), (byte)(~protectedMask >>> 24)}, 0x9000);
+        case (byte)0x20:
+            return presentCode(command);
+        case (byte)0xD0:
+            return writeMemory(command);
+        default:
+            return sw(0x6D00);
+        }
+    }
+
+    private byte[] selectCardType(byte[] command) {
+        if (command.length != 6 || command[4] != 1 || command[5] != 0x06) {
+            return sw(0x6A80);
+        }
+        typeSelected = true;
+        return sw(0x9000);
+    }
+
+    private byte[] readMemory(byte[] command) {
+        int address = command[3] & 0xFF;
+        int length = command[4] == 0 ? SIZE : command[4] & 0xFF;
+        if (command.length != 5 || address + length > SIZE) {
+            return sw(0x6B00);
+        }
+        return respond(Arrays.copyOfRange(memory, address, address + length), 0x9000);
+    }
+
+    private byte[] presentCode(byte[] command) {
+        if (command.length != 8 || command[4] != 3) {
+            return sw(0x6700);
+        }
+        if (errorCounter == 0) {
+            // card is locked
+            return sw(0x9000);
+        }
+        // chip clears one counter bit before comparing, restores all of them on success
+        errorCounter = (errorCounter << 1) & 0x07;
+        if (Arrays.equals(psc, Arrays.copyOfRange(command, 5, 8))) {
+            errorCounter = 0x07;
+            pscVerified = true;
+        }
+        return sw(0x9000 | errorCounter);
+    }
+
+    private byte[] writeMemory(byte[] command) {
+        int address = command[3] & 0xFF;
+        int length = command[4] & 0xFF;
+        if (command.length != 5 + length || length == 0 || address + length > SIZE) {
+            return sw(0x6B00);
+        }
+        if (pscVerified) {
+            for (int i=0; i<length; i++) {
+                if (address + i >= 32 || (protectedMask & (1 << (address + i))) == 0) {
+                    memory[address + i] = command[5 + i];
+                }
+            }
+        }
+        return sw(0x9000);
+    }
+
+    private static byte[] respond(byte[] data, int sw) {
+        var res = Arrays.copyOf(data, data.length + 2);
+        res[data.length] = (byte)(sw >> 8);
+        res[data.length + 1] = (byte)sw;
+        return res;
+    }
+
+    private static byte[] sw(int sw) {
+        return new byte[] {(byte)(sw >> 8), (byte)sw};
+    }
+}
@@ -0,0 +1,657 @@
+package example07;
+
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.smartcardio.*;
+
+// APDU transport around CardChannel.
+//
+// There is one transport per card, its lock serializes APDUs from all threads, so
+// commands of different callers never interleave, while cards in different readers
+// are used in parallel. A sequence of commands runs back-to-back under the lock and
+// completes once:
+//
+//   var result = Transport.of(channel).execute(new Transport.Sequence()
+//       .add(loadKeyCommand, 0x9000)
+//       .add(authenticateCommand, 0x9000)
+//       .add(readBinaryCommand, 0x9000));
+//   if (!result.isSuccess()) { ... result.getFailedStep() ... }
+//
+// Transport profile tells how to resolve status words that ask for another round-trip:
+// 61xx (more data, send GET RESPONSE) and 6Cxx (wrong Le, repeat with Le=xx). Callers
+// get one logical response, extra round-trips are counted.
+//
+// Card capabilities tell how commands longer than short APDU are sent: in one
+// extended-length APDU if the card supports extended Lc/Le, otherwise split with
+// command chaining (CLA bit 0x10). read() and write() split large transfers
+// into as few commands as the card allows.
+//
+// Sequences of several commands run inside Card.beginExclusive()/endExclusive(), so
+// other processes using the reader can't send anything in between. Exclusive access
+// ends with the sequence and a sequence is never interrupted, so the maximum hold
+// time is not enforced: a sequence that holds the card longer is counted as overrun.
+//
+// Latency of every APDU goes to Metrics, per INS and per reader (see setReaderName()).
+class Transport {
+    public static class Profile {
+        // send GET RESPONSE on 61xx and join response data
+        public final boolean getResponse;
+        // repeat command with Le from SW2 on 6Cxx
+        public final boolean fixLe;
+        // extra round-trips per command, protects from cards answering 61xx/6Cxx forever
+        public final int maxExtraTransmits;
+
+        public Profile(boolean getResponse, boolean fixLe, int maxExtraTransmits) {
+            this.getResponse = getResponse;
+            this.fixLe = fixLe;
+            this.maxExtraTransmits = maxExtraTransmits;
+        }
+
+        // send commands as is, e.g. reader pseudo-APDUs (CLA FF)
+        public static final Profile RAW = new Profile(false, false, 0);
+        // ISO/IEC 7816-4 cards
+        public static final Profile ISO7816 = new Profile(true, true, 16);
+    }
+
+    // Card capabilities from "card capabilities" historical bytes object (ISO/IEC 7816-4, 8.1.1.2.7).
+    public static class Capabilities {
+        public final boolean commandChaining;
+        public final boolean extendedLength;
+        // data bytes per command (Nc) and per response (Ne)
+        public final int maxCommandData;
+        public final int maxResponseData;
+
+        public Capabilities(boolean commandChaining, boolean extendedLength, int maxCommandData, int maxResponseData) {
+            this.commandChaining = commandChaining;
+            this.extendedLength = extendedLength;
+            this.maxCommandData = maxCommandData;
+            this.maxResponseData = maxResponseData;
+        }
+
+        public Capabilities(boolean commandChaining, boolean extendedLength) {
+            this(commandChaining, extendedLength, extendedLength ? 65535 : 255, extendedLength ? 65536 : 256);
+        }
+
+        // short APDUs only
+        public static final Capabilities SHORT = new Capabilities(false, false);
+
+        // Parse compact-TLV historical bytes and find card capabilities (tag 7).
+        public static Capabilities fromATR(ATR atr) {
+            var historicalBytes = atr.getHistoricalBytes();
+            if (historicalBytes.length == 0) {
+                return SHORT;
+            }
+            int limit;
+            if (historicalBytes[0] == (byte)0x80) {
+                limit = historicalBytes.length;
+            } else if (historicalBytes[0] == 0x00) {
+                // last 3 bytes are status indicator
+                limit = historicalBytes.length - 3;
+            } else {
+                return SHORT;
+            }
+            int p = 1;
+            while (p < limit) {
+                int objTag = (historicalBytes[p] >> 4) & 0xF;
+                int objLen = historicalBytes[p] & 0xF;
+                if (p + 1 + objLen > limit) {
+                    break;
+                }
+                if (objTag == 0x7 && objLen >= 3) {
+                    var b = historicalBytes[p+3];
+                    return new Capabilities((b & 0x80) != 0, (b & 0x40) != 0);
+                }
+                p += 1 + objLen;
+            }
+            return SHORT;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("chaining: %s, extended: %s, Nc: %d, Ne: %d",
+                commandChaining ? "yes" : "no", extendedLength ? "yes" : "no", maxCommandData, maxResponseData);
+        }
+    }
+
+    // Builds command for a chunk of read(): Ne bytes at offset.
+    public interface ReadFunction {
+        CommandAPDU apply(int offset, int length);
+    }
+
+    // Builds command for a chunk of write(): data to put at offset.
+    public interface WriteFunction {
+        CommandAPDU apply(int offset, byte[] data);
+    }
+
+    // Builds next command from responses of previous steps, returns null to finish
+    // sequence without sending anything else.
+    public interface StepFunction {
+        CommandAPDU apply(List<ResponseAPDU> responses);
+    }
+
+    // Commands executed as one unit.
+    public static class Sequence {
+        private final ArrayList<StepFunction> steps = new ArrayList<StepFunction>();
+        private final ArrayList<Integer> expectedSW = new ArrayList<Integer>();
+
+        // add command that must return expected status word, sequence stops otherwise
+        public Sequence add(CommandAPDU command, int sw) {
+            return add(responses -> command, sw);
+        }
+
+        // add command that depends on previous responses
+        public Sequence add(StepFunction step, int sw) {
+            steps.add(step);
+            expectedSW.add(sw);
+            return this;
+        }
+
+        public int size() {
+            return steps.size();
+        }
+    }
+
+    public static class Result {
+        private final List<ResponseAPDU> responses;
+        private final int failedStep;
+        private final long elapsedNanos;
+
+        Result(List<ResponseAPDU> responses, int failedStep, long elapsedNanos) {
+            this.responses = Collections.unmodifiableList(responses);
+            this.failedStep = failedStep;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        // responses of executed steps, the last one is unexpected if sequence failed
+        public List<ResponseAPDU> getResponses() {
+            return responses;
+        }
+
+        public ResponseAPDU get(int step) {
+            return responses.get(step);
+        }
+
+        // index of the step that returned unexpected status word, -1 if there is no such step
+        public int getFailedStep() {
+            return failedStep;
+        }
+
+        public boolean isSuccess() {
+            return failedStep == -1;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+    }
+
+    // transports of connected cards; transport references its card through the channel,
+    // so values are weak too, otherwise entries would never be cleared without close()
+    private static final Map<Card, WeakReference<Transport>> transports = new WeakHashMap<Card, WeakReference<Transport>>();
+
+    private final CardChannel channel;
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile Profile profile = Profile.RAW;
+    private volatile Capabilities capabilities;
+    private volatile Metrics.Reader readerMetrics = Metrics.get().forReader("unknown reader");
+
+    // statistics, updated under lock
+    private volatile long commandsCount = 0;
+    private volatile long transmitsCount = 0;
+    private volatile long getResponseCount = 0;
+    private volatile long leRetryCount = 0;
+    private volatile long chainedCount = 0;
+    // exclusive access: nesting depth and start, updated under lock
+    private int exclusiveDepth = 0;
+    private long exclusiveSince = 0;
+    private volatile long maxHoldNanos = 500_000_000L;
+    private volatile long exclusiveCount = 0;
+    private volatile long exclusiveWaitNanos = 0;
+    private volatile long maxExclusiveWaitNanos = 0;
+    private volatile long contendedCount = 0;
+    private volatile long holdOverrunCount = 0;
+    // worker thread for submit(), started on first use
+    private ExecutorService executor = null;
+
+    private Transport(CardChannel channel) {
+        this.channel = channel;
+        var card = channel.getCard();
+        var capabilities = Capabilities.fromATR(card.getATR());
+        if (capabilities.extendedLength && "T=0".equals(card.getProtocol())) {
+            // T=0 transfers at most 256 bytes per exchange
+            capabilities = new Capabilities(capabilities.commandChaining, false);
+        }
+        this.capabilities = capabilities;
+    }
+
+    // Transport for the card of this channel, all channels of one card share it while
+    // somebody holds a reference to it.
+    public static Transport of(CardChannel channel) {
+        synchronized (transports) {
+            var card = channel.getCard();
+            var reference = transports.get(card);
+            var transport = reference == null ? null : reference.get();
+            if (transport == null) {
+                transport = new Transport(channel);
+                transports.put(card, new WeakReference<Transport>(transport));
+            }
+            return transport;
+        }
+    }
+
+    // Transport for the card of this channel with the profile.
+    public static Transport of(CardChannel channel, Profile profile) {
+        var transport = of(channel);
+        transport.setProfile(profile);
+        return transport;
+    }
+
+    // SunPCSC provider resolves 61xx and 6Cxx itself, unnoticed by transport. Call this
+    // before the first connect to let transport do it and count round-trips.
+    public static void disableProviderResponseHandling() {
+        System.setProperty("sun.security.smartcardio.t0GetResponse", "false");
+        System.setProperty("sun.security.smartcardio.t1GetResponse", "false");
+    }
+
+    public CardChannel getChannel() {
+        return channel;
+    }
+
+    public Profile getProfile() {
+        return profile;
+    }
+
+    public void setProfile(Profile profile) {
+        this.profile = profile;
+    }
+
+    // Name of the reader for metrics, card doesn't know its reader.
+    public void setReaderName(String name) {
+        readerMetrics = Metrics.get().forReader(name);
+    }
+
+    public Capabilities getCapabilities() {
+        return capabilities;
+    }
+
+    // override capabilities from ATR, e.g. limits of reader pseudo-APDUs
+    public void setCapabilities(Capabilities capabilities) {
+        this.capabilities = capabilities;
+    }
+
+    // logical commands sent by callers
+    public long getCommandsCount() {
+        return commandsCount;
+    }
+
+    // APDUs actually sent to the card
+    public long getTransmitsCount() {
+        return transmitsCount;
+    }
+
+    // GET RESPONSE commands sent on 61xx
+    public long getGetResponseCount() {
+        return getResponseCount;
+    }
+
+    // commands repeated on 6Cxx
+    public long getLeRetryCount() {
+        return leRetryCount;
+    }
+
+    // Time a sequence is expected to keep exclusive access, longer ones are counted as overruns.
+    public void setMaxHoldMillis(long millis) {
+        maxHoldNanos = millis * 1_000_000L;
+    }
+
+    public long getMaxHoldMillis() {
+        return maxHoldNanos / 1_000_000L;
+    }
+
+    // exclusive scopes started
+    public long getExclusiveCount() {
+        return exclusiveCount;
+    }
+
+    // exclusive scopes that waited for another process, more than 1 ms
+    public long getContendedCount() {
+        return contendedCount;
+    }
+
+    public long getMaxExclusiveWaitNanos() {
+        return maxExclusiveWaitNanos;
+    }
+
+    // exclusive scopes held longer than maximum hold time
+    public long getHoldOverrunCount() {
+        return holdOverrunCount;
+    }
+
+    // commands sent as chain of several APDUs
+    public long getChainedCount() {
+        return chainedCount;
+    }
+
+    public String getStatistics() {
+        return String.format("commands: %d, APDUs: %d, GET RESPONSE: %d, Le retries: %d, chained: %d, "
+            + "exclusive: %d (contended: %d, average wait: %.2f ms, max wait: %.2f ms, overruns: %d)",
+            commandsCount, transmitsCount, getResponseCount, leRetryCount, chainedCount,
+            exclusiveCount, contendedCount, exclusiveCount == 0 ? 0.0 : exclusiveWaitNanos / 1e6 / exclusiveCount,
+            maxExclusiveWaitNanos / 1e6, holdOverrunCount);
+    }
+
+    public ResponseAPDU transmit(CommandAPDU command) throws CardException {
+        lock.lock();
+        // links of command chain must not be separated by other commands
+        boolean exclusive = command.getNc() > 255 && !capabilities.extendedLength;
+        try {
+            if (exclusive) {
+                acquireExclusive();
+            }
+            return exchange(command);
+        } finally {
+            try {
+                if (exclusive) {
+                    releaseExclusive();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Read length bytes with as few commands as capabilities allow. Returns joined data
+    // with status word of the last command, stops early on error or short response.
+    public ResponseAPDU read(ReadFunction function, int length) throws CardException {
+        lock.lock();
+        boolean exclusive = length > capabilities.maxResponseData;
+        try {
+            if (exclusive) {
+                acquireExclusive();
+            }
+            var data = new byte[length];
+            int offset = 0;
+            int sw = 0x9000;
+            while (offset < length) {
+                int chunk = Math.min(length - offset, capabilities.maxResponseData);
+                var answer = exchange(function.apply(offset, chunk));
+                sw = answer.getSW();
+                var chunkData = answer.getData();
+                int n = Math.min(chunkData.length, length - offset);
+                System.arraycopy(chunkData, 0, data, offset, n);
+                offset += n;
+                if (sw != 0x9000 || n < chunk) {
+                    break;
+                }
+            }
+            return response(data, offset, sw);
+        } finally {
+            try {
+                if (exclusive) {
+                    releaseExclusive();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Write data with as few commands as capabilities allow, stops on first error.
+    public ResponseAPDU write(WriteFunction function, byte[] data) throws CardException {
+        lock.lock();
+        boolean exclusive = data.length > capabilities.maxCommandData;
+        try {
+            if (exclusive) {
+                acquireExclusive();
+            }
+            ResponseAPDU answer = null;
+            int offset = 0;
+            do {
+                int chunk = Math.min(data.length - offset, capabilities.maxCommandData);
+                var chunkData = new byte[chunk];
+                System.arraycopy(data, offset, chunkData, 0, chunk);
+                answer = exchange(function.apply(offset, chunkData));
+                offset += chunk;
+            } while (answer.getSW() == 0x9000 && offset < data.length);
+            return answer;
+        } finally {
+            try {
+                if (exclusive) {
+                    releaseExclusive();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Run all steps without letting other commands in between, neither from this process
+    // nor from others: sequence of several steps runs with exclusive access to the card.
+    public Result execute(Sequence sequence) throws CardException {
+        lock.lock();
+        try {
+            boolean exclusive = sequence.size() > 1;
+            if (exclusive) {
+                acquireExclusive();
+            }
+            try {
+                long startTime = System.nanoTime();
+                var responses = new ArrayList<ResponseAPDU>(sequence.size());
+                for (int i=0; i<sequence.size(); i++) {
+                    var command = sequence.steps.get(i).apply(responses);
+                    if (command == null) {
+                        break;
+                    }
+                    var answer = exchange(command);
+                    responses.add(answer);
+                    if (answer.getSW() != sequence.expectedSW.get(i)) {
+                        return new Result(responses, i, System.nanoTime() - startTime);
+                    }
+                }
+                return new Result(responses, -1, System.nanoTime() - startTime);
+            } finally {
+                if (exclusive) {
+                    releaseExclusive();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Run sequence on the card worker thread, future fails with CardException on transmit error.
+    public CompletableFuture<Result> submit(Sequence sequence) {
+        var future = new CompletableFuture<Result>();
+        getExecutor().execute(() -> {
+            try {
+                future.complete(execute(sequence));
+            } catch (CardException | RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    // Stop worker thread and forget the card, call before card.disconnect().
+    public void close() {
+        synchronized (transports) {
+            transports.remove(channel.getCard());
+        }
+        synchronized (this) {
+            if (executor != null) {
+                executor.shutdown();
+                executor = null;
+            }
+        }
+    }
+
+    // Send command and resolve 61xx/6Cxx according to profile, must be called under lock.
+    private ResponseAPDU exchange(CommandAPDU command) throws CardException {
+        var profile = this.profile;
+        var capabilities = this.capabilities;
+        commandsCount++;
+
+        if (command.getNc() > 255 && !capabilities.extendedLength) {
+            if (!capabilities.commandChaining) {
+                throw new CardException(String.format("Command data too long for the card: %d", command.getNc()));
+            }
+            var answer = sendChain(command, capabilities);
+            if (answer.getSW() != 0x9000) {
+                return answer;
+            }
+            // the last link carries original CLA and Le
+            var data = command.getData();
+            int last = (data.length - 1) / 255 * 255;
+            command = new CommandAPDU(command.getCLA(), command.getINS(), command.getP1(), command.getP2(),
+                data, last, data.length - last, command.getNe());
+        }
+        if (command.getNe() > 256 && !capabilities.extendedLength) {
+            // ask for short Le, card sends the rest with 61xx
+            command = new CommandAPDU(command.getCLA(), command.getINS(), command.getP1(), command.getP2(), command.getData(), 256);
+        }
+
+        var answer = send(command);
+
+        // data of 61xx responses
+        byte[] collected = null;
+        for (int i=0; i<profile.maxExtraTransmits; i++) {
+            int sw1 = answer.getSW1();
+            int le = answer.getSW2() == 0 ? 256 : answer.getSW2();
+            if (sw1 == 0x6C && profile.fixLe) {
+                command = new CommandAPDU(command.getCLA(), command.getINS(), command.getP1(), command.getP2(), command.getData(), le);
+                leRetryCount++;
+            } else if (sw1 == 0x61 && profile.getResponse) {
+                collected = concat(collected, answer.getData());
+                // keep logical channel number from the original CLA
+                command = new CommandAPDU(command.getCLA() & 0x03, 0xC0, 0x00, 0x00, le);
+                getResponseCount++;
+            } else {
+                break;
+            }
+            answer = send(command);
+        }
+
+        if (collected != null) {
+            answer = new ResponseAPDU(concat(collected, answer.getBytes()));
+        }
+        return answer;
+    }
+
+    // Begin exclusive access unless this thread holds it already, must be called under lock.
+    private void acquireExclusive() throws CardException {
+        if (exclusiveDepth == 0) {
+            long startTime = System.nanoTime();
+            // blocks while another process holds the card
+            channel.getCard().beginExclusive();
+            exclusiveSince = System.nanoTime();
+            long wait = exclusiveSince - startTime;
+            exclusiveCount++;
+            exclusiveWaitNanos += wait;
+            if (wait > maxExclusiveWaitNanos) {
+                maxExclusiveWaitNanos = wait;
+            }
+            if (wait > 1_000_000L) {
+                contendedCount++;
+            }
+        }
+        exclusiveDepth++;
+    }
+
+    private void releaseExclusive() throws CardException {
+        exclusiveDepth--;
+        if (exclusiveDepth == 0) {
+            if (System.nanoTime() - exclusiveSince > maxHoldNanos) {
+                holdOverrunCount++;
+            }
+            channel.getCard().endExclusive();
+        }
+    }
+
+    // Send one APDU to the card and record its latency.
+    private ResponseAPDU send(CommandAPDU command) throws CardException {
+        transmitsCount++;
+        long startTime = System.nanoTime();
+        var answer = channel.transmit(command);
+        readerMetrics.record(command.getINS(), command.getNc(), answer.getNr(), answer.getSW(), System.nanoTime() - startTime);
+        return answer;
+    }
+
+    // Send all links of command chain but the last one, returns the first unexpected answer or 9000.
+    private ResponseAPDU sendChain(CommandAPDU command, Capabilities capabilities) throws CardException {
+        var data = command.getData();
+        var answer = new ResponseAPDU(new byte[] {(byte)0x90, 0x00});
+        chainedCount++;
+        for (int offset=0; offset + 255 < data.length; offset += 255) {
+            answer = send(new CommandAPDU(command.getCLA() | 0x10, command.getINS(),
+                command.getP1(), command.getP2(), data, offset, 255));
+            if (answer.getSW() != 0x9000) {
+                break;
+            }
+        }
+        return answer;
+    }
+
+    private static ResponseAPDU response(byte[] data, int length, int sw) {
+        var bytes = new byte[length + 2];
+        System.arraycopy(data, 0, bytes, 0, length);
+        bytes[length] = (byte)(sw >> 8);
+        bytes[length + 1] = (byte)sw;
+        return new ResponseAPDU(bytes);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        if (a == null) {
+            return b;
+        }
+        var buffer = new byte[a.length + b.length];
+        System.arraycopy(a, 0, buffer, 0, a.length);
+        System.arraycopy(b, 0, buffer, a.length, b.length);
+        return buffer;
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(r -> {
+                var t = new Thread(r, "transport");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return executor;
+    }
+}
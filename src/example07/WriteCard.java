@@ -28,12 +28,51 @@ package example07;
  */
 
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import javax.smartcardio.*;
 
+// Write card: bring card memory to the desired image with the fewest write commands.
+//
+// Usage: WriteCard [image file] [--simulate [latency in microseconds]]
+// Image file holds 256 bytes of main memory; without it bytes 01 02 03 04 are written
+// at address 0x40. With --simulate an emulated SLE4442 card is used instead of a real
+// reader.
+//
+// PSC is presented only while at least MIN_ATTEMPTS are left, so a wrong PSC never
+// takes the last attempt. Error counter is read from the card on every connect, in the
+// same sequence as PSC presentation.
 class WriteCard {
+    // PSC attempts that must be left before PSC is presented
+    private static final int MIN_ATTEMPTS = 2;
+    private static final byte[] PSC = Util.toByteArray("FF FF FF");
+
     public static void main(String[] args) {
+        byte[] desired = null;
+        int imageArgs = args.length > 0 && !args[0].equals("--simulate") ? 1 : 0;
+        Simulator.Terminal simulated = null;
         try {
-            var factory = TerminalFactory.getDefault();
+            simulated = parseSimulate(args, imageArgs);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Usage: WriteCard [image file] [--simulate [latency in microseconds]]");
+            System.exit(1);
+        }
+        if (imageArgs == 1) {
+            try {
+                desired = Files.readAllBytes(Path.of(args[0]));
+            } catch (IOException e) {
+                System.out.printf("Cannot read image: %s%n", e.getMessage());
+                System.exit(1);
+            }
+            if (desired.length != MemoryCard.SIZE) {
+                System.out.printf("Image must be %d bytes long%n", MemoryCard.SIZE);
+                System.exit(1);
+            }
+        }
+
+        try {
+            var factory = simulated == null ? TerminalFactory.getDefault() : Simulator.newFactory(simulated);
             var terminals = factory.terminals().list();
 
             if (terminals.size() == 0) {
@@ -54,39 +93,38 @@ class WriteCard {
             // obtain logical channel
             var channel = card.getBasicChannel();
 
-            ResponseAPDU answer;
-
-            // Instruction "9.3.6.1. SELECT_CARD_TYPE"
-            // write 1 (in "Lc" field) byte, 06 (in DATA block) indicates card type
-            // fields "P1" and "P2" are ignored
-            //                                          INS P1  P2  Lc  DATA
-            var selectCommand = Util.toByteArray("FF A4  00  00  01  06");
-            answer = channel.transmit(new CommandAPDU(selectCommand));
-            if (answer.getSW() != 0x9000) {
-                card.disconnect(false);
-                throw new Util.CardCheckFailedException("Select failed");
-            }
-
-            // Instruction "9.3.6.7. PRESENT_CODE_MEMORY_CARD (SLE 4442 and SLE 5542)"
-            // write 3 bytes of PSC
-            // field "P1" is ignored
-            //                                              INS P1  P2  Lc  Data
-            var presentPSCCommand = Util.toByteArray("FF 20  00  00  03  FF FF FF");
-            answer = channel.transmit(new CommandAPDU(presentPSCCommand));
-            if (answer.getSW() != 0x9007) {
+            var transport = Transport.of(channel);
+            transport.setReaderName(terminal.getName());
+            var memoryCard = new MemoryCard(transport);
+
+            try {
+                memoryCard.selectCardType();
+                var image = memoryCard.read();
+
+                if (desired == null) {
+                    desired = image.getData();
+                    desired[0x40] = 0x01;
+                    desired[0x41] = 0x02;
+                    desired[0x42] = 0x03;
+                    desired[0x43] = 0x04;
+                }
+
+                var plan = MemoryCard.plan(image, desired);
+                for (var address: plan.skipped) {
+                    System.out.printf("Byte at 0x%02X is write-protected, skipped%n", address);
+                }
+                if (plan.runs.isEmpty()) {
+                    System.out.println("Card already holds the image, nothing to write.");
+                    card.disconnect(false);
+                    return;
+                }
+
+                // error counter, PSC and one write command per run of changed bytes in one go
+                memoryCard.writeWithPSC(image, plan, PSC, MIN_ATTEMPTS);
+                System.out.printf("Written %d bytes with %d commands%n", plan.getBytesCount(), plan.runs.size());
+            } catch (Util.CardCheckFailedException | Util.CardUpdateFailedException e) {
                 card.disconnect(false);
-                throw new Util.CardCheckFailedException("PSC auth failed");
-            }
-
-            // Instruction "9.3.6.5. WRITE_MEMORY_CARD"
-            // write 4 bytes "01 02 03 04" starting with address 0x40 (in "P2" field)
-            // field "P1" is ignored
-            //                                         INS P1 P2 Lc
-            var writeCommand = Util.toByteArray("FF D0  00 40 04 01 02 03 04");
-            answer = channel.transmit(new CommandAPDU(writeCommand));
-            if (answer.getSW() != 0x9000) {
-                card.disconnect(false);
-                throw new Util.CardCheckFailedException("Write command failed");
+                throw e;
             }
 
             // disconnect card
@@ -94,10 +132,32 @@ class WriteCard {
 
         } catch (Util.CardCheckFailedException e) {
             System.out.printf("Error: %s%n", e.getMessage());
+        } catch (Util.CardUpdateFailedException e) {
+            System.out.printf("Error: %s%n", e.getMessage());
         } catch (Util.TerminalNotFoundException e) {
             System.out.println("No connected terminals.");
         } catch (CardException e) {
             System.out.println("CardException: " + e.toString());
         }
     }
+
+    // Simulated terminal with emulated card for "--simulate [latency]" at args[from],
+    // null if there are no more arguments.
+    static Simulator.Terminal parseSimulate(String[] args, int from) {
+        if (from == args.length) {
+            return null;
+        }
+        if (!args[from].equals("--simulate") || args.length > from + 2) {
+            throw new IllegalArgumentException();
+        }
+        long latency = 0;
+        if (args.length == from + 2) {
+            try {
+                latency = Long.parseLong(args[from + 1]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+        return new Simulator.Terminal("Simulated reader", new Sle4442Card()).setLatency(latency);
+    }
 }
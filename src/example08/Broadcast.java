@@ -0,0 +1,204 @@
+package example08;
+
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.smartcardio.*;
+
+// Broadcast: run the same script on cards in all readers at once.
+//
+// Every card gets its own thread, so the run takes as long as the slowest card.
+// Output of each card is collected separately and printed after the run together
+// with a table of results per reader. Card UID is shown only if asked for: reading it
+// sends GET DATA before the script, which not every card accepts.
+class Broadcast {
+    // Card connected in one of the readers.
+    static class Target {
+        final String readerName;
+        final Card card;
+        final CardChannel channel;
+        // "-" if not read
+        final String uid;
+
+        Target(String readerName, Card card, String uid) {
+            this.readerName = readerName;
+            this.card = card;
+            this.channel = card.getBasicChannel();
+            this.uid = uid;
+        }
+    }
+
+    // Result of script on one card.
+    static class Outcome {
+        final Target target;
+        final Script.Result result;
+        // exception message if script could not complete
+        final String error;
+        final String output;
+        final long elapsedNanos;
+
+        Outcome(Target target, Script.Result result, String error, String output, long elapsedNanos) {
+            this.target = target;
+            this.result = result;
+            this.error = error;
+            this.output = output;
+            this.elapsedNanos = elapsedNanos;
+        }
+    }
+
+    private final List<Target> targets;
+    private final ExecutorService executor;
+
+    private Broadcast(List<Target> targets) {
+        this.targets = targets;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, targets.size()), r -> {
+            var t = new Thread(r, "broadcast");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // Connect cards in all readers where a card is present, with UID read if readUID is set.
+    public static Broadcast connect(List<CardTerminal> terminals, boolean readUID) {
+        var targets = new ArrayList<Target>();
+        for (var terminal: terminals) {
+            try {
+                if (!terminal.isCardPresent()) {
+                    continue;
+                }
+                var card = terminal.connect("*");
+                var uid = readUID ? readUID(card.getBasicChannel()) : "-";
+                targets.add(new Target(terminal.getName(), card, uid));
+            } catch (CardException e) {
+                System.out.printf("Skipping %s: %s%n", terminal.getName(), e.getMessage());
+            }
+        }
+        return new Broadcast(targets);
+    }
+
+    public List<Target> getTargets() {
+        return targets;
+    }
+
+    // Run script on all cards in parallel, outcomes go in the order of targets.
+    public List<Outcome> run(Script script) {
+        var futures = new ArrayList<Future<Outcome>>(targets.size());
+        for (var target: targets) {
+            futures.add(executor.submit(() -> runOne(script, target)));
+        }
+        var outcomes = new ArrayList<Outcome>(targets.size());
+        for (int i=0; i<futures.size(); i++) {
+            try {
+                outcomes.add(futures.get(i).get());
+            } catch (InterruptedException | ExecutionException e) {
+                outcomes.add(new Outcome(targets.get(i), null, e.toString(), "", 0));
+            }
+        }
+        return outcomes;
+    }
+
+    public void close() {
+        executor.shutdown();
+        for (var target: targets) {
+            try {
+                target.card.disconnect(false);
+            } catch (CardException e) {
+                // card is gone already
+            }
+        }
+    }
+
+    // Print output of every card, then the results table.
+    public static void print(List<Outcome> outcomes, boolean withOutput, PrintStream out) {
+        if (withOutput) {
+            for (var outcome: outcomes) {
+                out.printf("--- %s, UID %s%n", outcome.target.readerName, outcome.target.uid);
+                out.print(outcome.output);
+            }
+        }
+        out.printf("%-32s %-23s %8s %-14s %10s%n", "Reader", "UID", "Commands", "Result", "Time, ms");
+        for (var outcome: outcomes) {
+            String status;
+            int commands = 0;
+            if (outcome.result == null) {
+                status = "ERROR";
+            } else {
+                commands = outcome.result.commandsCount;
+                if (!outcome.result.isSuccess()) {
+                    status = String.format("FAILED line %d", outcome.result.failedLine);
+                } else if (outcome.result.lastSW != -1) {
+                    status = String.format("OK %04X", outcome.result.lastSW);
+                } else {
+                    status = "OK";
+                }
+            }
+            out.printf("%-32s %-23s %8d %-14s %10.1f%n", outcome.target.readerName, outcome.target.uid,
+                commands, status, outcome.elapsedNanos / 1e6);
+            if (outcome.error != null) {
+                out.printf("    %s%n", outcome.error);
+            }
+        }
+    }
+
+    private static Outcome runOne(Script script, Target target) {
+        var buffer = new ByteArrayOutputStream();
+        var out = new PrintStream(buffer, true);
+        Script.Result result = null;
+        String error = null;
+        long startTime = System.nanoTime();
+        try {
+            result = script.run(target.channel, out);
+        } catch (Script.ScriptException e) {
+            error = "Script error: " + e.getMessage();
+        } catch (CardException e) {
+            error = "CardException: " + e.getMessage();
+        }
+        long elapsed = System.nanoTime() - startTime;
+        return new Outcome(target, result, error, buffer.toString(), elapsed);
+    }
+
+    // UID with PC/SC GET DATA, "-" if reader or card doesn't answer it
+    private static String readUID(CardChannel channel) {
+        try {
+            var answer = channel.transmit(new CommandAPDU(0xFF, 0xCA, 0x00, 0x00, 256));
+            if (answer.getSW() == 0x9000) {
+                return Util.hexify(answer.getData());
+            }
+        } catch (CardException e) {
+            // no UID
+        }
+        return "-";
+    }
+}
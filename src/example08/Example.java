@@ -27,10 +27,57 @@ package example08;
  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 
+import java.io.BufferedReader;
+import java.io.Console;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.List;
 import javax.smartcardio.*;
 
+// APDU console.
+//
+// Without arguments commands are typed one by one. With --batch <file> (or "-" for
+// standard input) a script is run, see Script for its syntax; exit status is 0 if all
+// status words matched, 1 if the script stopped on unexpected one, 2 on errors.
+//
+// With --broadcast commands or script go to cards in all readers in parallel, --uid
+// reads UID of every card with PC/SC GET DATA before that.
 public class Example {
     public static void main(String[] args) {
+        String batch = null;
+        boolean broadcast = false;
+        boolean readUID = false;
+        for (int i=0; i<args.length; i++) {
+            if (args[i].equals("--batch") && i + 1 < args.length) {
+                i++;
+                batch = args[i];
+            } else if (args[i].equals("--broadcast")) {
+                broadcast = true;
+            } else if (args[i].equals("--uid")) {
+                readUID = true;
+            } else {
+                System.out.println("Usage: Example [--broadcast [--uid]] [--batch <file>|-]");
+                System.exit(2);
+            }
+        }
+
+        // parse script before waiting for card
+        Script script = null;
+        if (batch != null) {
+            try (var reader = batch.equals("-")
+                    ? new BufferedReader(new InputStreamReader(System.in))
+                    : new BufferedReader(new FileReader(batch))) {
+                script = Script.parse(reader);
+            } catch (IOException e) {
+                System.out.printf("Cannot read script: %s%n", e.getMessage());
+                System.exit(2);
+            } catch (Script.ScriptException e) {
+                System.out.printf("Script error: %s%n", e.getMessage());
+                System.exit(2);
+            }
+        }
+
         try {
             var factory = TerminalFactory.getDefault();
             var terminals = factory.terminals().list();
@@ -39,6 +86,10 @@ public class Example {
                 throw new Util.TerminalNotFoundException();
             }
 
+            if (broadcast) {
+                System.exit(runBroadcast(terminals, script, readUID));
+            }
+
             // get first terminal
             var terminal = terminals.get(0);
 
@@ -53,12 +104,36 @@ public class Example {
             // obtain logical channel
             var channel = card.getBasicChannel();
 
+            if (script != null) {
+                int status = 0;
+                try {
+                    long startTime = System.nanoTime();
+                    var result = script.run(channel, System.out);
+                    System.out.printf("%d commands in %.1f ms (%.1f ms in transmit)%n", result.commandsCount,
+                        (System.nanoTime() - startTime) / 1e6, result.transmitNanos / 1e6);
+                    status = result.isSuccess() ? 0 : 1;
+                } catch (Script.ScriptException e) {
+                    System.out.printf("Script error: %s%n", e.getMessage());
+                    status = 2;
+                }
+                card.disconnect(false);
+                System.exit(status);
+            }
+
             System.out.println("Type quit or exit to stop the program.");
 
+            var in = new Input();
+
             // start infinite loop
             while (true) {
                 System.out.print("C-APDU> ");
-                var rawAPDU = System.console().readLine();
+                var rawAPDU = in.readLine();
+
+                // end of input
+                if (rawAPDU == null) {
+                    System.out.println();
+                    break;
+                }
 
                 if (rawAPDU.equals("quit") || rawAPDU.equals("exit")) {
                     break;
@@ -97,8 +172,77 @@ public class Example {
 
         } catch (Util.TerminalNotFoundException e) {
             System.out.println("No connected terminals.");
+            System.exit(2);
         } catch (CardException e) {
             System.out.println("CardException: " + e.toString());
+            System.exit(2);
+        }
+    }
+
+    // Run script, or typed commands if script is null, on cards in all readers.
+    // Returns exit status.
+    private static int runBroadcast(List<CardTerminal> terminals, Script script, boolean readUID) {
+        var broadcast = Broadcast.connect(terminals, readUID);
+        if (broadcast.getTargets().isEmpty()) {
+            System.out.println("No cards in readers.");
+            return 2;
+        }
+        System.out.printf("Broadcasting to %d cards%n", broadcast.getTargets().size());
+
+        int status = 0;
+        if (script != null) {
+            long startTime = System.nanoTime();
+            var outcomes = broadcast.run(script);
+            long elapsed = System.nanoTime() - startTime;
+            Broadcast.print(outcomes, true, System.out);
+            long sum = 0;
+            for (var outcome: outcomes) {
+                sum += outcome.elapsedNanos;
+                if (outcome.result == null) {
+                    status = 2;
+                } else if (!outcome.result.isSuccess() && status == 0) {
+                    status = 1;
+                }
+            }
+            System.out.printf("%d cards in %.1f ms (%.1f ms one after another)%n", outcomes.size(), elapsed / 1e6, sum / 1e6);
+        } else {
+            System.out.println("Type quit or exit to stop the program.");
+            var in = new Input();
+            while (true) {
+                System.out.print("C-APDU*> ");
+                var line = in.readLine();
+                if (line == null || line.equals("quit") || line.equals("exit")) {
+                    break;
+                }
+                if (line.isBlank()) {
+                    continue;
+                }
+                try {
+                    Broadcast.print(broadcast.run(Script.parse(List.of(line))), true, System.out);
+                } catch (Script.ScriptException e) {
+                    System.out.printf("ERROR: %s%n", e.getMessage());
+                }
+            }
+        }
+        broadcast.close();
+        return status;
+    }
+
+    // Lines typed by user, console is missing when input is redirected.
+    private static class Input {
+        private final Console console = System.console();
+        private final BufferedReader reader = console == null ? new BufferedReader(new InputStreamReader(System.in)) : null;
+
+        // next line, null at end of input
+        String readLine() {
+            if (console != null) {
+                return console.readLine();
+            }
+            try {
+                return reader.readLine();
+            } catch (IOException e) {
+                return null;
+            }
         }
     }
 }
@@ -0,0 +1,440 @@
+package example08;
+
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import javax.smartcardio.*;
+
+// APDU script for batch mode.
+//
+// One statement per line, "#" starts a comment:
+//
+//   set KEY = FF FF FF FF FF FF      variable, value is a byte string
+//   FF 82 00 00 06 $KEY              command, $NAME or ${NAME} is replaced by variable value
+//   FF 86 00 00 05 01 00 04 60 00 : 9000
+//                                    stop the script unless status word is 9000,
+//                                    X matches any digit: 61XX
+//   FF CA 00 00 00 : 9000 > UID      store response data in variable UID
+//   for BLOCK = 00 to 3F step 04     loop, BLOCK takes values 00, 04, ... 3C
+//     ...
+//   end
+//   repeat 10                        loop without variable
+//     ...
+//   end
+//   echo UID is $UID                 print text
+//
+// Script is parsed completely before the first command is sent, so syntax errors are
+// found without touching the card, and commands then go back-to-back.
+class Script {
+    static class ScriptException extends Exception {
+        public ScriptException(int line, String message) {
+            super(String.format("line %d: %s", line, message));
+        }
+    }
+
+    // Result of script run.
+    public static class Result {
+        public int commandsCount = 0;
+        public int failedLine = 0;
+        public long transmitNanos = 0;
+        // status word of the last command, -1 if nothing was sent
+        public int lastSW = -1;
+
+        public boolean isSuccess() {
+            return failedLine == 0;
+        }
+    }
+
+    // Byte string with variable references, kept as parts joined on evaluation.
+    private static class Template {
+        // byte[] for literal bytes, String for variable names
+        private final ArrayList<Object> parts = new ArrayList<Object>();
+        private final int line;
+
+        Template(int line) {
+            this.line = line;
+        }
+
+        byte[] evaluate(HashMap<String, byte[]> variables) throws ScriptException {
+            if (parts.size() == 1 && parts.get(0) instanceof byte[]) {
+                return (byte[])parts.get(0);
+            }
+            int length = 0;
+            var values = new byte[parts.size()][];
+            for (int i=0; i<parts.size(); i++) {
+                var part = parts.get(i);
+                if (part instanceof String) {
+                    var value = variables.get(part);
+                    if (value == null) {
+                        throw new ScriptException(line, "Undefined variable " + part);
+                    }
+                    values[i] = value;
+                } else {
+                    values[i] = (byte[])part;
+                }
+                length += values[i].length;
+            }
+            var bytes = new byte[length];
+            int p = 0;
+            for (var value: values) {
+                System.arraycopy(value, 0, bytes, p, value.length);
+                p += value.length;
+            }
+            return bytes;
+        }
+    }
+
+    // State of one script run, a parsed script can run on several cards at once.
+    private static class Context {
+        final CardChannel channel;
+        final PrintStream out;
+        final Result result = new Result();
+        final HashMap<String, byte[]> variables = new HashMap<String, byte[]>();
+
+        Context(CardChannel channel, PrintStream out) {
+            this.channel = channel;
+            this.out = out;
+        }
+    }
+
+    private interface Statement {
+        // false stops the script
+        boolean run(Context context) throws ScriptException, CardException;
+    }
+
+    private static class Command implements Statement {
+        final int line;
+        final Template apdu;
+        // expected status word as 4 characters, X for any digit, null to accept anything
+        final String expectedSW;
+        final String capture;
+
+        Command(int line, Template apdu, String expectedSW, String capture) {
+            this.line = line;
+            this.apdu = apdu;
+            this.expectedSW = expectedSW;
+            this.capture = capture;
+        }
+
+        public boolean run(Context context) throws ScriptException, CardException {
+            var bytes = apdu.evaluate(context.variables);
+            if (bytes.length < 4) {
+                throw new ScriptException(line, "APDU must be at least 4 bytes long");
+            }
+            CommandAPDU command;
+            try {
+                command = new CommandAPDU(bytes);
+            } catch (IllegalArgumentException e) {
+                // Lc doesn't match data length
+                throw new ScriptException(line, e.getMessage());
+            }
+            long startTime = System.nanoTime();
+            var answer = context.channel.transmit(command);
+            long elapsed = System.nanoTime() - startTime;
+            var result = context.result;
+            result.commandsCount++;
+            result.transmitNanos += elapsed;
+            result.lastSW = answer.getSW();
+
+            context.out.printf(">>> %s%n", Util.hexify(bytes));
+            context.out.printf("<<< %s  (%.2f ms)%n", Util.hexify(answer.getBytes()), elapsed / 1e6);
+
+            if (capture != null) {
+                context.variables.put(capture, answer.getData());
+            }
+            if (expectedSW != null && !matchSW(expectedSW, answer.getSW())) {
+                context.out.printf("FAILED at line %d: expected SW %s, got %04X%n", line, expectedSW, answer.getSW());
+                result.failedLine = line;
+                return false;
+            }
+            return true;
+        }
+
+        private static boolean matchSW(String pattern, int sw) {
+            var actual = String.format("%04X", sw);
+            for (int i=0; i<4; i++) {
+                var c = pattern.charAt(i);
+                if (c != 'X' && c != actual.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class Assignment implements Statement {
+        final String name;
+        final Template value;
+
+        Assignment(String name, Template value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        public boolean run(Context context) throws ScriptException {
+            context.variables.put(name, value.evaluate(context.variables));
+            return true;
+        }
+    }
+
+    private static class Echo implements Statement {
+        final String text;
+
+        Echo(String text) {
+            this.text = text;
+        }
+
+        public boolean run(Context context) {
+            var sb = new StringBuilder();
+            for (var word: text.split(" ", -1)) {
+                if (sb.length() > 0) {
+                    sb.append(' ');
+                }
+                var name = variableName(word);
+                var value = name == null ? null : context.variables.get(name);
+                sb.append(value == null ? word : Util.hexify(value));
+            }
+            context.out.println(sb.toString());
+            return true;
+        }
+    }
+
+    private static class Loop implements Statement {
+        // loop variable, null for repeat
+        final String name;
+        final int from;
+        final int to;
+        final int step;
+        final ArrayList<Statement> body = new ArrayList<Statement>();
+
+        Loop(String name, int from, int to, int step) {
+            this.name = name;
+            this.from = from;
+            this.to = to;
+            this.step = step;
+        }
+
+        public boolean run(Context context) throws ScriptException, CardException {
+            for (int i=from; i<=to; i+=step) {
+                if (name != null) {
+                    // one byte while values fit, two bytes otherwise
+                    context.variables.put(name, to <= 0xFF ? new byte[] {(byte)i} : new byte[] {(byte)(i >> 8), (byte)i});
+                }
+                for (var statement: body) {
+                    if (!statement.run(context)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    private final ArrayList<Statement> statements = new ArrayList<Statement>();
+
+    private Script() {
+    }
+
+    public static Script parse(BufferedReader reader) throws IOException, ScriptException {
+        var lines = new ArrayList<String>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lines.add(line);
+        }
+        return parse(lines);
+    }
+
+    public static Script parse(List<String> lines) throws ScriptException {
+        var script = new Script();
+        // innermost loop last
+        var blocks = new ArrayList<ArrayList<Statement>>();
+        var loopLines = new ArrayList<Integer>();
+        blocks.add(script.statements);
+
+        for (int n=1; n<=lines.size(); n++) {
+            var text = lines.get(n - 1);
+            var comment = text.indexOf('#');
+            if (comment != -1) {
+                text = text.substring(0, comment);
+            }
+            text = text.trim();
+            if (text.isEmpty()) {
+                continue;
+            }
+            var words = text.split("\\s+");
+            var block = blocks.get(blocks.size() - 1);
+
+            switch (words[0].toLowerCase()) {
+            case "set":
+                if (words.length < 4 || !words[2].equals("=") || !isName(words[1])) {
+                    throw new ScriptException(n, "Expected: set NAME = BYTES");
+                }
+                block.add(new Assignment(words[1], parseTemplate(n, words, 3, words.length)));
+                break;
+            case "echo":
+                block.add(new Echo(text.substring(4).trim()));
+                break;
+            case "for": {
+                // for NAME = FROM to TO [step STEP]
+                if ((words.length != 6 && words.length != 8) || !isName(words[1]) || !words[2].equals("=")
+                        || !words[4].equalsIgnoreCase("to") || (words.length == 8 && !words[6].equalsIgnoreCase("step"))) {
+                    throw new ScriptException(n, "Expected: for NAME = FROM to TO [step STEP]");
+                }
+                var loop = new Loop(words[1], parseNumber(n, words[3], 16), parseNumber(n, words[5], 16),
+                    words.length == 8 ? parseNumber(n, words[7], 16) : 1);
+                if (loop.step <= 0 || loop.to > 0xFFFF) {
+                    throw new ScriptException(n, "Loop step must be positive and values at most FFFF");
+                }
+                block.add(loop);
+                blocks.add(loop.body);
+                loopLines.add(n);
+                break;
+            }
+            case "repeat": {
+                if (words.length != 2) {
+                    throw new ScriptException(n, "Expected: repeat COUNT");
+                }
+                var loop = new Loop(null, 1, parseNumber(n, words[1], 10), 1);
+                block.add(loop);
+                blocks.add(loop.body);
+                loopLines.add(n);
+                break;
+            }
+            case "end":
+                if (blocks.size() == 1) {
+                    throw new ScriptException(n, "end without loop");
+                }
+                blocks.remove(blocks.size() - 1);
+                loopLines.remove(loopLines.size() - 1);
+                break;
+            default:
+                block.add(parseCommand(n, words));
+            }
+        }
+        if (blocks.size() > 1) {
+            throw new ScriptException(loopLines.get(loopLines.size() - 1), "Loop without end");
+        }
+        return script;
+    }
+
+    // Run statements one after another, stops on first unexpected status word.
+    // Every run starts without variables, runs on different cards may go in parallel.
+    public Result run(CardChannel channel, PrintStream out) throws ScriptException, CardException {
+        var context = new Context(channel, out);
+        for (var statement: statements) {
+            if (!statement.run(context)) {
+                break;
+            }
+        }
+        return context.result;
+    }
+
+    // BYTES [: SW] [> NAME]
+    private static Command parseCommand(int line, String[] words) throws ScriptException {
+        int end = words.length;
+        String capture = null;
+        String expectedSW = null;
+        if (end >= 2 && words[end - 2].equals(">")) {
+            capture = words[end - 1];
+            if (!isName(capture)) {
+                throw new ScriptException(line, "Incorrect variable name " + capture);
+            }
+            end -= 2;
+        }
+        if (end >= 2 && words[end - 2].equals(":")) {
+            expectedSW = words[end - 1].toUpperCase();
+            if (!expectedSW.matches("[0-9A-FX]{4}")) {
+                throw new ScriptException(line, "Incorrect status word " + words[end - 1]);
+            }
+            end -= 2;
+        }
+        return new Command(line, parseTemplate(line, words, 0, end), expectedSW, capture);
+    }
+
+    private static Template parseTemplate(int line, String[] words, int from, int to) throws ScriptException {
+        var template = new Template(line);
+        var literal = new StringBuilder();
+        for (int i=from; i<to; i++) {
+            var name = variableName(words[i]);
+            if (name != null) {
+                addLiteral(line, template, literal);
+                template.parts.add(name);
+            } else {
+                literal.append(words[i]);
+            }
+        }
+        addLiteral(line, template, literal);
+        if (template.parts.isEmpty()) {
+            throw new ScriptException(line, "Empty byte string");
+        }
+        return template;
+    }
+
+    private static void addLiteral(int line, Template template, StringBuilder literal) throws ScriptException {
+        if (literal.length() == 0) {
+            return;
+        }
+        if (literal.length() % 2 != 0) {
+            throw new ScriptException(line, "Odd number of hex digits");
+        }
+        try {
+            template.parts.add(Util.toByteArray(literal.toString()));
+        } catch (Util.ByteStringParseException e) {
+            throw new ScriptException(line, "Incorrect byte string: " + e.getMessage());
+        }
+        literal.setLength(0);
+    }
+
+    private static int parseNumber(int line, String word, int radix) throws ScriptException {
+        try {
+            return Integer.parseInt(word, radix);
+        } catch (NumberFormatException e) {
+            throw new ScriptException(line, "Incorrect number " + word);
+        }
+    }
+
+    // NAME from $NAME or ${NAME}, null if word is not a variable reference
+    private static String variableName(String word) {
+        String name = null;
+        if (word.startsWith("${") && word.endsWith("}")) {
+            name = word.substring(2, word.length() - 1);
+        } else if (word.startsWith("$")) {
+            name = word.substring(1);
+        }
+        return name != null && isName(name) ? name : null;
+    }
+
+    private static boolean isName(String s) {
+        return s.matches("[A-Za-z_][A-Za-z0-9_]*");
+    }
+}
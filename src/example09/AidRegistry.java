@@ -0,0 +1,186 @@
+package example09;
+
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Properties;
+
+// Payment application AIDs tried when the card has neither PPSE nor PSE.
+//
+// Candidates are tried in order of their hits at this site, so the most common scheme
+// is selected first; AIDs without hits keep the configured order. Hits are counted for
+// every read card whose AID is in the registry, whichever way it was found.
+//
+// Registry is stored in a properties file, aids replaces the built-in list:
+//   aids=<AID hex>,<AID hex>,...
+//   name.<AID hex>=<name>
+//   hits.<AID hex>=<count>
+class AidRegistry {
+    public static final String DEFAULT_FILE = "aids.properties";
+
+    private static final String[][] DEFAULT_AIDS = {
+        {"A0000000031010", "Visa Classic"},
+        {"A0000000032010", "Visa Electron"},
+        {"A0000000041010", "Mastercard"},
+        {"A0000000043060", "Maestro"},
+        {"A0000006581010", "Mir"},
+        {"A000000333010101", "UnionPay Debit"},
+        {"A000000333010102", "UnionPay Credit"},
+        {"A00000002501", "American Express"},
+        {"A0000000651010", "JCB"},
+        {"A0000001523010", "Discover"},
+    };
+
+    private final String fileName;
+    // AID hex -> name, in configured order
+    private final LinkedHashMap<String, String> names = new LinkedHashMap<String, String>();
+    // AID hex -> hits
+    private final HashMap<String, Long> hits = new HashMap<String, Long>();
+    private boolean changed = false;
+
+    // statistics
+    private long guesses = 0;
+    private long guessSelects = 0;
+
+    // Built-in AIDs, nothing is saved.
+    public AidRegistry() {
+        this(null);
+        for (var aid: DEFAULT_AIDS) {
+            names.put(aid[0], aid[1]);
+        }
+    }
+
+    private AidRegistry(String fileName) {
+        this.fileName = fileName;
+    }
+
+    // Load registry from file, missing or unreadable file gives built-in AIDs.
+    public static AidRegistry load(String fileName) {
+        var registry = new AidRegistry(fileName);
+        var props = new Properties();
+        try (var in = new FileInputStream(fileName)) {
+            props.load(in);
+        } catch (IOException e) {
+            // first run
+        }
+        var configured = props.getProperty("aids", "").trim();
+        if (configured.isEmpty()) {
+            for (var aid: DEFAULT_AIDS) {
+                registry.names.put(aid[0], aid[1]);
+            }
+        } else {
+            for (var aid: configured.split("\\s*,\\s*")) {
+                aid = aid.toUpperCase();
+                registry.names.put(aid, props.getProperty("name." + aid, aid));
+            }
+        }
+        for (var key: props.stringPropertyNames()) {
+            if (key.startsWith("hits.")) {
+                try {
+                    registry.hits.put(key.substring(5).toUpperCase(), Long.parseLong(props.getProperty(key)));
+                } catch (NumberFormatException e) {
+                    // skip broken entry
+                }
+            }
+        }
+        return registry;
+    }
+
+    public static AidRegistry load() {
+        return load(DEFAULT_FILE);
+    }
+
+    // AIDs to try, most hits first.
+    public synchronized List<byte[]> getCandidates() {
+        var keys = new ArrayList<String>(names.keySet());
+        // List.sort() is stable, AIDs with equal hits stay in configured order
+        keys.sort(Comparator.comparingLong((String aid) -> hits.getOrDefault(aid, 0L)).reversed());
+        var res = new ArrayList<byte[]>(keys.size());
+        for (var aid: keys) {
+            res.add(Util.toByteArray(aid));
+        }
+        return res;
+    }
+
+    // Name of the AID, null if it isn't registered.
+    public synchronized String getName(byte[] aid) {
+        return names.get(hex(aid));
+    }
+
+    // Count read card with this AID.
+    public synchronized void hit(byte[] aid) {
+        var key = hex(aid);
+        if (names.containsKey(key)) {
+            hits.merge(key, 1L, Long::sum);
+            changed = true;
+        }
+    }
+
+    // Count guessing that took selects SELECT commands.
+    public synchronized void guessed(int selects) {
+        guesses++;
+        guessSelects += selects;
+    }
+
+    public synchronized String getStatistics() {
+        return String.format("AIDs: %d, guesses: %d (%.1f SELECTs average)",
+            names.size(), guesses, guesses == 0 ? 0.0 : (double)guessSelects / guesses);
+    }
+
+    // Write hit counters, failure only loses statistics.
+    public synchronized void flush() {
+        if (fileName == null || !changed) {
+            return;
+        }
+        var props = new Properties();
+        props.setProperty("aids", String.join(",", names.keySet()));
+        for (var entry: names.entrySet()) {
+            props.setProperty("name." + entry.getKey(), entry.getValue());
+        }
+        for (var entry: hits.entrySet()) {
+            props.setProperty("hits." + entry.getKey(), Long.toString(entry.getValue()));
+        }
+        try (var out = new FileOutputStream(fileName)) {
+            props.store(out, "Payment AIDs and their hits, written by example09");
+            changed = false;
+        } catch (IOException e) {
+            System.out.printf("Cannot write AID registry `%s`: %s%n", fileName, e.getMessage());
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        return Util.hexify(bytes).replace(" ", "");
+    }
+}
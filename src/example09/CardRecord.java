@@ -0,0 +1,304 @@
+package example09;
+
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+// Data of one read card: primitive data objects of all records, keyed by int tag and
+// kept with the SFI and record number they came from. Nested templates are flattened.
+//
+// EMV doesn't allow a tag to appear in records twice; which copy is kept for such
+// cards is decided by the duplicate policy, duplicates are counted anyway.
+//
+// Records are appended to a compact binary file and read back without the card:
+//
+//   try (var writer = new CardRecord.Writer(Path.of("cards.bin"))) {
+//       writer.write(record);
+//   }
+//   try (var reader = new CardRecord.Reader(Path.of("cards.bin"))) {
+//       for (var r = reader.next(); r != null; r = reader.next()) { ... }
+//   }
+//
+// File format, all numbers are unsigned LEB128 varints unless noted:
+//   magic "EMVR", version (byte)
+//   card: 'R', read time (ms since epoch), AID length, AID, duplicates, entries count,
+//         entries count * (tag, SFI, record number, value length, value)
+class CardRecord {
+    private static final byte[] MAGIC = {'E', 'M', 'V', 'R'};
+    private static final int VERSION = 1;
+    private static final int RECORD = 'R';
+
+    // What to do with a tag that is already in the record.
+    public enum Duplicates {
+        // keep the first copy
+        FIRST,
+        // replace it with the later one
+        LAST,
+        // keep every copy
+        ALL
+    }
+
+    public static class Entry {
+        public final int tag;
+        public final int sfi;
+        public final int record;
+        public final byte[] value;
+
+        Entry(int tag, int sfi, int record, byte[] value) {
+            this.tag = tag;
+            this.sfi = sfi;
+            this.record = record;
+            this.value = value;
+        }
+    }
+
+    private final byte[] aid;
+    private final long time;
+    private final Duplicates policy;
+    private final ArrayList<Entry> entries = new ArrayList<Entry>();
+    // tag -> index of its entry in entries, the first one for Duplicates.ALL
+    private final HashMap<Integer, Integer> index = new HashMap<Integer, Integer>();
+    private int duplicates = 0;
+
+    public CardRecord(byte[] aid, long time, Duplicates policy) {
+        this.aid = aid.clone();
+        this.time = time;
+        this.policy = policy;
+    }
+
+    public byte[] getAID() {
+        return aid.clone();
+    }
+
+    // Read time, ms since epoch.
+    public long getTime() {
+        return time;
+    }
+
+    // Number of data objects that repeated a tag already in the record.
+    public int getDuplicates() {
+        return duplicates;
+    }
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    public boolean has(int tag) {
+        return index.containsKey(tag);
+    }
+
+    // Entry of the tag, null if the card doesn't have it.
+    public Entry get(int tag) {
+        var i = index.get(tag);
+        return i == null ? null : entries.get(i);
+    }
+
+    // Value of the tag, null if the card doesn't have it.
+    public byte[] getValue(int tag) {
+        var e = get(tag);
+        return e == null ? null : e.value;
+    }
+
+    // All entries of the tag, more than one only with Duplicates.ALL.
+    public List<Entry> getAll(int tag) {
+        var res = new ArrayList<Entry>();
+        for (var e: entries) {
+            if (e.tag == tag) {
+                res.add(e);
+            }
+        }
+        return res;
+    }
+
+    // Add primitive data objects of tlv, constructed ones are walked recursively.
+    public void add(BerTlv tlv, int sfi, int record) {
+        if (tlv.getEncoding() == BerTlv.Encoding.CONSTRUCTED) {
+            for (var part: tlv.getParts()) {
+                add(part, sfi, record);
+            }
+            return;
+        }
+        add(EmvTags.tagOf(tlv.getTag()), tlv.getValue(), sfi, record);
+    }
+
+    public void add(int tag, byte[] value, int sfi, int record) {
+        var entry = new Entry(tag, sfi, record, value);
+        var i = index.get(tag);
+        if (i == null) {
+            index.put(tag, entries.size());
+            entries.add(entry);
+            return;
+        }
+        duplicates++;
+        if (policy == Duplicates.LAST) {
+            entries.set(i, entry);
+        } else if (policy == Duplicates.ALL) {
+            entries.add(entry);
+        }
+    }
+
+    // Appends records to a file, creates it with header if it is empty. Not thread safe.
+    public static class Writer implements AutoCloseable {
+        private final DataOutputStream out;
+
+        public Writer(Path path) throws IOException {
+            boolean empty = !Files.exists(path) || Files.size(path) == 0;
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+            if (empty) {
+                out.write(MAGIC);
+                out.writeByte(VERSION);
+            }
+        }
+
+        public void write(CardRecord record) throws IOException {
+            out.writeByte(RECORD);
+            writeVarint(record.time);
+            writeBytes(record.aid);
+            writeVarint(record.duplicates);
+            writeVarint(record.entries.size());
+            for (var e: record.entries) {
+                writeVarint(e.tag);
+                writeVarint(e.sfi);
+                writeVarint(e.record);
+                writeBytes(e.value);
+            }
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        public void close() throws IOException {
+            out.close();
+        }
+
+        private void writeBytes(byte[] bytes) throws IOException {
+            writeVarint(bytes.length);
+            out.write(bytes);
+        }
+
+        private void writeVarint(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                out.writeByte((int)(value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte((int)value);
+        }
+    }
+
+    // Reads records of a file one by one.
+    public static class Reader implements AutoCloseable {
+        private final DataInputStream in;
+
+        public Reader(Path path) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)));
+            try {
+                var magic = new byte[MAGIC.length];
+                in.readFully(magic);
+                if (!Arrays.equals(magic, MAGIC)) {
+                    throw new IOException("Not a card record file");
+                }
+                int version = in.readUnsignedByte();
+                if (version != VERSION) {
+                    throw new IOException(String.format("Unsupported card record version: %d", version));
+                }
+            } catch (IOException e) {
+                in.close();
+                throw e instanceof EOFException ? new IOException("Card record file is truncated") : e;
+            }
+        }
+
+        // Next record, null at the end of file. Records read keep all stored entries.
+        public CardRecord next() throws IOException {
+            int type = in.read();
+            if (type == -1) {
+                return null;
+            }
+            if (type != RECORD) {
+                throw new IOException(String.format("Broken card record file, record type %02X", type));
+            }
+            try {
+                long time = readVarint();
+                var record = new CardRecord(readBytes(), time, Duplicates.ALL);
+                int duplicates = (int)readVarint();
+                long count = readVarint();
+                for (long i=0; i<count; i++) {
+                    int tag = (int)readVarint();
+                    int sfi = (int)readVarint();
+                    int number = (int)readVarint();
+                    record.add(tag, readBytes(), sfi, number);
+                }
+                record.duplicates = duplicates;
+                return record;
+            } catch (EOFException e) {
+                throw new IOException("Card record file is truncated");
+            }
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private byte[] readBytes() throws IOException {
+            long length = readVarint();
+            if (length > 0x10000) {
+                throw new IOException(String.format("Broken card record file, value length %d", length));
+            }
+            var bytes = new byte[(int)length];
+            in.readFully(bytes);
+            return bytes;
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+            for (int shift=0; shift<64; shift+=7) {
+                int b = in.readUnsignedByte();
+                value |= (long)(b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Broken card record file, varint too long");
+        }
+    }
+}
@@ -0,0 +1,395 @@
+package example09;
+
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.smartcardio.*;
+
+// Collector: reads EMV cards in all readers at once and appends their data to a card
+// record file (see CardRecord), for labs that read thousands of test cards.
+//
+// Every reader has its own worker thread: wait for a card, SELECT, GPO and read AFL
+// records with EmvReader, put the record into a bounded queue, wait for the card to be
+// taken away. One writer thread appends queued records to the file. If the file can't
+// keep up, the queue fills and workers wait before they take the next card, so a slow
+// disk slows down reading instead of growing memory.
+//
+// Usage: Collector <output file> [--profiles <file>] [--queue <size>] [--report <seconds>]
+//     [--tags <hex list> [--oda]]
+// Runs until interrupted (Ctrl+C); queued records are written before exit. A failed write
+// stops collection, records that can't be written are counted as dropped. Report with
+// cards per minute and latency of each step is printed periodically and on exit.
+// With --tags (e.g. 5A,5F24,5F20) records are read only until these tags are collected,
+// --oda still reads records signed for offline data authentication.
+class Collector {
+    // wakes up workers and writer to check for stop
+    private static final long POLL_MILLIS = 500;
+
+    private final List<CardTerminal> terminals;
+    private final CardRecord.Writer writer;
+    private final EmvProfiles profiles;
+    private final AidRegistry aidRegistry;
+    private final BlockingQueue<CardRecord> queue;
+    private Set<Integer> requiredTags = Set.of();
+    private boolean offlineAuth = false;
+    private final ArrayList<Thread> workers = new ArrayList<Thread>();
+    private Thread writerThread = null;
+    private volatile boolean stopped = false;
+    private volatile IOException writeError = null;
+
+    // statistics
+    private final long startTime = System.nanoTime();
+    private final AtomicLong cardsCount = new AtomicLong();
+    private final AtomicLong failuresCount = new AtomicLong();
+    private final AtomicLong noApplicationCount = new AtomicLong();
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong queueWaits = new AtomicLong();
+    private final AtomicLong queueWaitNanos = new AtomicLong();
+    private final AtomicLong skippedRecords = new AtomicLong();
+    private final Metrics.Histogram selectLatency = new Metrics.Histogram();
+    private final Metrics.Histogram gpoLatency = new Metrics.Histogram();
+    private final Metrics.Histogram recordsLatency = new Metrics.Histogram();
+    private final Metrics.Histogram cardLatency = new Metrics.Histogram();
+    private long lastReportTime = startTime;
+    private long lastReportCards = 0;
+
+    public Collector(List<CardTerminal> terminals, CardRecord.Writer writer, EmvProfiles profiles,
+        AidRegistry aidRegistry, int queueSize)
+    {
+        this.terminals = terminals;
+        this.writer = writer;
+        this.profiles = profiles;
+        this.aidRegistry = aidRegistry;
+        this.queue = new ArrayBlockingQueue<CardRecord>(queueSize);
+    }
+
+    public static void main(String[] args) {
+        String output = null;
+        String profilesFile = null;
+        int queueSize = 1000;
+        int reportSeconds = 60;
+        Set<Integer> requiredTags = Set.of();
+        boolean offlineAuth = false;
+        try {
+            for (int i=0; i<args.length; i++) {
+                var arg = args[i];
+                if (arg.startsWith("--") && i + 1 == args.length) {
+                    throw new IllegalArgumentException();
+                }
+                switch (arg) {
+                case "--profiles":
+                    profilesFile = args[++i];
+                    break;
+                case "--queue":
+                    queueSize = Integer.parseInt(args[++i]);
+                    break;
+                case "--report":
+                    reportSeconds = Integer.parseInt(args[++i]);
+                    break;
+                case "--tags":
+                    requiredTags = EmvReader.parseTags(args[++i]);
+                    break;
+                case "--oda":
+                    offlineAuth = true;
+                    break;
+                default:
+                    if (arg.startsWith("--") || output != null) {
+                        throw new IllegalArgumentException();
+                    }
+                    output = arg;
+                }
+            }
+            if (output == null || queueSize < 1 || reportSeconds < 1 || (offlineAuth && requiredTags.isEmpty())) {
+                throw new IllegalArgumentException();
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("Usage: Collector <output file> [--profiles <file>] [--queue <size>] [--report <seconds>] [--tags <hex list> [--oda]]");
+            System.exit(1);
+        }
+
+        // let transport resolve 61xx and 6Cxx, so extra round-trips are counted
+        Transport.disableProviderResponseHandling();
+
+        try {
+            var terminals = TerminalFactory.getDefault().terminals().list();
+            if (terminals.size() == 0) {
+                throw new Util.TerminalNotFoundException();
+            }
+            var profiles = profilesFile == null ? new EmvProfiles() : EmvProfiles.load(profilesFile);
+            var aidRegistry = AidRegistry.load();
+            var collector = new Collector(terminals, new CardRecord.Writer(Path.of(output)), profiles, aidRegistry, queueSize);
+            collector.setRequiredTags(requiredTags, offlineAuth);
+
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                collector.stop();
+                profiles.flush();
+                aidRegistry.flush();
+                System.out.print(collector.getReport());
+            }));
+
+            System.out.printf("Collecting cards from %d readers into %s%n", terminals.size(), output);
+            collector.start();
+            long nextReport = System.nanoTime() + reportSeconds * 1_000_000_000L;
+            while (!collector.isFailed()) {
+                Thread.sleep(POLL_MILLIS);
+                if (System.nanoTime() - nextReport >= 0) {
+                    System.out.print(collector.getReport());
+                    nextReport += reportSeconds * 1_000_000_000L;
+                }
+            }
+            // workers stopped after write error, shutdown hook prints the final report
+            System.exit(1);
+        } catch (Util.TerminalNotFoundException e) {
+            System.out.println("No connected terminals.");
+        } catch (CardException e) {
+            System.out.println("CardException: " + e.toString());
+        } catch (IOException e) {
+            System.out.println("File error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            // shutdown hook stops the collector
+        }
+    }
+
+    // See EmvReader.setRequiredTags(), must be called before start().
+    public void setRequiredTags(Set<Integer> requiredTags, boolean offlineAuth) {
+        this.requiredTags = requiredTags;
+        this.offlineAuth = offlineAuth;
+    }
+
+    public void start() {
+        for (var terminal : terminals) {
+            var worker = new Thread(() -> readCards(terminal), "collector-" + terminal.getName());
+            workers.add(worker);
+            worker.start();
+        }
+        // started after all workers, so it sees the complete list
+        writerThread = new Thread(this::writeRecords, "collector-writer");
+        writerThread.start();
+    }
+
+    // True once writing failed, collection stops then.
+    public boolean isFailed() {
+        return writeError != null;
+    }
+
+    // Stop reading, write queued records and close the file.
+    public void stop() {
+        stopped = true;
+        try {
+            for (var worker : workers) {
+                worker.join();
+            }
+            if (writerThread != null) {
+                writerThread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            System.out.println("File error: " + e.getMessage());
+        }
+    }
+
+    public synchronized String getReport() {
+        long now = System.nanoTime();
+        long cards = cardsCount.get();
+        double minutes = (now - startTime) / 60e9;
+        double periodMinutes = (now - lastReportTime) / 60e9;
+        var sb = new StringBuilder();
+        sb.append(String.format("Cards: %d (%.1f/min, %.1f/min since last report), failed: %d, without application: %d%n",
+            cards, minutes == 0 ? 0.0 : cards / minutes,
+            periodMinutes == 0 ? 0.0 : (cards - lastReportCards) / periodMinutes,
+            failuresCount.get(), noApplicationCount.get()));
+        sb.append(String.format("Written: %d, queued: %d, waits for queue: %d (%.1f ms total)%n",
+            writtenCount.get(), queue.size(), queueWaits.get(), queueWaitNanos.get() / 1e6));
+        if (!requiredTags.isEmpty()) {
+            sb.append(String.format("Records skipped after required tags: %d%n", skippedRecords.get()));
+        }
+        sb.append(String.format("  %-8s %10s %10s %10s %10s%n", "step", "p50 ms", "p95 ms", "p99 ms", "max ms"));
+        appendLatency(sb, "select", selectLatency);
+        appendLatency(sb, "gpo", gpoLatency);
+        appendLatency(sb, "records", recordsLatency);
+        appendLatency(sb, "card", cardLatency);
+        if (writeError != null) {
+            // records left in the queue are never written
+            sb.append(String.format("Write failed: %s, records dropped: %d%n", writeError.getMessage(),
+                droppedCount.get() + queue.size()));
+        }
+        lastReportTime = now;
+        lastReportCards = cards;
+        return sb.toString();
+    }
+
+    private static void appendLatency(StringBuilder sb, String step, Metrics.Histogram h) {
+        sb.append(String.format("  %-8s %10.1f %10.1f %10.1f %10.1f%n", step,
+            h.getPercentile(50) / 1e6, h.getPercentile(95) / 1e6, h.getPercentile(99) / 1e6, h.getMax() / 1e6));
+    }
+
+    // Worker of one reader.
+    private void readCards(CardTerminal terminal) {
+        var terminalData = new TerminalData();
+        while (!stopped) {
+            try {
+                if (!terminal.waitForCardPresent(POLL_MILLIS)) {
+                    continue;
+                }
+                readCard(terminal, terminalData);
+                // same card must not be read twice
+                boolean absent = false;
+                while (!stopped && !absent) {
+                    absent = terminal.waitForCardAbsent(POLL_MILLIS);
+                }
+            } catch (CardException e) {
+                // reader is gone or busy, try again later
+                failuresCount.incrementAndGet();
+                System.out.printf("[%s] %s%n", terminal.getName(), e.getMessage());
+                sleep(POLL_MILLIS);
+            }
+        }
+    }
+
+    private void readCard(CardTerminal terminal, TerminalData terminalData) throws CardException {
+        long startTime = System.nanoTime();
+        var card = terminal.connect("*");
+        var transport = Transport.of(card.getBasicChannel(), Transport.Profile.ISO7816);
+        try {
+            transport.setReaderName(terminal.getName());
+            var reader = new EmvReader(transport, profiles, terminalData);
+            reader.setContactless(EmvReader.isContactless(card.getATR()));
+            reader.setAidRegistry(aidRegistry);
+            reader.setRequiredTags(requiredTags, offlineAuth);
+            var data = reader.read();
+            if (data == null) {
+                noApplicationCount.incrementAndGet();
+                return;
+            }
+            cardsCount.incrementAndGet();
+            selectLatency.record(data.selectNanos);
+            gpoLatency.record(data.gpoNanos);
+            recordsLatency.record(data.recordsNanos);
+            skippedRecords.addAndGet(data.skippedRecords);
+            cardLatency.record(System.nanoTime() - startTime);
+            enqueue(data.record);
+        } catch (Util.CardOperationFailedException e) {
+            failuresCount.incrementAndGet();
+            System.out.printf("[%s] %s%n", terminal.getName(), e.getMessage());
+        } finally {
+            transport.close();
+            card.disconnect(false);
+        }
+    }
+
+    // Block while the queue is full: backpressure from a slow writer.
+    private void enqueue(CardRecord record) {
+        if (writeError != null) {
+            droppedCount.incrementAndGet();
+            return;
+        }
+        if (queue.offer(record)) {
+            return;
+        }
+        queueWaits.incrementAndGet();
+        long waitStart = System.nanoTime();
+        try {
+            while (!queue.offer(record, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (writeError != null) {
+                    // nobody takes records anymore
+                    droppedCount.incrementAndGet();
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            queueWaitNanos.addAndGet(System.nanoTime() - waitStart);
+        }
+    }
+
+    // Writer thread: append queued records, flush when the queue is drained. Records count
+    // as written once flushed.
+    private void writeRecords() {
+        int unflushed = 0;
+        try {
+            while (true) {
+                var record = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (record == null) {
+                    if (stopped && workersDone()) {
+                        break;
+                    }
+                    continue;
+                }
+                unflushed++;
+                writer.write(record);
+                if (queue.isEmpty()) {
+                    writer.flush();
+                    writtenCount.addAndGet(unflushed);
+                    unflushed = 0;
+                }
+            }
+            writer.flush();
+            writtenCount.addAndGet(unflushed);
+        } catch (IOException e) {
+            // records not flushed are lost; stop workers instead of reading cards nobody
+            // can store
+            droppedCount.addAndGet(unflushed);
+            writeError = e;
+            stopped = true;
+            System.out.printf("Write failed, collection stopped: %s%n", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean workersDone() {
+        for (var worker : workers) {
+            if (worker.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
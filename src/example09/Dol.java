@@ -0,0 +1,222 @@
+package example09;
+
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+// Data Object List (PDOL, CDOL1, CDOL2, ...): tags and lengths of the data the card
+// wants from the terminal, see EMV_v4.3 book 3, section "5.4 Rules for Using a Data
+// Object List (DOL)".
+//
+// DOL is parsed once into entries and compiled into a Plan: offsets of all entries in
+// a preallocated buffer. Plan.build() copies current terminal data into the buffer,
+// Cache keeps compiled plans per AID so repeated transactions skip parsing.
+//
+//   var plan = Dol.CACHE.get(aid, Dol.PDOL, pdolBytes);
+//   var gpoData = plan.build(terminalData);  // 83 <len> <values...>
+class Dol {
+    // plans shared by all transactions of this process
+    public static final Cache CACHE = new Cache();
+
+    // tags of DOLs in application data
+    public static final int PDOL = 0x9F38;
+    public static final int CDOL1 = 0x8C;
+    public static final int CDOL2 = 0x8D;
+
+    public static class Entry {
+        public final int tag;
+        public final int length;
+
+        Entry(int tag, int length) {
+            this.tag = tag;
+            this.length = length;
+        }
+
+        public String toString() {
+            return String.format("%X(%d)", tag, length);
+        }
+    }
+
+    private final byte[] bytes;
+    private final List<Entry> entries;
+    private final int dataLength;
+
+    private Dol(byte[] bytes, List<Entry> entries, int dataLength) {
+        this.bytes = bytes;
+        this.entries = entries;
+        this.dataLength = dataLength;
+    }
+
+    // Parse DOL value: sequence of BER tags each followed by one length byte.
+    public static Dol parse(byte[] bytes)
+        throws BerTlv.ParsingException
+    {
+        var entries = new ArrayList<Entry>();
+        int dataLength = 0;
+        int p = 0;
+        while (p < bytes.length) {
+            int tag = bytes[p] & 0xFF;
+            if ((tag & 0x1F) == 0x1F) {
+                // xxx1 1111, i.e. tag continues in later bytes while bit 8 is set
+                int tagLength = 1;
+                do {
+                    p++;
+                    tagLength++;
+                    if (p == bytes.length) {
+                        throw new BerTlv.ParsingException("DOL ends inside a tag");
+                    }
+                    if (tagLength > 3) {
+                        throw new BerTlv.ParsingException("DOL tag is longer than 3 bytes");
+                    }
+                    tag = (tag << 8) | (bytes[p] & 0xFF);
+                } while ((bytes[p] & 0x80) != 0);
+            }
+            p++;
+            if (p == bytes.length) {
+                throw new BerTlv.ParsingException(String.format("DOL entry %X has no length", tag));
+            }
+            int length = bytes[p] & 0xFF;
+            if (length > 0x7F) {
+                throw new BerTlv.ParsingException(String.format("DOL entry %X has invalid length %02X", tag, length));
+            }
+            p++;
+            entries.add(new Entry(tag, length));
+            dataLength += length;
+        }
+        return new Dol(bytes.clone(), entries, dataLength);
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    // Length of data built for this DOL, without 83 wrapper.
+    public int getDataLength() {
+        return dataLength;
+    }
+
+    // Prepare buffer and offsets, GPO data is wrapped into template 83.
+    public Plan compile(boolean wrap) {
+        return new Plan(this, wrap);
+    }
+
+    public String toString() {
+        var parts = new ArrayList<String>(entries.size());
+        for (var e: entries) {
+            parts.add(e.toString());
+        }
+        return String.join(" ", parts);
+    }
+
+    // DOL compiled for one buffer per thread: built data is written to the same array
+    // every time, use it (e.g. pass it to CommandAPDU, which copies) before the next
+    // build() in this thread.
+    public static class Plan {
+        private final Dol dol;
+        // plans are shared through CACHE, so every thread gets its own buffer
+        private final ThreadLocal<byte[]> buffers;
+        private final int[] offsets;
+        private final int[] tags;
+        private final int[] lengths;
+
+        Plan(Dol dol, boolean wrap) {
+            this.dol = dol;
+            int header = 0;
+            if (wrap) {
+                // BER length takes two bytes from 128 bytes on
+                header = dol.dataLength < 0x80 ? 2 : 3;
+            }
+            var template = new byte[header + dol.dataLength];
+            if (wrap) {
+                template[0] = (byte)0x83;
+                if (header == 2) {
+                    template[1] = (byte)dol.dataLength;
+                } else {
+                    template[1] = (byte)0x81;
+                    template[2] = (byte)dol.dataLength;
+                }
+            }
+            buffers = ThreadLocal.withInitial(() -> template.clone());
+            int count = dol.entries.size();
+            offsets = new int[count];
+            tags = new int[count];
+            lengths = new int[count];
+            int offset = header;
+            for (int i=0; i<count; i++) {
+                var entry = dol.entries.get(i);
+                offsets[i] = offset;
+                tags[i] = entry.tag;
+                lengths[i] = entry.length;
+                offset += entry.length;
+            }
+        }
+
+        public Dol getDol() {
+            return dol;
+        }
+
+        // Fill buffer with current terminal data, unknown tags are zero filled.
+        public byte[] build(TerminalData data) {
+            var buffer = buffers.get();
+            for (int i=0; i<tags.length; i++) {
+                data.copyTo(tags[i], buffer, offsets[i], lengths[i]);
+            }
+            return buffer;
+        }
+    }
+
+    // Compiled plans by AID and DOL tag. Plan is recompiled if a card of the same AID
+    // brings another DOL. PDOL plans build data wrapped into template 83.
+    public static class Cache {
+        private final HashMap<String, Plan> plans = new HashMap<String, Plan>();
+        private long hits = 0;
+        private long misses = 0;
+
+        public synchronized Plan get(byte[] aid, int dolTag, byte[] dolBytes)
+            throws BerTlv.ParsingException
+        {
+            var key = String.format("%s/%X", Util.hexify(aid), dolTag);
+            var plan = plans.get(key);
+            if (plan != null && Arrays.equals(plan.dol.bytes, dolBytes)) {
+                hits++;
+                return plan;
+            }
+            misses++;
+            plan = parse(dolBytes).compile(dolTag == PDOL);
+            plans.put(key, plan);
+            return plan;
+        }
+
+        public synchronized String getStatistics() {
+            return String.format("DOL plans: %d, hits: %d, misses: %d", plans.size(), hits, misses);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package example09;
+
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+class DolTest {
+    public static void main(String[] args) {
+        // testing method
+
+        byte[] dol;
+        var data = new TerminalData();
+        data.set(0x9F37, Util.toByteArray("11 22 33 44"));
+        data.setAmount(12345);
+
+        System.out.println("--------------------");
+        System.out.println("Test 1");
+        // multi-byte tags followed by single-byte tag
+        dol = Util.toByteArray("9F 66 04 9F 02 06 9F 37 04 5F 2A 02 9A 03");
+        try {
+            var d = Dol.parse(dol);
+            System.out.println(d);
+            check(d.getEntries().size() == 5 && d.getDataLength() == 19 && d.getEntries().get(4).tag == 0x9A);
+        } catch (BerTlv.ParsingException e) {
+            System.out.printf("FAILED: Parse failed: %s%n", e.getMessage());
+        }
+
+        System.out.println("--------------------");
+        System.out.println("Test 2");
+        // PDOL data is wrapped into 83, amount is right aligned
+        dol = Util.toByteArray("9F 02 06 9F 37 04");
+        try {
+            var built = Dol.parse(dol).compile(true).build(data);
+            System.out.println(Util.hexify(built));
+            check(Util.hexify(built).equals("83 0A 00 00 00 01 23 45 11 22 33 44"));
+        } catch (BerTlv.ParsingException e) {
+            System.out.printf("FAILED: Parse failed: %s%n", e.getMessage());
+        }
+
+        System.out.println("--------------------");
+        System.out.println("Test 3");
+        // shorter numeric value loses leftmost bytes, longer binary value is padded on the right,
+        // unknown tag is zero filled
+        dol = Util.toByteArray("9F 02 02 9F 37 06 DF 01 02");
+        try {
+            var built = Dol.parse(dol).compile(false).build(data);
+            System.out.println(Util.hexify(built));
+            check(Util.hexify(built).equals("23 45 11 22 33 44 00 00 00 00"));
+        } catch (BerTlv.ParsingException e) {
+            System.out.printf("FAILED: Parse failed: %s%n", e.getMessage());
+        }
+
+        System.out.println("--------------------");
+        System.out.println("Test 4");
+        // tag without length
+        dol = Util.toByteArray("9F 02 06 9F 37");
+        try {
+            Dol.parse(dol);
+            System.out.println("FAILED");
+        } catch (BerTlv.ParsingException e) {
+            System.out.printf("PASSED: Parse failed: %s%n", e.getMessage());
+        }
+
+        System.out.println("--------------------");
+        System.out.println("Test 5");
+        // same AID and DOL reuse compiled plan, another DOL replaces it
+        var aid = Util.toByteArray("A0 00 00 00 03 10 10");
+        try {
+            var first = Dol.CACHE.get(aid, Dol.PDOL, Util.toByteArray("9F 37 04"));
+            var second = Dol.CACHE.get(aid, Dol.PDOL, Util.toByteArray("9F 37 04"));
+            var third = Dol.CACHE.get(aid, Dol.PDOL, Util.toByteArray("9F 02 06"));
+            System.out.println(Dol.CACHE.getStatistics());
+            check(first == second && second != third);
+        } catch (BerTlv.ParsingException e) {
+            System.out.printf("FAILED: Parse failed: %s%n", e.getMessage());
+        }
+    }
+
+    private static void check(boolean passed) {
+        System.out.println(passed ? "PASSED" : "FAILED");
+    }
+}
@@ -0,0 +1,181 @@
+package example09;
+
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Properties;
+
+// Application profiles of already read cards: AFL and PDOL, keyed by AID and IIN
+// (first 6 digits of PAN). Cards of one issuer share the layout, so the next card of
+// that AID gets its records read right after GPO, in the same transport sequence.
+// Records are checked against the real AFL, see EmvReader. Record lengths are not
+// kept: records with cardholder name or track data differ between cards.
+//
+// IIN is only known after the records are read, so lookup before reading takes the
+// most used profile of the AID.
+//
+// Profiles live in memory; with a file name they are loaded from and saved to a
+// properties file:
+//   profile.<AID hex>.<IIN>=<AFL hex>;<PDOL hex>;<hits>
+class EmvProfiles {
+    public static class Profile {
+        public final byte[] aid;
+        public final String iin;
+        public final byte[] afl;
+        public final byte[] pdol;
+        private long hits = 0;
+
+        Profile(byte[] aid, String iin, byte[] afl, byte[] pdol) {
+            this.aid = aid;
+            this.iin = iin;
+            this.afl = afl;
+            this.pdol = pdol;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+    }
+
+    private final String fileName;
+    // "<AID hex>.<IIN>" -> profile
+    private final HashMap<String, Profile> profiles = new HashMap<String, Profile>();
+
+    // statistics
+    private long lookups = 0;
+    private long hits = 0;
+    private long mismatches = 0;
+
+    // In-memory profiles, lost on exit.
+    public EmvProfiles() {
+        this(null);
+    }
+
+    private EmvProfiles(String fileName) {
+        this.fileName = fileName;
+    }
+
+    // Load profiles from file, missing or unreadable file gives empty cache.
+    public static EmvProfiles load(String fileName) {
+        var cache = new EmvProfiles(fileName);
+        var props = new Properties();
+        try (var in = new FileInputStream(fileName)) {
+            props.load(in);
+        } catch (IOException e) {
+            return cache;
+        }
+        for (var key: props.stringPropertyNames()) {
+            var parts = key.split("\\.");
+            var fields = props.getProperty(key).split(";", -1);
+            if (parts.length != 3 || !parts[0].equals("profile") || fields.length != 3) {
+                continue;
+            }
+            try {
+                var profile = new Profile(Util.toByteArray(parts[1]), parts[2],
+                    Util.toByteArray(fields[0]), Util.toByteArray(fields[1]));
+                profile.hits = Long.parseLong(fields[2]);
+                cache.profiles.put(parts[1] + "." + parts[2], profile);
+            } catch (NumberFormatException e) {
+                // skip broken entry
+            }
+        }
+        return cache;
+    }
+
+    // Most used profile of the AID, null if there is none.
+    public synchronized Profile find(byte[] aid) {
+        lookups++;
+        var prefix = hex(aid) + ".";
+        Profile best = null;
+        for (var entry: profiles.entrySet()) {
+            if (entry.getKey().startsWith(prefix) && (best == null || entry.getValue().hits > best.hits)) {
+                best = entry.getValue();
+            }
+        }
+        return best;
+    }
+
+    // Remember layout of a read card, used says if a cached profile matched the card.
+    public synchronized void remember(byte[] aid, String iin, byte[] afl, byte[] pdol, boolean used) {
+        if (used) {
+            hits++;
+        } else {
+            mismatches++;
+        }
+        var key = hex(aid) + "." + iin;
+        var profile = profiles.get(key);
+        boolean changed = profile == null
+            || !Arrays.equals(profile.afl, afl) || !Arrays.equals(profile.pdol, pdol);
+        if (changed) {
+            long previousHits = profile == null ? 0 : profile.hits;
+            profile = new Profile(aid.clone(), iin, afl.clone(), pdol.clone());
+            profile.hits = previousHits;
+            profiles.put(key, profile);
+        }
+        profile.hits++;
+        if (changed) {
+            save();
+        }
+    }
+
+    // Write snapshot with current hit counts, they are not saved on every card.
+    public synchronized void flush() {
+        save();
+    }
+
+    public synchronized String getStatistics() {
+        return String.format("profiles: %d, lookups: %d, used: %d, mismatched or new: %d",
+            profiles.size(), lookups, hits, mismatches);
+    }
+
+    private static String hex(byte[] bytes) {
+        return Util.hexify(bytes).replace(" ", "");
+    }
+
+    // Write snapshot, failure only costs speculative reads after restart.
+    private void save() {
+        if (fileName == null) {
+            return;
+        }
+        var props = new Properties();
+        for (var entry: profiles.entrySet()) {
+            var profile = entry.getValue();
+            props.setProperty("profile." + entry.getKey(), String.format("%s;%s;%d",
+                hex(profile.afl), hex(profile.pdol), profile.hits));
+        }
+        try (var out = new FileOutputStream(fileName)) {
+            props.store(out, "EMV application profiles by AID and IIN, written by example09");
+        } catch (IOException e) {
+            System.out.printf("Cannot write profile cache `%s`: %s%n", fileName, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,539 @@
+package example09;
+
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.smartcardio.*;
+
+// Reads payment application of EMV card: finds and selects the application, starts
+// transaction with GET PROCESSING OPTIONS and reads records listed in AFL.
+//
+// With a profile of the AID (see EmvProfiles) the records are read in the same
+// transport sequence as GPO: each READ RECORD step is sent only if the AFL returned
+// by GPO is the one of the profile, otherwise records are read one by one after it.
+//
+// Contactless cards are asked for PPSE (2PAY.SYS.DDF01) first: its FCI lists all
+// applications with their priorities, so neither PSE records nor guessed AIDs are
+// needed. Contact cards go through PSE (1PAY.SYS.DDF01) and AID guessing.
+class EmvReader {
+    // Where the AID came from.
+    public enum Source {
+        PPSE,
+        PSE,
+        GUESS
+    }
+
+    public static class CardData {
+        public final byte[] aid;
+        public final Source source;
+        public final byte[] fci;
+        public final byte[] aip;
+        public final byte[] afl;
+        // data objects of all read records
+        public final CardRecord record;
+        // records were read together with GPO
+        public final boolean profileUsed;
+        // records not read because required tags were collected before them
+        public final int skippedRecords;
+        // time of application selection, GET PROCESSING OPTIONS (with records read in
+        // its sequence) and reading the rest of records
+        public final long selectNanos;
+        public final long gpoNanos;
+        public final long recordsNanos;
+
+        CardData(byte[] aid, Source source, byte[] fci, byte[] aip, byte[] afl, CardRecord record, boolean profileUsed,
+            int skippedRecords, long selectNanos, long gpoNanos, long recordsNanos)
+        {
+            this.aid = aid;
+            this.source = source;
+            this.fci = fci;
+            this.aip = aip;
+            this.afl = afl;
+            this.record = record;
+            this.profileUsed = profileUsed;
+            this.skippedRecords = skippedRecords;
+            this.selectNanos = selectNanos;
+            this.gpoNanos = gpoNanos;
+            this.recordsNanos = recordsNanos;
+        }
+    }
+
+    // One record of AFL.
+    public static class Record {
+        public final int sfi;
+        public final int number;
+        // record takes part in offline data authentication
+        public final boolean offlineAuth;
+
+        Record(int sfi, int number, boolean offlineAuth) {
+            this.sfi = sfi;
+            this.number = number;
+            this.offlineAuth = offlineAuth;
+        }
+
+        // READ RECORD, see ISO/IEC 7816-4, section "7.3.3 READ RECORD (S) command",
+        // Le=0 asks for the whole record
+        public CommandAPDU toCommand() {
+            return new CommandAPDU(0x00, 0xB2, number, (sfi << 3) | 4, 256);
+        }
+    }
+
+    private final Transport transport;
+    private final EmvProfiles profiles;
+    private final TerminalData terminalData;
+    private boolean contactless = false;
+    private AidRegistry aidRegistry = new AidRegistry();
+    private CardRecord.Duplicates duplicates = CardRecord.Duplicates.FIRST;
+    // empty means all records are read
+    private Set<Integer> requiredTags = Set.of();
+    private boolean offlineAuth = false;
+
+    public EmvReader(Transport transport, EmvProfiles profiles, TerminalData terminalData) {
+        this.transport = transport;
+        this.profiles = profiles;
+        this.terminalData = terminalData;
+    }
+
+    // Look for applications in PPSE before PSE.
+    public void setContactless(boolean contactless) {
+        this.contactless = contactless;
+    }
+
+    // AIDs to guess when the card has neither PPSE nor PSE, built-in list by default.
+    public void setAidRegistry(AidRegistry aidRegistry) {
+        this.aidRegistry = aidRegistry;
+    }
+
+    // Which copy of a tag repeated in records is kept, the first one by default.
+    public void setDuplicates(CardRecord.Duplicates duplicates) {
+        this.duplicates = duplicates;
+    }
+
+    // Stop reading records once all these tags are collected, records needed for offline
+    // data authentication are still read if offlineAuth is set. No tags read all records.
+    public void setRequiredTags(Set<Integer> requiredTags, boolean offlineAuth) {
+        this.requiredTags = Set.copyOf(requiredTags);
+        this.offlineAuth = offlineAuth;
+    }
+
+    // Tags given as hex list: "5A,5F24,5F20".
+    public static Set<Integer> parseTags(String list) {
+        var tags = new HashSet<Integer>();
+        for (var tag : list.split(",")) {
+            tags.add(Integer.parseInt(tag.trim(), 16));
+        }
+        return tags;
+    }
+
+    // PC/SC reader builds ATR of contactless card as 3B 8n 80 01 ..., see PC/SC part 3,
+    // section "3.1.3.2.3 ATR".
+    public static boolean isContactless(ATR atr) {
+        var bytes = atr.getBytes();
+        return bytes.length >= 4 && bytes[0] == 0x3B && (bytes[1] & 0xF0) == 0x80
+            && bytes[2] == (byte)0x80 && bytes[3] == 0x01;
+    }
+
+    // Read the card, null if it has no payment application.
+    public CardData read() throws Util.CardOperationFailedException, CardException {
+        long startTime = System.nanoTime();
+        byte[] aid = null;
+        byte[] fci = null;
+        Source source = null;
+
+        // profiles are used after GPO only: the card decides which application is
+        // selected, for contactless cards by PPSE priority
+        if (contactless) {
+            // Select PPSE, applications are listed in its FCI
+            var answer = transport.transmit(selectCommand(Util.toByteArray("32 50 41 59 2E 53 59 53 2E 44 44 46 30 31")));
+            if (answer.getSW() == 0x9000) {
+                for (var candidate : getAIDsFromPPSEFCI(answer.getData())) {
+                    fci = selectApplication(candidate);
+                    if (fci != null) {
+                        aid = candidate;
+                        source = Source.PPSE;
+                        break;
+                    }
+                }
+                if (aid == null) {
+                    return null;
+                }
+            }
+        }
+
+        if (aid == null) {
+            // Select PSE first
+            var answer = transport.transmit(selectCommand(Util.toByteArray("31 50 41 59 2E 53 59 53 2E 44 44 46 30 31")));
+            int sw = answer.getSW();
+            if (sw == 0x9000) {
+                aid = getAIDFromPSEFCI(answer.getData());
+                source = Source.PSE;
+                if (aid != null) {
+                    fci = selectApplication(aid);
+                    if (fci == null) {
+                        throw new Util.CardOperationFailedException("No EMV app found.");
+                    }
+                }
+            } else if (sw == 0x6A82) {
+                // guess AID, the most common at this site first
+                int selects = 0;
+                for (var candidate : aidRegistry.getCandidates()) {
+                    selects++;
+                    fci = selectApplication(candidate);
+                    if (fci != null) {
+                        aid = candidate;
+                        source = Source.GUESS;
+                        break;
+                    }
+                }
+                aidRegistry.guessed(selects);
+            } else {
+                throw new Util.CardOperationFailedException(String.format("PSE retrieval failed: 0x%04X", sw));
+            }
+            if (aid == null) {
+                return null;
+            }
+        }
+
+        long selectedTime = System.nanoTime();
+
+        byte[] pdol = new byte[0];
+        try {
+            var fciTlv = BerTlv.parseBytes(fci);
+            var piTlv = fciTlv.getPart("A5");
+            var pdolTlv = piTlv == null ? null : piTlv.getPart("9F 38");
+            if (pdolTlv != null) {
+                pdol = pdolTlv.getValue();
+            }
+        } catch (BerTlv.ParsingException e) {
+            throw new Util.CardOperationFailedException("Failed to parse SELECT response");
+        }
+
+        // Start financial transaction
+        // prepare dolData: PDOL filled with terminal data, or empty template 83
+        terminalData.newTransaction();
+        var dolData = Util.toByteArray("83 00");
+        if (pdol.length > 0) {
+            try {
+                dolData = Dol.CACHE.get(aid, Dol.PDOL, pdol).build(terminalData);
+            } catch (BerTlv.ParsingException e) {
+                throw new Util.CardOperationFailedException("Failed to parse PDOL: " + e.getMessage());
+            }
+        }
+
+        // GET PROCESSING OPTIONS, followed by records the profile expects
+        var profile = profiles.find(aid);
+        var sequence = new Transport.Sequence();
+        sequence.add(new CommandAPDU(0x80, 0xA8, 0x00, 0x00, dolData, 256), 0x9000);
+        if (profile != null) {
+            var expected = parseAFL(profile.afl);
+            // tags of records read so far in the sequence
+            var sequenceTags = new HashSet<Integer>();
+            for (var record : expected) {
+                // Le=0: records with name or track data differ in length between cards
+                var command = record.toCommand();
+                sequence.add(responses -> {
+                    if (!Arrays.equals(getAFL(responses.get(0)), profile.afl)) {
+                        return null;
+                    }
+                    if (responses.size() > 1) {
+                        addTags(responses.get(responses.size() - 1).getData(), sequenceTags);
+                    }
+                    return isNeeded(record, sequenceTags) ? command : null;
+                }, 0x9000);
+            }
+        }
+        var result = transport.execute(sequence);
+        long gpoTime = System.nanoTime();
+        var gpoAnswer = result.get(0);
+        if (gpoAnswer.getSW() != 0x9000) {
+            throw new Util.CardOperationFailedException(String.format("GET PROCESSING OPTIONS failed: %04X", gpoAnswer.getSW()));
+        }
+        var gpo = parseGPO(gpoAnswer.getData());
+        var aip = gpo[0];
+        var afl = gpo[1];
+        boolean profileUsed = profile != null && Arrays.equals(afl, profile.afl);
+
+        // now read AFL points to
+        var cardRecord = new CardRecord(aid, System.currentTimeMillis(), duplicates);
+        var records = parseAFL(afl);
+        var tags = new HashSet<Integer>();
+        int skipped = 0;
+        for (int i=0; i<records.size(); i++) {
+            var record = records.get(i);
+            ResponseAPDU answer;
+            if (profileUsed && i + 1 < result.getResponses().size()) {
+                answer = result.get(i + 1);
+            } else if (isNeeded(record, tags)) {
+                answer = transport.transmit(record.toCommand());
+            } else {
+                skipped++;
+                continue;
+            }
+            if (answer.getSW() != 0x9000) {
+                // real terminal must terminate transaction if any read fails
+                continue;
+            }
+            var recordData = answer.getData();
+            addTags(recordData, tags);
+            try {
+                var recordTlv = BerTlv.parseBytes(recordData);
+                if (!recordTlv.tagEquals("70")) {
+                    continue;
+                }
+                for (BerTlv p : recordTlv.getParts()) {
+                    cardRecord.add(p, record.sfi, record.number);
+                }
+            } catch (BerTlv.ParsingException e) {
+                // record is skipped, as well as broken records on real terminal
+            }
+        }
+
+        var data = new CardData(aid, source, fci, aip, afl, cardRecord, profileUsed, skipped,
+            selectedTime - startTime, gpoTime - selectedTime, System.nanoTime() - gpoTime);
+        aidRegistry.hit(aid);
+        profiles.remember(aid, getIIN(cardRecord), afl, pdol, profileUsed);
+        return data;
+    }
+
+    // Record must be read: some required tag is still missing, or record is signed for
+    // offline data authentication and it is requested.
+    private boolean isNeeded(Record record, Set<Integer> tags) {
+        if (requiredTags.isEmpty() || (offlineAuth && record.offlineAuth)) {
+            return true;
+        }
+        return !tags.containsAll(requiredTags);
+    }
+
+    // Add tags of all primitive data objects of the record template.
+    private static void addTags(byte[] recordData, Set<Integer> tags) {
+        try {
+            addTags(BerTlv.parseBytes(recordData), tags);
+        } catch (BerTlv.ParsingException e) {
+            // broken record brings no tags
+        }
+    }
+
+    private static void addTags(BerTlv tlv, Set<Integer> tags) {
+        if (tlv.getEncoding() == BerTlv.Encoding.CONSTRUCTED) {
+            for (var part : tlv.getParts()) {
+                addTags(part, tags);
+            }
+        } else {
+            tags.add(EmvTags.tagOf(tlv.getTag()));
+        }
+    }
+
+    // Records of AFL, see EMV_v4.3 book 3, section "10.2 Read Application Data".
+    public static List<Record> parseAFL(byte[] afl) {
+        var records = new ArrayList<Record>();
+        for (int i=0; i+3<afl.length; i+=4) {
+            int sfi = (afl[i] & 0xFF) >> 3;
+            int first = afl[i + 1] & 0xFF;
+            int last = afl[i + 2] & 0xFF;
+            int offlineAuthCount = afl[i + 3] & 0xFF;
+            for (int number=first; number<=last; number++) {
+                records.add(new Record(sfi, number, number - first < offlineAuthCount));
+            }
+        }
+        return records;
+    }
+
+    // Issuer identification number: first 6 digits of PAN or Track 2, "unknown" without them.
+    public static String getIIN(CardRecord record) {
+        var pan = record.getValue(0x5A);
+        if (pan == null) {
+            pan = record.getValue(0x57);
+        }
+        if (pan == null || pan.length < 3) {
+            return "unknown";
+        }
+        return Util.hexify(Arrays.copyOf(pan, 3)).replace(" ", "");
+    }
+
+    // SELECT by name, see ISO/IEC 7816-4, section "7.1.1 SELECT command"
+    private static CommandAPDU selectCommand(byte[] name) {
+        return new CommandAPDU(0x00, 0xA4, 0x04, 0x00, name, 256);
+    }
+
+    // FCI of the selected application, null if the card doesn't have it.
+    private byte[] selectApplication(byte[] aid) throws CardException {
+        var answer = transport.transmit(selectCommand(aid));
+        return answer.getSW() == 0x9000 ? answer.getData() : null;
+    }
+
+    // AFL of GPO response, null if it can't be parsed.
+    private static byte[] getAFL(ResponseAPDU answer) {
+        try {
+            return parseGPO(answer.getData())[1];
+        } catch (Util.CardOperationFailedException e) {
+            return null;
+        }
+    }
+
+    // AIP and AFL of GPO response.
+    private static byte[][] parseGPO(byte[] data) throws Util.CardOperationFailedException {
+        try {
+            var gpoTlv = BerTlv.parseBytes(data);
+            if (gpoTlv.tagEquals("77")) {
+                var aipTlv = gpoTlv.getPart("82");
+                var aflTlv = gpoTlv.getPart("94");
+                if (aipTlv == null || aflTlv == null) {
+                    throw new Util.CardOperationFailedException("GET PROCESSING OPTIONS response misses AIP or AFL");
+                }
+                return new byte[][] {aipTlv.getValue(), aflTlv.getValue()};
+            } else if (gpoTlv.tagEquals("80")) {
+                var gpoData = gpoTlv.getValue();
+                if (gpoData.length < 2) {
+                    throw new Util.CardOperationFailedException("GET PROCESSING OPTIONS response is too short");
+                }
+                return new byte[][] {Util.copyArray(gpoData, 0, 2), Util.copyArray(gpoData, 2, gpoData.length-2)};
+            } else {
+                throw new Util.CardOperationFailedException("Unknown response from GET PROCESSING OPTIONS command");
+            }
+        } catch (BerTlv.ParsingException e) {
+            throw new Util.CardOperationFailedException("Failed to parse response from GET PROCESSING OPTIONS command");
+        }
+    }
+
+    // AIDs of PPSE FCI ordered by Application Priority Indicator, see EMV Contactless
+    // Book B, section "3.3.1 PPSE Selection". Priority 1 is the highest, entries
+    // without priority go last, equal priorities keep the order of the FCI.
+    static List<byte[]> getAIDsFromPPSEFCI(byte[] data)
+        throws Util.CardOperationFailedException
+    {
+        try {
+            var root = BerTlv.parseBytes(data);
+            var piTlv = root.getPart("A5");
+            var ddTlv = piTlv == null ? null : piTlv.getPart("BF 0C");
+            if (ddTlv == null) {
+                throw new Util.CardOperationFailedException("Cannot find directory in PPSE FCI");
+            }
+            var entries = new ArrayList<BerTlv>();
+            for (var p : ddTlv.getParts()) {
+                if (p.tagEquals("61") && p.getPart("4F") != null) {
+                    entries.add(p);
+                }
+            }
+            // List.sort() is stable
+            entries.sort(Comparator.comparingInt(EmvReader::getPriority));
+            var aids = new ArrayList<byte[]>(entries.size());
+            for (var e : entries) {
+                aids.add(e.getPart("4F").getValue());
+            }
+            return aids;
+        } catch (BerTlv.ParsingException e) {
+            throw new Util.CardOperationFailedException("Failed to parse PPSE FCI data");
+        }
+    }
+
+    // Priority of directory entry: 1..15, 16 if it is not set.
+    private static int getPriority(BerTlv entry) {
+        var priorityTlv = entry.getPart("87");
+        if (priorityTlv == null || priorityTlv.getValue().length != 1) {
+            return 16;
+        }
+        int priority = priorityTlv.getValue()[0] & 0x0F;
+        return priority == 0 ? 16 : priority;
+    }
+
+    private byte[] getAIDFromPSEFCI(byte[] data)
+        throws Util.CardOperationFailedException, CardException
+    {
+        try {
+            var root = BerTlv.parseBytes(data);
+
+            // pi means "proprietary information"
+            var piTlv = root.getPart("A5");
+            if (piTlv == null) {
+                throw new Util.CardOperationFailedException("Cannot find EMV block in PSE FCI");
+            }
+
+            // piTlv now contains data specified in EMV_v4.3 book 1 spec,
+            // section "11.3.4 Data Field Returned in the Response Message"
+            var sfiTlv = piTlv.getPart("88");
+            if (sfiTlv == null) {
+                throw new Util.CardOperationFailedException("Cannot find SFI block in PSE FCI");
+            }
+
+            var defSfiData = sfiTlv.getValue();
+            int sfi = defSfiData[0];
+
+            ResponseAPDU answer;
+
+            // READ RECORD, see ISO/IEC 7816-4, section "7.3.3 READ RECORD (S) command"
+            //                                           CLA INS P1 P2  Le
+            var readRecordCommand = Util.toByteArray("00  B2  00 00  00");
+            // read single record specified in P1 from EF with short EF identifier sfi
+            var p2 = (byte)((sfi << 3) | 4);
+            readRecordCommand[3] = p2;
+
+            var aids = new ArrayList<byte[]>();
+
+            byte recordNumber = 1;
+            while (true) {
+                readRecordCommand[2] = recordNumber;
+                // transport repeats command with correct Le on 6Cxx
+                answer = transport.transmit(new CommandAPDU(readRecordCommand));
+                if (answer.getSW() != 0x9000) {
+                    break;
+                }
+
+                var record = answer.getData();
+                if (record.length != 0) {
+                    BerTlv psd = BerTlv.parseBytes(record);
+                    // psd must have tag "70"
+                    // see EMV_v4.3 book 1, section "12.2.3 Coding of a Payment System Directory"
+                    if (!psd.tagEquals("70")) {
+                        throw new Util.CardOperationFailedException("Cannot find PSD record");
+                    }
+                    for (BerTlv p : psd.getParts()) {
+                        if (p.tagEquals("61")) {
+                            BerTlv aidTlv = p.getPart("4F");
+                            aids.add(aidTlv.getValue());
+                        }
+                    }
+                }
+                recordNumber++;
+            }
+            if (aids.size() > 0) {
+                return aids.get(0);
+            } else {
+                return null;
+            }
+//        } catch (example10.BerTlv.ConstraintException e) {
+//            throw new Util.CardOperationFailedException("Failed to parse PSE FCI data: example10.BerTlv encoding error");
+        } catch (BerTlv.ParsingException e) {
+            throw new Util.CardOperationFailedException("Failed to parse PSE FCI data");
+        }
+    }
+}
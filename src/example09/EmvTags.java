@@ -0,0 +1,278 @@
+package example09;
+
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.util.List;
+
+// EMV data element dictionary: name, format and length constraints of tags, see
+// EMV_v4.3 book 3, "Annex A Data Elements Dictionary".
+//
+// Tags are looked up by int value (9F 37 -> 0x9F37) in a table without collisions:
+// at class initialization a multiplier is searched so that (tag * multiplier) >>> shift
+// gives every known tag its own slot. Lookup is one multiplication and one comparison,
+// nothing is allocated; display strings are made only by format().
+//
+//   var element = EmvTags.get(EmvTags.tagOf(tlv.getTag()));
+//   System.out.println(EmvTags.describe(tlv));
+class EmvTags {
+    public enum Format {
+        // numeric, BCD right aligned
+        N,
+        // compressed numeric, BCD left aligned padded with F
+        CN,
+        // alphanumeric and alphanumeric special
+        AN,
+        ANS,
+        // binary
+        B,
+        // YYMMDD in BCD
+        DATE
+    }
+
+    public static class Element {
+        public final int tag;
+        public final String name;
+        public final Format format;
+        public final int minLength;
+        public final int maxLength;
+
+        Element(int tag, String name, Format format, int minLength, int maxLength) {
+            this.tag = tag;
+            this.name = name;
+            this.format = format;
+            this.minLength = minLength;
+            this.maxLength = maxLength;
+        }
+
+        public boolean isValidLength(int length) {
+            return length >= minLength && length <= maxLength;
+        }
+
+        // Value as shown to the user.
+        public String format(byte[] value) {
+            switch (format) {
+            case N:
+                return Util.hexify(value).replace(" ", "");
+            case CN:
+                var digits = Util.hexify(value).replace(" ", "");
+                int end = digits.indexOf('F');
+                return end == -1 ? digits : digits.substring(0, end);
+            case AN:
+            case ANS:
+                return Util.bytesToString(value);
+            case DATE:
+                return value.length == 3 ? Util.bytesToDate(value) : Util.hexify(value);
+            default:
+                return Util.hexify(value);
+            }
+        }
+    }
+
+    private static final Element[] ELEMENTS = {
+        // templates
+        new Element(0x61, "Application Template", Format.B, 0, 252),
+        new Element(0x6F, "File Control Information (FCI) Template", Format.B, 0, 252),
+        new Element(0x70, "READ RECORD Response Message Template", Format.B, 0, 252),
+        new Element(0x77, "Response Message Template Format 2", Format.B, 0, 252),
+        new Element(0x80, "Response Message Template Format 1", Format.B, 0, 252),
+        new Element(0xA5, "File Control Information (FCI) Proprietary Template", Format.B, 0, 252),
+        new Element(0xBF0C, "File Control Information (FCI) Issuer Discretionary Data", Format.B, 0, 222),
+        // application selection
+        new Element(0x4F, "Application Identifier (AID) - card", Format.B, 5, 16),
+        new Element(0x50, "Application Label", Format.ANS, 1, 16),
+        new Element(0x84, "Dedicated File (DF) Name", Format.B, 5, 16),
+        new Element(0x87, "Application Priority Indicator", Format.B, 1, 1),
+        new Element(0x88, "Short File Identifier (SFI)", Format.B, 1, 1),
+        new Element(0x5F2D, "Language Preference", Format.AN, 2, 8),
+        new Element(0x5F50, "Issuer URL", Format.ANS, 0, 252),
+        new Element(0x9F11, "Issuer Code Table Index", Format.N, 1, 1),
+        new Element(0x9F12, "Application Preferred Name", Format.ANS, 1, 16),
+        new Element(0x9F38, "Processing Options Data Object List (PDOL)", Format.B, 0, 252),
+        new Element(0x9F4D, "Log Entry", Format.B, 2, 2),
+        // processing options
+        new Element(0x82, "Application Interchange Profile", Format.B, 2, 2),
+        new Element(0x94, "Application File Locator (AFL)", Format.B, 4, 252),
+        // application data
+        new Element(0x56, "Track 1 Data", Format.ANS, 0, 76),
+        new Element(0x57, "Track 2 Equivalent Data", Format.B, 0, 19),
+        new Element(0x5A, "Application Primary Account Number (PAN)", Format.CN, 0, 10),
+        new Element(0x5F20, "Cardholder Name", Format.ANS, 2, 26),
+        new Element(0x5F24, "Application Expiration Date", Format.DATE, 3, 3),
+        new Element(0x5F25, "Application Effective Date", Format.DATE, 3, 3),
+        new Element(0x5F28, "Issuer Country Code", Format.N, 2, 2),
+        new Element(0x5F30, "Service Code", Format.N, 2, 2),
+        new Element(0x5F34, "Application Primary Account Number (PAN) Sequence Number", Format.N, 1, 1),
+        new Element(0x8C, "Card Risk Management Data Object List 1 (CDOL1)", Format.B, 0, 252),
+        new Element(0x8D, "Card Risk Management Data Object List 2 (CDOL2)", Format.B, 0, 252),
+        new Element(0x8E, "Cardholder Verification Method (CVM) List", Format.B, 10, 252),
+        new Element(0x8F, "Certification Authority Public Key Index", Format.B, 1, 1),
+        new Element(0x90, "Issuer Public Key Certificate", Format.B, 0, 248),
+        new Element(0x92, "Issuer Public Key Remainder", Format.B, 0, 252),
+        new Element(0x93, "Signed Static Application Data", Format.B, 0, 248),
+        new Element(0x9F07, "Application Usage Control", Format.B, 2, 2),
+        new Element(0x9F08, "Application Version Number", Format.B, 2, 2),
+        new Element(0x9F0D, "Issuer Action Code - Default", Format.B, 5, 5),
+        new Element(0x9F0E, "Issuer Action Code - Denial", Format.B, 5, 5),
+        new Element(0x9F0F, "Issuer Action Code - Online", Format.B, 5, 5),
+        new Element(0x9F1F, "Track 1 Discretionary Data", Format.ANS, 0, 252),
+        new Element(0x9F32, "Issuer Public Key Exponent", Format.B, 1, 3),
+        new Element(0x9F42, "Application Currency Code", Format.N, 2, 2),
+        new Element(0x9F44, "Application Currency Exponent", Format.N, 1, 1),
+        new Element(0x9F46, "ICC Public Key Certificate", Format.B, 0, 248),
+        new Element(0x9F47, "ICC Public Key Exponent", Format.B, 1, 3),
+        new Element(0x9F48, "ICC Public Key Remainder", Format.B, 0, 252),
+        new Element(0x9F49, "Dynamic Data Authentication Data Object List (DDOL)", Format.B, 0, 252),
+        new Element(0x9F4A, "Static Data Authentication Tag List", Format.B, 0, 252),
+        new Element(0x9F62, "PCVC3 (Track1)", Format.B, 6, 6),
+        new Element(0x9F63, "PUNATC (Track1)", Format.B, 6, 6),
+        new Element(0x9F64, "NATC (Track1)", Format.B, 1, 1),
+        new Element(0x9F65, "PCVC3 (Track2)", Format.B, 2, 2),
+        new Element(0x9F66, "Terminal Transaction Qualifiers (TTQ)", Format.B, 4, 4),
+        new Element(0x9F67, "NATC (Track2)", Format.B, 1, 1),
+        new Element(0x9F68, "Card Additional Processes", Format.B, 0, 252),
+        new Element(0x9F6B, "Track 2 Data/Card CVM Limit", Format.B, 0, 19),
+        new Element(0x9F6C, "Card Transaction Qualifiers (CTQ)", Format.B, 2, 2),
+        // card transaction data
+        new Element(0x9F10, "Issuer Application Data", Format.B, 0, 32),
+        new Element(0x9F13, "Last Online Application Transaction Counter (ATC) Register", Format.B, 2, 2),
+        new Element(0x9F17, "Personal Identification Number (PIN) Try Counter", Format.B, 1, 1),
+        new Element(0x9F26, "Application Cryptogram", Format.B, 8, 8),
+        new Element(0x9F27, "Cryptogram Information Data", Format.B, 1, 1),
+        new Element(0x9F36, "Application Transaction Counter (ATC)", Format.B, 2, 2),
+        // terminal data
+        new Element(0x95, "Terminal Verification Results", Format.B, 5, 5),
+        new Element(0x9A, "Transaction Date", Format.DATE, 3, 3),
+        new Element(0x9C, "Transaction Type", Format.N, 1, 1),
+        new Element(0x5F2A, "Transaction Currency Code", Format.N, 2, 2),
+        new Element(0x5F36, "Transaction Currency Exponent", Format.N, 1, 1),
+        new Element(0x9F02, "Amount, Authorised (Numeric)", Format.N, 6, 6),
+        new Element(0x9F03, "Amount, Other (Numeric)", Format.N, 6, 6),
+        new Element(0x9F15, "Merchant Category Code", Format.N, 2, 2),
+        new Element(0x9F1A, "Terminal Country Code", Format.N, 2, 2),
+        new Element(0x9F21, "Transaction Time", Format.N, 3, 3),
+        new Element(0x9F33, "Terminal Capabilities", Format.B, 3, 3),
+        new Element(0x9F35, "Terminal Type", Format.N, 1, 1),
+        new Element(0x9F37, "Unpredictable Number", Format.B, 4, 4),
+        new Element(0x9F40, "Additional Terminal Capabilities", Format.B, 5, 5),
+        new Element(0x9F41, "Transaction Sequence Counter", Format.N, 2, 4),
+        new Element(0x9F4E, "Merchant Name and Location", Format.ANS, 0, 252),
+    };
+
+    private static final Element[] TABLE;
+    private static final int MULTIPLIER;
+    private static final int SHIFT;
+
+    static {
+        // smallest power of two table with at least twice as many slots as elements
+        int bits = 32 - Integer.numberOfLeadingZeros(ELEMENTS.length * 2 - 1);
+        int multiplier = 0x9E3779B1;
+        int attempts = 0;
+        var table = fill(multiplier, bits);
+        while (table == null) {
+            // change multiplier only after a failed fill, so MULTIPLIER is the one of TABLE
+            if (++attempts == 100000) {
+                bits++;
+                attempts = 0;
+            } else {
+                multiplier += 2;
+            }
+            table = fill(multiplier, bits);
+        }
+        TABLE = table;
+        MULTIPLIER = multiplier;
+        SHIFT = 32 - bits;
+    }
+
+    // Table for this multiplier, null if two tags share a slot.
+    private static Element[] fill(int multiplier, int bits) {
+        var table = new Element[1 << bits];
+        for (var e: ELEMENTS) {
+            int slot = (e.tag * multiplier) >>> (32 - bits);
+            if (table[slot] != null) {
+                return null;
+            }
+            table[slot] = e;
+        }
+        return table;
+    }
+
+    // All known elements.
+    public static List<Element> getElements() {
+        return List.of(ELEMENTS);
+    }
+
+    // Element of the tag, null if the tag is unknown.
+    public static Element get(int tag) {
+        var e = TABLE[(tag * MULTIPLIER) >>> SHIFT];
+        return e != null && e.tag == tag ? e : null;
+    }
+
+    // Tag bytes as int: 9F 37 -> 0x9F37.
+    public static int tagOf(byte[] tagBytes) {
+        int tag = 0;
+        for (var b: tagBytes) {
+            tag = (tag << 8) | (b & 0xFF);
+        }
+        return tag;
+    }
+
+    // Numeric (n) value as number, e.g. amount or currency code.
+    public static long decodeNumeric(byte[] value) {
+        long res = 0;
+        for (var b: value) {
+            res = res * 100 + ((b >> 4) & 0xF) * 10 + (b & 0xF);
+        }
+        return res;
+    }
+
+    // Date (YYMMDD) as YYYYMMDD number.
+    public static int decodeDate(byte[] value) {
+        return 20000000 + (int)decodeNumeric(value);
+    }
+
+    // "Name: value" line of the data object, unknown tags are shown as hex.
+    public static String describe(BerTlv tlv) {
+        var value = tlv.getValue();
+        if (value == null) {
+            var e = get(tagOf(tlv.getTag()));
+            return String.format("%s: (constructed)", e == null ? Util.hexify(tlv.getTag()) : e.name);
+        }
+        return describe(tagOf(tlv.getTag()), value);
+    }
+
+    public static String describe(int tag, byte[] value) {
+        var e = get(tag);
+        if (e == null) {
+            return String.format("%X: %s", tag, Util.hexify(value));
+        }
+        if (!e.isValidLength(value.length)) {
+            return String.format("%s: %s (invalid length %d)", e.name, Util.hexify(value), value.length);
+        }
+        return String.format("%s: %s", e.name, e.format(value));
+    }
+}
@@ -0,0 +1,63 @@
+package example09;
+
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+class EmvTagsTest {
+    public static void main(String[] args) {
+        // testing method
+
+        System.out.println("--------------------");
+        System.out.println("Test 1");
+        // every known element is found by its tag
+        int missing = 0;
+        for (var e: EmvTags.getElements()) {
+            if (EmvTags.get(e.tag) != e) {
+                System.out.printf("Not found: %X %s%n", e.tag, e.name);
+                missing++;
+            }
+        }
+        System.out.printf("%d elements%n", EmvTags.getElements().size());
+        check(missing == 0);
+
+        System.out.println("--------------------");
+        System.out.println("Test 2");
+        // unknown tags are not found
+        check(EmvTags.get(0xDF01) == null && EmvTags.get(0x9F7F) == null && EmvTags.get(0) == null);
+
+        System.out.println("--------------------");
+        System.out.println("Test 3");
+        // numeric and date values
+        check(EmvTags.decodeNumeric(Util.toByteArray("00 00 00 01 23 45")) == 12345
+            && EmvTags.decodeDate(Util.toByteArray("25 12 31")) == 20251231);
+    }
+
+    private static void check(boolean passed) {
+        System.out.println(passed ? "PASSED" : "FAILED");
+    }
+}
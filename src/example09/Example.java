@@ -27,160 +27,125 @@ package example09;
  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.nio.file.Path;
 import javax.smartcardio.*;
 
 public class Example {
     public static void main(String[] args) {
-        try {
-            var factory = TerminalFactory.getDefault();
-            var terminals = factory.terminals().list();
-
-            if (terminals.size() == 0) {
-                throw new Util.TerminalNotFoundException();
+        // let transport resolve 61xx and 6Cxx, so extra round-trips are counted
+        Transport.disableProviderResponseHandling();
+
+        // --record <file>: write APDU trace, --replay <file>: use recorded card instead of reader,
+        // --profiles <file>: keep application profiles between runs,
+        // --store <file>: append card data to binary card record file
+        String record = null;
+        String replay = null;
+        String profilesFile = null;
+        String storeFile = null;
+        for (int i=0; i<args.length; i++) {
+            var arg = args[i];
+            if ((arg.equals("--record") || arg.equals("--replay") || arg.equals("--profiles") || arg.equals("--store"))
+                    && i + 1 < args.length) {
+                i++;
+                if (arg.equals("--record")) {
+                    record = args[i];
+                } else if (arg.equals("--replay")) {
+                    replay = args[i];
+                } else if (arg.equals("--profiles")) {
+                    profilesFile = args[i];
+                } else {
+                    storeFile = args[i];
+                }
+            } else {
+                System.out.println("Usage: Example [--record <file> | --replay <file>] [--profiles <file>] [--store <file>]");
+                return;
             }
+        }
+        // traces are recorded and replayed with built-in AIDs and without profiles: local
+        // statistics change the command stream and replay must match it exactly, and
+        // replayed sessions must not count as real cards
+        boolean traced = record != null || replay != null;
+        if (traced && profilesFile != null) {
+            System.out.println("--profiles can't be used with --record or --replay");
+            return;
+        }
+        var profiles = profilesFile == null ? new EmvProfiles() : EmvProfiles.load(profilesFile);
+        var aidRegistry = traced ? new AidRegistry() : AidRegistry.load();
 
-            // get first terminal
-            var terminal = terminals.get(0);
-
-            System.out.printf("Using terminal %s%n", terminal.toString());
+        Trace.Writer traceWriter = null;
+        try {
+            Card card;
+            String readerName = "replay";
+            if (replay != null) {
+                var connections = Trace.load(Path.of(replay)).getConnections();
+                if (connections.size() == 0) {
+                    System.out.println("Trace has no recorded cards.");
+                    return;
+                }
+                System.out.printf("Replaying %s%n", replay);
+                card = connections.get(0).newCard();
+            } else {
+                var factory = TerminalFactory.getDefault();
+                var terminals = factory.terminals().list();
 
-            // wait for card, indefinitely until card appears
-            terminal.waitForCardPresent(0);
+                if (terminals.size() == 0) {
+                    throw new Util.TerminalNotFoundException();
+                }
 
-            // establish a connection to the card using autoselected protocol
-            var card = terminal.connect("*");
+                // get first terminal
+                var terminal = terminals.get(0);
 
-            // obtain logical channel
-            var channel = card.getBasicChannel();
+                System.out.printf("Using terminal %s%n", terminal.toString());
+                readerName = terminal.getName();
 
-            ResponseAPDU answer;
-            int sw;
+                // wait for card, indefinitely until card appears
+                terminal.waitForCardPresent(0);
 
-            // Select PSE first
-            //                                          CLA  INS  P1 P2   Lc  DATA
-            var selectPSECommand = Util.toByteArray("00   A4   04 00   0E  31 50 41 59 2E 53 59 53 2E 44 44 46 30 31");
-            answer = channel.transmit(new CommandAPDU(selectPSECommand));
-            sw = answer.getSW();
-            byte[] aid = null;
-            if (sw == 0x9000) {
-                System.out.println("Found PSE, extract AID");
-                var PSEData = answer.getData();
-                aid = getAIDFromPSEFCI(channel, PSEData);
-            } else if (sw == 0x6A82) {
-                // guess AID
-                System.out.println("PSE not found, guessing AID");
-                aid = guessAID(channel);
-            } else {
-                card.disconnect(false);
-                throw new Util.CardOperationFailedException(String.format("PSE retrieval failed: 0x%04X", answer.getSW()));
+                // establish a connection to the card using autoselected protocol
+                card = terminal.connect("*");
+                if (record != null) {
+                    traceWriter = new Trace.Writer(Path.of(record));
+                    card = traceWriter.record(card);
+                }
             }
 
-            if (aid == null) {
+            // obtain logical channel
+            var channel = card.getBasicChannel();
+            var transport = Transport.of(channel, Transport.Profile.ISO7816);
+            transport.setReaderName(readerName);
+            System.out.printf("Card capabilities: %s%n", transport.getCapabilities());
+
+            // fixed unpredictable number and date keep recorded GPO replayable
+            var reader = new EmvReader(transport, profiles, traced ? TerminalData.fixed() : new TerminalData());
+            reader.setContactless(EmvReader.isContactless(card.getATR()));
+            reader.setAidRegistry(aidRegistry);
+            var cardData = reader.read();
+            if (cardData == null) {
                 System.out.println("No payment AIDs found.");
                 card.disconnect(false);
                 return;
-            } else {
-                System.out.printf("Found payment system: %s%n", Util.hexify(aid));
-            }
-
-            // Select application with name "aid"
-            //                                       CLS INS P1 P2  Le
-            var selectCommand = Util.toByteArray("00  A4  04 00  07  00 00 00 00 00 00 00");
-            for (int i=0; i<7; i++) {
-                selectCommand[5+i] = aid[i];
-            }
-
-            answer = channel.transmit(new CommandAPDU(selectCommand));
-            if (answer.getSW() != 0x9000) {
-                card.disconnect(false);
-                throw new Util.CardOperationFailedException("No EMV app found.");
             }
+            var schemeName = aidRegistry.getName(cardData.aid);
+            System.out.printf("Found payment system: %s%s (%s)%n", Util.hexify(cardData.aid),
+                schemeName == null ? "" : ", " + schemeName, cardData.source);
 
-            var data = answer.getData();
-            byte[] pdolData = null;
             try {
-                var fciTlv = BerTlv.parseBytes(data);
+                var fciTlv = BerTlv.parseBytes(cardData.fci);
                 var piTlv = fciTlv.getPart("A5");
-                var labelTlv = piTlv.getPart("50");
-                System.out.printf("Application name: %s%n", Util.bytesToString(labelTlv.getValue()));
-                var langTlv = piTlv.getPart("5F 2D");
+                var labelTlv = piTlv == null ? null : piTlv.getPart("50");
+                if (labelTlv != null) {
+                    System.out.printf("Application name: %s%n", Util.bytesToString(labelTlv.getValue()));
+                }
+                var langTlv = piTlv == null ? null : piTlv.getPart("5F 2D");
                 if (langTlv != null) {
                     System.out.printf("Language preference: %s%n", Util.bytesToString(langTlv.getValue()));
                 }
-                var pdolTlv = piTlv.getPart("9F 38");
-                if (pdolTlv != null) {
-                    pdolData = pdolTlv.getValue();
-                }
-//            } catch (example10.BerTlv.ConstraintException e) {
-//                card.disconnect(false);
-//                throw new Util.CardOperationFailedException("Failed to parse SELECT response");
-            } catch (BerTlv.ParsingException e) {
-                card.disconnect(false);
-                throw new Util.CardOperationFailedException("Failed to parse SELECT response");
-            }
-            
-            // Start financial transaction
-            // prepare dolData
-            var dolData = Util.toByteArray("83 00");
-            if (pdolData != null) {
-                // parse pdol data and extract total fields length
-                // ignore tags
-                var lengthByte = false;
-                int totalLength = 0;
-                for (var b : pdolData) {
-                    if (lengthByte) {
-                        int x = b;
-                        if (x < 0) {
-                            x += 256;
-                        }
-                        totalLength += x;
-                        lengthByte = false;
-                        continue;
-                    }
-                    if ((b & 0x1F) != 0x1F) {
-                        // ^^^^^^ last five bits of "b" are not all 1s, so this byte is last one
-                        // in tag block, so consider next byte as field length
-                        lengthByte = true;
-                    }
-                }
-                var t = new byte[totalLength];
-                dolData[1] = (byte)totalLength;  // remember, dolData = "83 00"
-                dolData = Util.concatArrays(dolData, t);
-            }
-
-            // Send command "GET PROCESSING OPTIONS"
-            var gpoCommand = Util.toByteArray("80 A8 00 00 00");
-            gpoCommand[4] = (byte)dolData.length;
-            gpoCommand = Util.concatArrays(gpoCommand, dolData);
-            gpoCommand = Util.concatArrays(gpoCommand, Util.toByteArray("00"));
-            answer = channel.transmit(new CommandAPDU(gpoCommand));
-            if (answer.getSW() != 0x9000) {
-                card.disconnect(false);
-                throw new Util.CardOperationFailedException(String.format("GET PROCESSING OPTIONS failed: %04X%n", answer.getSW()));
-            }
-
-            data = answer.getData();
-            byte[] aipData = null;
-            byte[] aflData = null;
-            try {
-                var gpoTlv = BerTlv.parseBytes(data);
-                if (gpoTlv.tagEquals("77")) {
-                    aipData = gpoTlv.getPart("82").getValue();
-                    aflData = gpoTlv.getPart("94").getValue();
-                } else if (gpoTlv.tagEquals("80")) {
-                    var gpoData = gpoTlv.getValue();
-                    aipData = Util.copyArray(gpoData, 0, 2);
-                    aflData = Util.copyArray(gpoData, 2, gpoData.length-2);
-                } else {
-                    throw new Util.CardOperationFailedException("Unknown response from GET PROCESSING OPTIONS command");
-                }
-//            } catch (example10.BerTlv.ConstraintException e) {
-//                throw new Util.CardOperationFailedException("Failed to decode response from GET PROCESSING OPTIONS command");
             } catch (BerTlv.ParsingException e) {
-                throw new Util.CardOperationFailedException("Failed to parse response from GET PROCESSING OPTIONS command");
+                // reader has parsed it already
             }
 
+            var aipData = cardData.aip;
             System.out.println("> Application Interchange Profile");
             System.out.printf("  SDA supported: %s%n", (aipData[0] & 0x40)==0 ? "no" : "yes");
             System.out.printf("  DDA supported: %s%n", (aipData[0] & 0x20)==0 ? "no" : "yes");
@@ -189,175 +154,64 @@ public class Example {
             System.out.printf("  Issuer authentication is supported: %s%n", (aipData[0] & 0x4)==0 ? "no" : "yes");
             System.out.printf("  CDA supported: %s%n", (aipData[0] & 0x1)==0 ? "no" : "yes");
 
-            // now read AFL points to
-            var readObjects = new ArrayList<BerTlv>(10);
-            int aflPartsCount = aflData.length / 4;
-            for (int i=0; i<aflPartsCount; i++) {
-                int startByte = i*4;
-
-                var sfi = (byte)(aflData[startByte] >> 3);
-                var firstSfiRec = aflData[startByte + 1];
-                int lastSfiRec = aflData[startByte + 2];
-                int offlineAuthRecNumber = aflData[startByte + 3];  // we don't use it
-
-                //                                           CLA INS P1 P2 Le
-                var readRecordCommand = Util.toByteArray("00  B2  00 00 00");
-                for (int j=firstSfiRec; j<=lastSfiRec; j++) {
-                    // set Le=0
-                    readRecordCommand[4] = 0;
-                    // set P1
-                    readRecordCommand[2] = (byte)j;
-                    var p2 = (byte)((sfi << 3) | 4);
-                    readRecordCommand[3] = p2;
-                    answer = channel.transmit(new CommandAPDU(readRecordCommand));
-                    if (answer.getSW1() == 0x6C) {
-                        // set new Le and repeat
-                        readRecordCommand[4] = (byte)answer.getSW2();
-                        answer = channel.transmit(new CommandAPDU(readRecordCommand));
-                    }
-                    if (answer.getSW() != 0x9000) {
-                        // real terminal must terminate transaction if any read fails
-                        System.out.printf("Failed to read record %d from SFI=%d", j, sfi);
-                        continue;
-                    }
-                    var recordData = answer.getData();
-                    try {
-                        var recordTlv = BerTlv.parseBytes(recordData);
-                        if (!recordTlv.tagEquals("70")) {
-                            continue;
-                        }
-						for (BerTlv p : recordTlv.getParts()) {
-							readObjects.add(p);
-						}
+            System.out.printf("> AFL Data%s%n", cardData.profileUsed ? " (read with GPO, cached profile)" : "");
+            for (var e : cardData.record.getEntries()) {
+                System.out.printf("  %s%n", EmvTags.describe(e.tag, e.value));
+            }
+            if (cardData.record.getDuplicates() > 0) {
+                System.out.printf("  %d repeated data objects ignored%n", cardData.record.getDuplicates());
+            }
 
-                    } catch (BerTlv.ParsingException e) {
-                        System.out.printf("Failed to parse data: %s%n%s%n", e, Util.hexify(recordData));
-                    }
+            // card risk management DOLs for GENERATE AC, compiled for later transactions
+            for (int dolTag : new int[] {Dol.CDOL1, Dol.CDOL2}) {
+                var dol = cardData.record.getValue(dolTag);
+                if (dol == null) {
+                    continue;
+                }
+                try {
+                    var plan = Dol.CACHE.get(cardData.aid, dolTag, dol);
+                    System.out.printf("> CDOL%d: %s, %d bytes%n", dolTag == Dol.CDOL1 ? 1 : 2,
+                        plan.getDol(), plan.getDol().getDataLength());
+                } catch (BerTlv.ParsingException e) {
+                    System.out.printf("Failed to parse %X: %s%n", dolTag, e.getMessage());
                 }
             }
 
-            System.out.println("> AFL Data");
-            var mappedValues = Util.mapDataObjects(readObjects);
-
-            for (var b : readObjects) {
-                var tagString = Util.hexify(b.getTag());
-                System.out.printf("  %s%n", mappedValues.get(tagString));
+            if (storeFile != null) {
+                try (var writer = new CardRecord.Writer(Path.of(storeFile))) {
+                    writer.write(cardData.record);
+                }
+                System.out.printf("Card data appended to %s%n", storeFile);
             }
 
-            card.disconnect(false);
+            System.out.printf("> Profiles: %s%n", profiles.getStatistics());
+            System.out.printf("> AID registry: %s%n", aidRegistry.getStatistics());
+            System.out.printf("> Transport: %s%n", transport.getStatistics());
+            System.out.print(Metrics.get().getReport());
 
+            card.disconnect(false);
         } catch (Util.CardOperationFailedException e) {
             System.out.printf("Card operation failed: %s%n", e.toString());
         } catch (Util.TerminalNotFoundException e) {
             System.out.println("No connected terminals.");
         } catch (CardException e) {
             System.out.println("CardException: " + e.toString());
-        }
-    }
-
-
-    private final static byte[] getAIDFromPSEFCI(CardChannel channel, byte[] data)
-        throws Util.CardOperationFailedException, CardException
-    {
-        try {
-            var root = BerTlv.parseBytes(data);
-
-            // pi means "proprietary information"
-            var piTlv = root.getPart("A5");
-            if (piTlv == null) {
-                throw new Util.CardOperationFailedException("Cannot find EMV block in PSE FCI");
-            }
-
-            // piTlv now contains data specified in EMV_v4.3 book 1 spec,
-            // section "11.3.4 Data Field Returned in the Response Message"
-            var sfiTlv = piTlv.getPart("88");
-            if (sfiTlv == null) {
-                throw new Util.CardOperationFailedException("Cannot find SFI block in PSE FCI");
-            }
-
-            var defSfiData = sfiTlv.getValue();
-            int sfi = defSfiData[0];
-
-            ResponseAPDU answer;
-
-            // READ RECORD, see ISO/IEC 7816-4, section "7.3.3 READ RECORD (S) command"
-            //                                           CLA INS P1 P2  Le
-            var readRecordCommand = Util.toByteArray("00  B2  00 00  00");
-            // read single record specified in P1 from EF with short EF identifier sfi
-            var p2 = (byte)((sfi << 3) | 4);
-            readRecordCommand[3] = p2;
-
-            var aids = new ArrayList<byte[]>();
-
-            byte recordNumber = 1;
-            byte expectedLength = 0;
-            while (true) {
-                readRecordCommand[2] = recordNumber;
-                readRecordCommand[4] = expectedLength;
-                answer = channel.transmit(new CommandAPDU(readRecordCommand));
-                if (answer.getSW1() == 0x6C) {
-                    expectedLength = (byte)answer.getSW2();
-                    continue;
+        } catch (IOException e) {
+            System.out.println("File error: " + e.getMessage());
+        } finally {
+            if (!traced) {
+                profiles.flush();
+                aidRegistry.flush();
+            }
+            // keep trace of failed sessions too
+            if (traceWriter != null) {
+                try {
+                    traceWriter.close();
+                    System.out.printf("Trace saved to %s%n", record);
+                } catch (IOException e) {
+                    System.out.println("Trace error: " + e.getMessage());
                 }
-                if (answer.getSW() != 0x9000) {
-                    break;
-                }
-
-                var record = answer.getData();
-                if (record.length != 0) {
-                    BerTlv psd = BerTlv.parseBytes(record);
-                    // psd must have tag "70"
-                    // see EMV_v4.3 book 1, section "12.2.3 Coding of a Payment System Directory"
-                    if (!psd.tagEquals("70")) {
-                        throw new Util.CardOperationFailedException("Cannot find PSD record");
-                    }
-                    for (BerTlv p : psd.getParts()) {
-                        if (p.tagEquals("61")) {
-                            BerTlv aidTlv = p.getPart("4F");
-                            aids.add(aidTlv.getValue());
-                        }
-                    }
-                }
-                recordNumber++;
-            }
-            if (aids.size() > 0) {
-                return aids.get(0);
-            } else {
-                return null;
             }
-//        } catch (example10.BerTlv.ConstraintException e) {
-//            throw new Util.CardOperationFailedException("Failed to parse PSE FCI data: example10.BerTlv encoding error");
-        } catch (BerTlv.ParsingException e) {
-            throw new Util.CardOperationFailedException("Failed to parse PSE FCI data");
         }
     }
-
-    private final static byte[] guessAID(CardChannel channel)
-        throws CardException
-    {
-        var candidateAIDs = new ArrayList<byte[]>(5);
-
-        candidateAIDs.add(Util.toByteArray("A0 00 00 00 03 20 10"));  // Visa Electron
-        candidateAIDs.add(Util.toByteArray("A0 00 00 00 03 10 10"));  // Visa Classic
-        candidateAIDs.add(Util.toByteArray("A0 00 00 00 04 10 10"));  // Mastercard
-
-        //                                          CLS INS P1 P2  Le
-        byte[] selectADFCommand = Util.toByteArray("00  A4  04 00  07  00 00 00 00 00 00 00");
-        ResponseAPDU answer;
-        byte[] foundAID = null;
-
-        for (var aid : candidateAIDs) {
-            // copy AID to command array
-            for (int i=0; i<7; i++) {
-                selectADFCommand[5+i] = aid[i];
-            }
-            answer = channel.transmit(new CommandAPDU(selectADFCommand));
-            if (answer.getSW() == 0x9000) {
-                foundAID = aid;
-                break;
-            }
-        }
-
-        return foundAID;
-    }
 }
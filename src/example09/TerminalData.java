@@ -0,0 +1,149 @@
+package example09;
+
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.security.SecureRandom;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+// Terminal side data objects requested by card DOLs, see EMV_v4.3 book 4, "Annex A
+// Coding of Terminal Data Elements". Values are kept in the exact length of their
+// format; Dol.Plan formats them to the length the card asks for, format of the tag
+// comes from EmvTags.
+//
+//   var data = new TerminalData();
+//   data.setAmount(1500);
+//   data.newTransaction();  // fresh unpredictable number, date and time
+//
+// Values given with set() are pinned: newTransaction() doesn't replace them.
+class TerminalData {
+    private final HashMap<Integer, byte[]> values = new HashMap<Integer, byte[]>();
+    // tags set by the caller
+    private final HashSet<Integer> pinned = new HashSet<Integer>();
+    private final SecureRandom random = new SecureRandom();
+    private long transactionCounter = 0;
+
+    public TerminalData() {
+        // Amount, Authorised (n12) and Amount, Other (n12)
+        set(0x9F02, Util.toByteArray("00 00 00 00 00 00"));
+        set(0x9F03, Util.toByteArray("00 00 00 00 00 00"));
+        // Terminal Country Code and Transaction Currency Code (n3), Russia and RUB
+        set(0x9F1A, Util.toByteArray("06 43"));
+        set(0x5F2A, Util.toByteArray("06 43"));
+        set(0x5F36, Util.toByteArray("02"));
+        // Transaction Type: goods and services
+        set(0x9C, Util.toByteArray("00"));
+        // Terminal Verification Results, nothing is set before processing
+        set(0x95, Util.toByteArray("00 00 00 00 00"));
+        // Terminal Type: attended, offline with online capability, merchant
+        set(0x9F35, Util.toByteArray("22"));
+        // Terminal Capabilities: IC, plaintext and enciphered PIN, signature, SDA/DDA/CDA
+        set(0x9F33, Util.toByteArray("60 F0 C8"));
+        set(0x9F40, Util.toByteArray("60 00 F0 A0 01"));
+        // Terminal Transaction Qualifiers: EMV mode, online capable
+        set(0x9F66, Util.toByteArray("36 00 40 00"));
+        set(0x9F4E, Util.toByteArray("54 45 53 54"));
+        newTransaction();
+    }
+
+    // Terminal data with fixed unpredictable number, date, time and sequence counter, so
+    // the GPO command is the same in every run, as trace replay requires.
+    public static TerminalData fixed() {
+        var data = new TerminalData();
+        data.set(0x9F37, Util.toByteArray("00 00 00 00"));
+        data.set(0x9A, Util.toByteArray("19 01 01"));
+        data.set(0x9F21, Util.toByteArray("12 00 00"));
+        data.set(0x9F41, Util.toByteArray("00 00 00 01"));
+        return data;
+    }
+
+    public synchronized void set(int tag, byte[] value) {
+        values.put(tag, value.clone());
+        pinned.add(tag);
+    }
+
+    public synchronized byte[] get(int tag) {
+        var value = values.get(tag);
+        return value == null ? null : value.clone();
+    }
+
+    // Amount, Authorised in minor units of the transaction currency.
+    public void setAmount(long amount) {
+        set(0x9F02, toBcd(amount, 6));
+    }
+
+    // Per-transaction values: Unpredictable Number, Transaction Date and Time,
+    // Transaction Sequence Counter. Pinned ones are kept.
+    public synchronized void newTransaction() {
+        var un = new byte[4];
+        random.nextBytes(un);
+        putUnlessPinned(0x9F37, un);
+        var now = LocalDateTime.now();
+        putUnlessPinned(0x9A, toBcd((now.getYear() % 100) * 10000 + now.getMonthValue() * 100 + now.getDayOfMonth(), 3));
+        putUnlessPinned(0x9F21, toBcd(now.getHour() * 10000 + now.getMinute() * 100 + now.getSecond(), 3));
+        transactionCounter++;
+        putUnlessPinned(0x9F41, toBcd(transactionCounter, 4));
+    }
+
+    // Write value of the tag formatted to length bytes, see EMV_v4.3 book 3, section 5.4:
+    // numeric values are cut from the left and padded with leading zeroes, others are
+    // cut from the right and padded with trailing zeroes; unknown tags give zeroes.
+    synchronized void copyTo(int tag, byte[] buffer, int offset, int length) {
+        var value = values.get(tag);
+        if (value == null) {
+            Arrays.fill(buffer, offset, offset + length, (byte)0);
+            return;
+        }
+        int n = Math.min(value.length, length);
+        var element = EmvTags.get(tag);
+        if (element != null && (element.format == EmvTags.Format.N || element.format == EmvTags.Format.DATE)) {
+            Arrays.fill(buffer, offset, offset + length - n, (byte)0);
+            System.arraycopy(value, value.length - n, buffer, offset + length - n, n);
+        } else {
+            System.arraycopy(value, 0, buffer, offset, n);
+            Arrays.fill(buffer, offset + n, offset + length, (byte)0);
+        }
+    }
+
+    private void putUnlessPinned(int tag, byte[] value) {
+        if (!pinned.contains(tag)) {
+            values.put(tag, value);
+        }
+    }
+
+    private static byte[] toBcd(long value, int length) {
+        var res = new byte[length];
+        for (int i=length-1; i>=0; i--) {
+            res[i] = (byte)((value % 10) | ((value / 10 % 10) << 4));
+            value /= 100;
+        }
+        return res;
+    }
+}
@@ -29,8 +29,6 @@ package example09;
 
 import static java.util.Arrays.copyOfRange;
 import java.util.ArrayList;
-import java.util.List;
-import java.util.HashMap;
 
 class Util {
     public static class TerminalNotFoundException extends Exception {}
@@ -110,157 +108,4 @@ class Util {
         return res;
     }
 
-    public static HashMap<String, String> mapDataObjects(List<BerTlv> objects) {
-        var res = new HashMap<String, String>();
-
-        for (var b : objects) {
-            var tagBytes = b.getTag();
-            var tagString = hexify(tagBytes);
-
-            // convert tag to int value
-            int tag = 0;
-            for (int i=0; i<tagBytes.length; i++) {
-                int x = tagBytes[i];
-                if (x < 0) {
-                    x += 256;
-                }
-                tag = tag*256 + x;
-            }
-
-            String name = null;
-            var value = b.getValue();
-            String displayValue = Util.hexify(value);
-
-            switch (tag) {
-            case 0x56:
-                name = "Track 1 Data";
-                break;
-            case 0x57:
-                name = "Track 2 Equivalent Data";
-                break;
-            case 0x5A:
-                name = "Application Primary Account Number (PAN)";
-                break;
-            case 0x5F20:
-                name = "Cardholder Name";
-                displayValue = bytesToString(value);
-                break;
-            case 0x5F24:
-                name = "Application Expiration Date";
-                displayValue = bytesToDate(value);
-                break;
-            case 0x5F25:
-                name = "Application Effective Date";
-                displayValue = bytesToDate(value);
-                break;
-            case 0x5F28:
-                name = "Issuer Country Code";
-                // displayValue = bytesToString(value);
-                break;
-            case 0x5F30:
-                name = "Service Code";
-                break;
-            case 0x5F34:
-                name = "Application Primary Account Number (PAN) Sequence Number";
-                break;
-            case 0x8C:
-                name = "Card Risk Management Data Object List 1 (CDOL1)";
-                break;
-            case 0x8D:
-                name = "Card Risk Management Data Object List 2 (CDOL2)";
-                break;
-            case 0x8E:
-                name = "Cardholder Verification Method (CVM) List";
-                break;
-            case 0x8F:
-                name = "Certification Authority Public Key Index";
-                break;
-            case 0x90:
-                name = "Issuer Public Key Certificate";
-                break;
-            case 0x92:
-                name = "Issuer Public Key Remainder";
-                break;
-            case 0x93:
-                name = "Signed Static Application Data";
-                break;
-            case 0x9F07:
-                name = "Application Usage Control";
-                break;
-            case 0x9F08:
-                name = "Application Version Number";
-                break;
-            case 0x9F0D:
-                name = "Issuer Action Code - Default";
-                break;
-            case 0x9F0E:
-                name = "Issuer Action Code - Denial";
-                break;
-            case 0x9F0F:
-                name = "Issuer Action Code - Online";
-                break;
-            case 0x9F1F:
-                name = "Track 1 Discretionary Data";
-                break;
-            case 0x9F32:
-                name = "Issuer Public Key Exponent";
-                break;
-            case 0x9F42:
-                name = "Application Currency Code";
-                break;
-            case 0x9F44:
-                name = "Application Currency Exponent";
-                break;
-            case 0x9F46:
-                name = "ICC Public Key Certificate";
-                break;
-            case 0x9F47:
-                name = "ICC Public Key Exponent";
-                break;
-            case 0x9F48:
-                name = "ICC Public Key Remainder";
-                break;
-            case 0x9F49:
-                name = "Dynamic Data Authentication Data Object List (DDOL)";
-                break;
-            case 0x9F4A:
-                name = "Static Data Authentication Tag List";
-                break;
-            case 0x9F62:
-                name = "PCVC3 (Track1)";
-                break;
-            case 0x9F63:
-                name = "PUNATC (Track1)";
-                break;
-            case 0x9F64:
-                name = "NATC (Track1)";
-                break;
-            case 0x9F65:
-                name = "PCVC3 (Track2)";
-                break;
-            case 0x9F66:
-                name = "Terminal Transaction Qualifiers (TTQ)";
-                break;
-            case 0x9F67:
-                name = "NATC (Track2)";
-                break;
-            case 0x9F68:
-                name = "Card Additional Processes";
-                break;
-            case 0x9F6B:
-                name = "Track 2 Data/Card CVM Limit";
-                break;
-            case 0x9F6C:
-                name = "Card Transaction Qualifiers (CTQ)";
-                break;
-            default:
-                name = hexify(tagBytes);
-            }
-
-            res.put(tagString, String.format("%s: %s", name, displayValue));
-        }
-
-        return res;
-    }
-
 }